@@ -0,0 +1,104 @@
+package nv.nadav.smart_home.benchmark;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Compares the servlet device API with its reactive variant under /api/reactive on a running backend. For each
+// number of requests kept in flight it reports throughput and latency of GET devices/{id} on both, so the point
+// where the servlet pool saturates shows up next to the reactive path at the same load.
+// Start the backend with device.reactive.enabled=true; a small server.tomcat.threads.max (e.g. 16) makes the
+// difference visible at modest concurrency. Run with mvn -Pbenchmark test. Settings are system properties:
+//   benchmark.base-url: backend to load, the benchmark is skipped without it
+//   benchmark.device-id: an existing device to read (benchmark-light-1)
+//   benchmark.concurrency: requests in flight, one stage each (16,64,256,1024)
+//   benchmark.stage-seconds: length of each stage (10)
+//   benchmark.warmup-seconds: unreported warmup per API at the first concurrency (5)
+@Tag("benchmark")
+class DeviceApiLoadBenchmark {
+    private static final List<String> APIS = List.of("/api/", "/api/reactive/");
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+    private record StageResult(double throughput, Histogram latency, long errors) {
+    }
+
+    @Test
+    void servletVersusReactive() throws Exception {
+        String baseUrl = System.getProperty("benchmark.base-url");
+        Assumptions.assumeTrue(baseUrl != null, "benchmark.base-url is not set");
+        String deviceId = System.getProperty("benchmark.device-id", "benchmark-light-1");
+        List<Integer> concurrencies = Arrays.stream(System.getProperty("benchmark.concurrency", "16,64,256,1024").split(","))
+                .map(String::trim)
+                .map(Integer::parseInt)
+                .toList();
+        Duration stage = Duration.ofSeconds(Long.getLong("benchmark.stage-seconds", 10));
+        Duration warmup = Duration.ofSeconds(Long.getLong("benchmark.warmup-seconds", 5));
+
+        for (String api : APIS) {
+            runStage(URI.create(baseUrl + api + "devices/" + deviceId), concurrencies.getFirst(), warmup);
+        }
+        System.out.printf("%n%-16s %10s %12s %10s %10s %10s %8s%n",
+                "api", "in flight", "requests/s", "p50 ms", "p99 ms", "p999 ms", "errors");
+        for (int concurrency : concurrencies) {
+            for (String api : APIS) {
+                StageResult result = runStage(URI.create(baseUrl + api + "devices/" + deviceId), concurrency, stage);
+                Histogram histogram = result.latency();
+                System.out.printf("%-16s %10d %12.1f %10.3f %10.3f %10.3f %8d%n",
+                        api,
+                        concurrency,
+                        result.throughput(),
+                        histogram.getValueAtPercentile(50) / 1e6,
+                        histogram.getValueAtPercentile(99) / 1e6,
+                        histogram.getValueAtPercentile(99.9) / 1e6,
+                        result.errors());
+            }
+        }
+    }
+
+    // Closed loop: each completed request frees its slot for the next, so the offered load is the concurrency
+    private StageResult runStage(URI uri, int concurrency, Duration duration) throws InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).GET().build();
+        Recorder latency = new Recorder(3);
+        AtomicLong completed = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        Semaphore inFlight = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        while (System.nanoTime() < end) {
+            if (!inFlight.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                continue;
+            }
+            long sentAt = System.nanoTime();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                if (error != null || response.statusCode() != 200) {
+                    errors.incrementAndGet();
+                } else {
+                    latency.recordValue(System.nanoTime() - sentAt);
+                    completed.incrementAndGet();
+                }
+                inFlight.release();
+            });
+        }
+        // Let the last requests finish, so they don't spill into the next stage
+        inFlight.acquire(concurrency);
+        long elapsed = System.nanoTime() - start;
+        return new StageResult(completed.get() / (elapsed / 1e9), latency.getIntervalHistogram(), errors.get());
+    }
+}
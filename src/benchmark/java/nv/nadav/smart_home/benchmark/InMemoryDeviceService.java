@@ -0,0 +1,210 @@
+package nv.nadav.smart_home.benchmark;
+
+import nv.nadav.smart_home.dto.DeviceDto;
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.exception.DeviceExistsException;
+import nv.nadav.smart_home.exception.DeviceNotFoundException;
+import nv.nadav.smart_home.exception.DeviceValidationException;
+import nv.nadav.smart_home.exception.DeviceVersionConflictException;
+import nv.nadav.smart_home.model.parameters.*;
+import nv.nadav.smart_home.repository.DeviceFilter;
+import nv.nadav.smart_home.service.*;
+import nv.nadav.smart_home.validation.Validators;
+import org.mapstruct.factory.Mappers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// Map-backed DeviceService that validates and merges the way the Mongo-backed service does, so the benchmark
+// measures the MQTT path rather than the database
+class InMemoryDeviceService implements DeviceService {
+    private final Map<String, DeviceDto> devices = new ConcurrentHashMap<>();
+    private final AirConditionerParametersMapper airConditionerParametersMapper =
+            Mappers.getMapper(AirConditionerParametersMapper.class);
+    private final CurtainParametersMapper curtainParametersMapper = Mappers.getMapper(CurtainParametersMapper.class);
+    private final DoorLockParametersMapper doorLockParametersMapper = Mappers.getMapper(DoorLockParametersMapper.class);
+    private final LightParametersMapper lightParametersMapper = Mappers.getMapper(LightParametersMapper.class);
+    private final WaterHeaterParametersMapper waterHeaterParametersMapper =
+            Mappers.getMapper(WaterHeaterParametersMapper.class);
+
+    @Override
+    public DeviceDto addDevice(DeviceDto deviceDto) {
+        Validators.ValidationResult validationResult = Validators.validateNewDeviceData(deviceDto);
+        if (!validationResult.isValid()) {
+            throw new DeviceValidationException(validationResult.errorMessages());
+        }
+        if (devices.putIfAbsent(deviceDto.getId(), deviceDto) != null) {
+            throw new DeviceExistsException();
+        }
+        return deviceDto;
+    }
+
+    @Override
+    public DeviceImportResult addDevices(List<DeviceDto> deviceDtos) {
+        List<DeviceDto> added = new ArrayList<>();
+        List<DeviceImportResult.Failure> failed = new ArrayList<>();
+        for (int i = 0; i < deviceDtos.size(); i++) {
+            try {
+                added.add(addDevice(deviceDtos.get(i)));
+            } catch (DeviceValidationException | DeviceExistsException e) {
+                failed.add(new DeviceImportResult.Failure(i, deviceDtos.get(i).getId(), String.valueOf(e.getMessage())));
+            }
+        }
+        return new DeviceImportResult(added, failed);
+    }
+
+    @Override
+    public DeviceDto updateDevice(String deviceId, DeviceUpdateDto update) {
+        DeviceDto device = getDeviceById(deviceId);
+        Validators.ValidationResult validationResult = Validators.validateDeviceData(update, device.getType());
+        if (!validationResult.isValid()) {
+            throw new DeviceValidationException(validationResult.errorMessages());
+        }
+        synchronized (device) {
+            if (update.getName() != null) {
+                device.setName(update.getName());
+            }
+            if (update.getRoom() != null) {
+                device.setRoom(update.getRoom());
+            }
+            if (update.getStatus() != null) {
+                device.setStatus(update.getStatus());
+            }
+            DeviceParameters source = update.getParameters();
+            DeviceParameters target = device.getParameters();
+            if (source != null) {
+                switch (device.getType()) {
+                    case LIGHT -> lightParametersMapper.updateFromOther(
+                            (LightParameters) source,
+                            (LightParameters) target
+                    );
+                    case WATER_HEATER -> waterHeaterParametersMapper.updateFromOther(
+                            (WaterHeaterParameters) source,
+                            (WaterHeaterParameters) target
+                    );
+                    case CURTAIN -> curtainParametersMapper.updateFromOther(
+                            (CurtainParameters) source,
+                            (CurtainParameters) target
+                    );
+                    case DOOR_LOCK -> doorLockParametersMapper.updateFromOther(
+                            (DoorLockParameters) source,
+                            (DoorLockParameters) target
+                    );
+                    case AIR_CONDITIONER -> airConditionerParametersMapper.updateFromOther(
+                            (AirConditionerParameters) source,
+                            (AirConditionerParameters) target
+                    );
+                }
+            }
+            device.setVersion(device.getVersion() == null ? 1L : device.getVersion() + 1);
+        }
+        return device;
+    }
+
+    @Override
+    public DeviceDto updateDevice(String deviceId, DeviceUpdateDto update, long expectedVersion) {
+        DeviceDto device = getDeviceById(deviceId);
+        synchronized (device) {
+            long version = device.getVersion() == null ? 0L : device.getVersion();
+            if (version != expectedVersion) {
+                throw new DeviceVersionConflictException(
+                        String.format("Device ID %s is at version %d", deviceId, version));
+            }
+            return updateDevice(deviceId, update);
+        }
+    }
+
+    @Override
+    public List<DeviceDto> updateDevices(Map<String, DeviceUpdateDto> updates) {
+        Map<String, DeviceDto> found = getDevicesByIds(updates.keySet());
+        for (DeviceDto device : found.values()) {
+            Validators.ValidationResult validationResult =
+                    Validators.validateDeviceData(updates.get(device.getId()), device.getType());
+            if (!validationResult.isValid()) {
+                throw new DeviceValidationException(validationResult.errorMessages());
+            }
+        }
+        return found.keySet().stream().map(id -> updateDevice(id, updates.get(id))).toList();
+    }
+
+    @Override
+    public List<DeviceDto> updateDevices(Collection<String> deviceIds, DeviceUpdateDto update) {
+        Map<String, DeviceUpdateDto> updates = new HashMap<>();
+        deviceIds.forEach(deviceId -> updates.put(deviceId, update));
+        return updateDevices(updates);
+    }
+
+    @Override
+    public DeviceDto getDeviceById(String deviceId) {
+        DeviceDto device = devices.get(deviceId);
+        if (device == null) {
+            throw new DeviceNotFoundException(String.format("Device ID %s not found", deviceId));
+        }
+        return device;
+    }
+
+    @Override
+    public Map<String, DeviceDto> getDevicesByIds(Collection<String> deviceIds) {
+        Map<String, DeviceDto> found = new HashMap<>();
+        for (String deviceId : deviceIds) {
+            DeviceDto device = devices.get(deviceId);
+            if (device != null) {
+                found.put(deviceId, device);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<DeviceDto> getAllDevices() {
+        return new ArrayList<>(devices.values());
+    }
+
+    @Override
+    public List<DeviceDto> getDevicesMatching(DeviceFilter filter, int limit) {
+        return devices.values().stream()
+                .filter(device -> filter.room() == null || filter.room().equals(device.getRoom()))
+                .filter(device -> filter.type() == null || filter.type() == device.getType())
+                .filter(device -> filter.status() == null || filter.status().equals(device.getStatus()))
+                .sorted(Comparator.comparing(DeviceDto::getId))
+                .limit(limit > 0 ? limit : Long.MAX_VALUE)
+                .toList();
+    }
+
+    @Override
+    public DevicePage getDevicePage(String cursor, int limit) {
+        List<String> ids = devices.keySet().stream().sorted().toList();
+        int start = cursor == null ? 0 : Integer.parseInt(cursor);
+        int end = Math.min(start + limit, ids.size());
+        List<DeviceDto> page = ids.subList(start, end).stream().map(devices::get).toList();
+        return new DevicePage(page, end < ids.size() ? String.valueOf(end) : null);
+    }
+
+    @Override
+    public void forEachDevice(Consumer<DeviceDto> consumer) {
+        devices.values().forEach(consumer);
+    }
+
+    @Override
+    public void deleteDeviceById(String deviceId) {
+        if (devices.remove(deviceId) == null) {
+            throw new DeviceNotFoundException(String.format("Device ID %s not found", deviceId));
+        }
+    }
+
+    @Override
+    public List<String> getDeviceIds() {
+        return new ArrayList<>(devices.keySet());
+    }
+
+    @Override
+    public boolean existsByDeviceId(String deviceId) {
+        return devices.containsKey(deviceId);
+    }
+}
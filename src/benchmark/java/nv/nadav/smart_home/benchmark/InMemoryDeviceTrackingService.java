@@ -0,0 +1,69 @@
+package nv.nadav.smart_home.benchmark;
+
+import nv.nadav.smart_home.service.DeviceTrackingService;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Map-backed DeviceTrackingService standing in for Redis. The seen-set check mirrors the Redis-backed service
+// exactly, so metrics take the same branches they do in production
+class InMemoryDeviceTrackingService implements DeviceTrackingService {
+    private final Set<String> seenDevices = ConcurrentHashMap.newKeySet();
+    private final Map<String, List<Interval>> intervals = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean isDeviceNew(String deviceId) {
+        return seenDevices.contains(deviceId);
+    }
+
+    @Override
+    public void markDeviceSeen(String deviceId) {
+        seenDevices.add(deviceId);
+    }
+
+    @Override
+    public void removeDeviceSeen(String deviceId) {
+        seenDevices.remove(deviceId);
+    }
+
+    @Override
+    public List<Boolean> areDevicesNew(List<String> deviceIds) {
+        return deviceIds.stream().map(seenDevices::contains).toList();
+    }
+
+    @Override
+    public void markDevicesSeen(Collection<String> deviceIds) {
+        seenDevices.addAll(deviceIds);
+    }
+
+    @Override
+    public List<Interval> getDeviceIntervals(String deviceId) {
+        return new ArrayList<>(intervals.getOrDefault(deviceId, List.of()));
+    }
+
+    @Override
+    public void saveDeviceIntervals(String deviceId, List<Interval> deviceIntervals) {
+        intervals.put(deviceId, new ArrayList<>(deviceIntervals));
+    }
+
+    @Override
+    public void startNewInterval(String deviceId, Instant startTime) {
+        intervals.computeIfAbsent(deviceId, _ -> new ArrayList<>()).add(new Interval(startTime, null));
+    }
+
+    @Override
+    public double closeLastInterval(String deviceId, Instant endTime) {
+        List<Interval> deviceIntervals = intervals.get(deviceId);
+        if (deviceIntervals == null || deviceIntervals.isEmpty() || deviceIntervals.getLast().end() != null) {
+            return 0.0;
+        }
+        Interval closed = new Interval(deviceIntervals.getLast().start(), endTime);
+        deviceIntervals.set(deviceIntervals.size() - 1, closed);
+        return closed.getDuration();
+    }
+}
@@ -0,0 +1,332 @@
+package nv.nadav.smart_home.benchmark;
+
+import ch.qos.logback.classic.Level;
+import com.google.common.util.concurrent.RateLimiter;
+import com.hivemq.embedded.EmbeddedHiveMQ;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.validation.Validation;
+import jakarta.validation.ValidatorFactory;
+import nv.nadav.smart_home.config.*;
+import nv.nadav.smart_home.dto.DeviceDto;
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.model.DeviceType;
+import nv.nadav.smart_home.service.*;
+import nv.nadav.smart_home.service.impl.*;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttClient;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mapstruct.factory.Mappers;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Measures how many messages per second MqttServiceImpl sustains, and how handling latency degrades as load rises.
+// An embedded HiveMQ broker carries synthetic POST, UPDATE and DELETE traffic from a generator client to the
+// service, which runs against in-memory device and tracking services and the real metrics managers on a simple
+// meter registry.
+// Run with mvn -Pbenchmark test. Settings are system properties:
+//   benchmark.rates: offered rates in messages per second, one stage each (1000,2000,4000,8000)
+//   benchmark.stage-seconds: length of each stage (10)
+//   benchmark.warmup-seconds: unreported warmup at the first rate (5)
+//   benchmark.devices: number of simulated devices (100)
+//   benchmark.updates-per-cycle: UPDATEs between each device's POST and DELETE (8)
+//   benchmark.qos: QoS the generator publishes at (1)
+//   benchmark.lanes: ingest lanes, 0 for one per core (0)
+//   benchmark.consumers: shared-subscription connections the service opens (1)
+//   benchmark.log-level: root log level while running (WARN)
+// Latency runs from just before the generator publishes to the end of the metrics update for that message.
+// Allocation is process-wide, so it includes the broker and the generator
+@Tag("benchmark")
+class MqttIngestBenchmark {
+    private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(30);
+
+    private final Map<String, Queue<Long>> sentAt = new ConcurrentHashMap<>();
+    private final Recorder latency = new Recorder(3);
+    private final AtomicLong completed = new AtomicLong();
+
+    private int devices;
+    private int updatesPerCycle;
+    private int qos;
+    private int[] steps;
+
+    @TempDir
+    Path workDir;
+
+    @Test
+    void ingestThroughput() throws Exception {
+        List<Double> rates = Arrays.stream(System.getProperty("benchmark.rates", "1000,2000,4000,8000").split(","))
+                .map(String::trim)
+                .map(Double::parseDouble)
+                .toList();
+        Duration stage = Duration.ofSeconds(Long.getLong("benchmark.stage-seconds", 10));
+        Duration warmup = Duration.ofSeconds(Long.getLong("benchmark.warmup-seconds", 5));
+        devices = Integer.getInteger("benchmark.devices", 100);
+        updatesPerCycle = Integer.getInteger("benchmark.updates-per-cycle", 8);
+        qos = Integer.getInteger("benchmark.qos", 1);
+        steps = new int[devices];
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME))
+                .setLevel(Level.toLevel(System.getProperty("benchmark.log-level", "WARN")));
+
+        int port = freePort();
+        EmbeddedHiveMQ broker = startBroker(port);
+        String brokerUri = "tcp://127.0.0.1:" + port;
+        MqttAsyncClient serviceClient = new MqttAsyncClient(brokerUri, "spring-backend-benchmark", new MemoryPersistence());
+        MqttClient generator = new MqttClient(brokerUri, "benchmark-generator", new MemoryPersistence());
+        MeterRegistry registry = new SimpleMeterRegistry();
+        CounterManager counterManager = new CounterManagerImpl(registry);
+        GaugeManager gaugeManager = new GaugeManagerImpl(registry);
+        TimerManager timerManager = new TimerManagerImpl(registry);
+        MqttIngestProperties ingestProperties = new MqttIngestProperties();
+        ingestProperties.setLanes(Integer.getInteger("benchmark.lanes", 0));
+        ingestProperties.setConsumers(Integer.getInteger("benchmark.consumers", 1));
+        MqttOutboxProperties outboxProperties = new MqttOutboxProperties();
+        outboxProperties.setPath(workDir.resolve("outbox.journal").toString());
+        IngestDispatcherImpl dispatcher = new IngestDispatcherImpl(ingestProperties, gaugeManager, timerManager);
+        IngressLimiterImpl limiter = new IngressLimiterImpl(new MqttRateLimitProperties(), counterManager);
+        DuplicateFilterImpl duplicateFilter = new DuplicateFilterImpl(new MqttDedupProperties(), counterManager);
+        UpdateCoalescerImpl coalescer = new UpdateCoalescerImpl(
+                ingestProperties,
+                counterManager,
+                Mappers.getMapper(AirConditionerParametersMapper.class),
+                Mappers.getMapper(CurtainParametersMapper.class),
+                Mappers.getMapper(DoorLockParametersMapper.class),
+                Mappers.getMapper(LightParametersMapper.class),
+                Mappers.getMapper(WaterHeaterParametersMapper.class)
+        );
+        PublishJournalImpl journal = new PublishJournalImpl(outboxProperties, gaugeManager, counterManager);
+        MqttDeadLetterProperties deadLetterProperties = new MqttDeadLetterProperties();
+        DeadLetterStoreImpl deadLetters = new DeadLetterStoreImpl(deadLetterProperties, gaugeManager, counterManager);
+        DeviceMetricsService metricsService = recordingCompletion(new DeviceMetricsServiceImpl(
+                new InMemoryDeviceTrackingService(),
+                gaugeManager,
+                counterManager
+        ));
+
+        try (ValidatorFactory validatorFactory = Validation.buildDefaultValidatorFactory()) {
+            MqttServiceImpl service = new MqttServiceImpl(
+                    serviceClient,
+                    suffix -> new MqttAsyncClient(brokerUri, "spring-backend-benchmark" + suffix, new MemoryPersistence()),
+                    new InMemoryDeviceService(),
+                    validatorFactory.getValidator(),
+                    metricsService,
+                    dispatcher,
+                    limiter,
+                    duplicateFilter,
+                    coalescer,
+                    journal,
+                    deadLetters,
+                    outboxProperties,
+                    new MqttPublishProperties(),
+                    ingestProperties,
+                    deadLetterProperties,
+                    counterManager
+            );
+            service.mqttInit();
+            generator.connect();
+            try {
+                runStage(generator, rates.getFirst(), warmup);
+                System.out.printf("%n%10s %12s %10s %10s %10s %12s %12s%n",
+                        "offered/s", "handled/s", "p50 ms", "p99 ms", "p999 ms", "alloc B/msg", "unfinished");
+                for (double rate : rates) {
+                    StageResult result = runStage(generator, rate, stage);
+                    Histogram histogram = result.latency();
+                    System.out.printf("%10.0f %12.1f %10.3f %10.3f %10.3f %12.0f %12d%n",
+                            rate,
+                            result.throughput(),
+                            histogram.getValueAtPercentile(50) / 1e6,
+                            histogram.getValueAtPercentile(99) / 1e6,
+                            histogram.getValueAtPercentile(99.9) / 1e6,
+                            result.allocatedBytesPerMessage(),
+                            result.unfinished());
+                }
+                // How evenly the broker spread the shared subscription over the connections
+                for (Counter counter : registry.find("mqtt_consumer_messages_total").counters()) {
+                    System.out.printf("consumer %s received %.0f messages%n",
+                            counter.getId().getTag("consumer"), counter.count());
+                }
+            } finally {
+                generator.disconnect();
+                generator.close();
+                service.shutdown();
+                serviceClient.disconnect().waitForCompletion();
+                serviceClient.close();
+                dispatcher.shutdown();
+                coalescer.shutdown();
+                limiter.shutdown();
+                journal.close();
+                broker.stop().join();
+            }
+        }
+    }
+
+    private record StageResult(double throughput, Histogram latency, double allocatedBytesPerMessage, long unfinished) {
+    }
+
+    private StageResult runStage(MqttClient generator, double rate, Duration duration) throws Exception {
+        RateLimiter pacer = RateLimiter.create(rate);
+        latency.reset();
+        long completedBefore = completed.get();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        long sent = 0;
+        int device = 0;
+        while (System.nanoTime() < end) {
+            pacer.acquire();
+            publishNext(generator, device);
+            device = (device + 1) % devices;
+            sent++;
+        }
+
+        long target = completedBefore + sent;
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT.toNanos();
+        while (completed.get() < target && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+        long handled = completed.get() - completedBefore;
+        return new StageResult(
+                handled / (elapsed / 1e9),
+                latency.getIntervalHistogram(),
+                (allocatedBytes() - allocatedBefore) / (double) Math.max(handled, 1),
+                Math.max(0, target - completed.get())
+        );
+    }
+
+    // Each device cycles through POST, a run of UPDATEs, then DELETE, so every message is valid
+    private void publishNext(MqttClient generator, int device) throws Exception {
+        String deviceId = "bench-light-" + device;
+        int step = steps[device];
+        steps[device] = (step + 1) % (updatesPerCycle + 2);
+        MqttService.Method method;
+        String payload;
+        if (step == 0) {
+            method = MqttService.Method.POST;
+            payload = """
+                    {"id":"%s","type":"light","name":"Bench light %d","room":"Lab","status":"off",\
+                    "parameters":{"brightness":50,"color":"#FFFFFF","is_dimmable":true,"dynamic_color":false}}"""
+                    .formatted(deviceId, device);
+        } else if (step <= updatesPerCycle) {
+            method = MqttService.Method.UPDATE;
+            payload = step % 4 == 0
+                    ? "{\"status\":\"%s\"}".formatted(step % 8 == 0 ? "off" : "on")
+                    : "{\"parameters\":{\"brightness\":%d}}".formatted(step * 7 % 101);
+        } else {
+            method = MqttService.Method.DELETE;
+            payload = "{}";
+        }
+
+        MqttMessage message = new MqttMessage(payload.getBytes(StandardCharsets.UTF_8));
+        message.setQos(qos);
+        MqttProperties properties = new MqttProperties();
+        properties.setUserProperties(List.of(
+                new UserProperty("sender_id", "benchmark-generator"),
+                new UserProperty("sender_group", "frontend")
+        ));
+        message.setProperties(properties);
+        sentAt.computeIfAbsent(deviceId, _ -> new ConcurrentLinkedQueue<>()).add(System.nanoTime());
+        generator.publish("%s/%s/%s".formatted(MqttService.TOPIC, deviceId, method.getValue()), message);
+    }
+
+    // Every successfully handled message ends in exactly one metrics call
+    private DeviceMetricsService recordingCompletion(DeviceMetricsService delegate) {
+        return new DeviceMetricsService() {
+            @Override
+            public void addDevice(DeviceDto device) {
+                delegate.addDevice(device);
+                complete(device.getId());
+            }
+
+            @Override
+            public void addDevices(List<DeviceDto> devices) {
+                delegate.addDevices(devices);
+                devices.forEach(device -> complete(device.getId()));
+            }
+
+            @Override
+            public void updateDevice(DeviceUpdateDto oldValues, DeviceUpdateDto update, DeviceType type, String deviceId) {
+                delegate.updateDevice(oldValues, update, type, deviceId);
+                complete(deviceId);
+            }
+
+            @Override
+            public void deleteDevice(String deviceId) {
+                delegate.deleteDevice(deviceId);
+                complete(deviceId);
+            }
+
+            @Override
+            public void onStoreChanged(DeviceStoreChangedEvent event) {
+                delegate.onStoreChanged(event);
+            }
+        };
+    }
+
+    private void complete(String deviceId) {
+        Long start = sentAt.get(deviceId).poll();
+        if (start != null) {
+            latency.recordValue(System.nanoTime() - start);
+            completed.incrementAndGet();
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getTotalThreadAllocatedBytes();
+    }
+
+    private EmbeddedHiveMQ startBroker(int port) throws IOException {
+        Path config = Files.createDirectories(workDir.resolve("broker-config"));
+        Files.writeString(config.resolve("config.xml"), """
+                <?xml version="1.0"?>
+                <hivemq>
+                    <listeners>
+                        <tcp-listener>
+                            <port>%d</port>
+                            <bind-address>127.0.0.1</bind-address>
+                        </tcp-listener>
+                    </listeners>
+                    <anonymous-usage-statistics>
+                        <enabled>false</enabled>
+                    </anonymous-usage-statistics>
+                </hivemq>
+                """.formatted(port));
+        EmbeddedHiveMQ broker = EmbeddedHiveMQ.builder()
+                .withConfigurationFolder(config)
+                .withDataFolder(Files.createDirectories(workDir.resolve("broker-data")))
+                .withExtensionsFolder(Files.createDirectories(workDir.resolve("broker-extensions")))
+                .withoutLoggingBootstrap()
+                .build();
+        broker.start().join();
+        return broker;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package nv.nadav.smart_home.benchmark;
+
+import nv.nadav.smart_home.dto.DeviceDto;
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.model.DeviceType;
+import nv.nadav.smart_home.serialization.DeviceCodec;
+import nv.nadav.smart_home.serialization.PayloadFormat;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+// Compares the payload encodings DeviceCodec supports on the messages the MQTT path carries: a full device on
+// POST, a parameter change and a status change on UPDATE. For each format it reports the encoded size and the time
+// and allocation to parse one message.
+// Run with mvn -Pbenchmark test. Settings are system properties:
+//   benchmark.iterations: measured parses per message and format (200000)
+//   benchmark.warmup-iterations: unreported parses before measuring (100000)
+// Allocation is measured on the benchmark thread only
+@Tag("benchmark")
+class PayloadFormatBenchmark {
+    private static final String DEVICE_JSON = """
+            {"id":"bench-ac-1","type":"air_conditioner","name":"Living room AC","room":"Living Room","status":"on",\
+            "parameters":{"temperature":22,"mode":"cool","fan_speed":"medium","swing":"on"}}""";
+    private static final String PARAMETERS_JSON = "{\"parameters\":{\"temperature\":24,\"mode\":\"heat\"}}";
+    private static final String STATUS_JSON = "{\"status\":\"off\"}";
+
+    private interface Parse {
+        Object apply(byte[] payload, PayloadFormat format) throws IOException;
+    }
+
+    private record Sample(String name, String json, Parse parse) {
+    }
+
+    @Test
+    void payloadFormats() throws Exception {
+        int iterations = Integer.getInteger("benchmark.iterations", 200_000);
+        int warmup = Integer.getInteger("benchmark.warmup-iterations", 100_000);
+        List<Sample> samples = List.of(
+                new Sample("device", DEVICE_JSON, DeviceCodec::readDevice),
+                new Sample("parameters", PARAMETERS_JSON,
+                        (payload, format) -> DeviceCodec.readUpdate(payload, DeviceType.AIR_CONDITIONER, format)),
+                new Sample("status", STATUS_JSON,
+                        (payload, format) -> DeviceCodec.readUpdate(payload, DeviceType.AIR_CONDITIONER, format))
+        );
+
+        System.out.printf("%n%-12s %-8s %10s %12s %14s%n", "message", "format", "bytes", "parse ns", "alloc B/parse");
+        for (Sample sample : samples) {
+            Map<String, Object> payload = DeviceCodec.toPayload(
+                    sample.parse().apply(sample.json().getBytes(StandardCharsets.UTF_8), PayloadFormat.JSON));
+            for (PayloadFormat format : PayloadFormat.values()) {
+                byte[] encoded = DeviceCodec.writePayload(payload, format);
+                run(sample.parse(), encoded, format, warmup);
+                long allocatedBefore = allocatedBytes();
+                long start = System.nanoTime();
+                run(sample.parse(), encoded, format, iterations);
+                long elapsed = System.nanoTime() - start;
+                long allocated = allocatedBytes() - allocatedBefore;
+                System.out.printf("%-12s %-8s %10d %12.1f %14.0f%n",
+                        sample.name(),
+                        format.name().toLowerCase(),
+                        encoded.length,
+                        elapsed / (double) iterations,
+                        allocated / (double) iterations);
+            }
+        }
+    }
+
+    private static void run(Parse parse, byte[] payload, PayloadFormat format, int iterations) throws IOException {
+        int sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            Object parsed = parse.apply(payload, format);
+            sink += parsed instanceof DeviceDto device ? device.getId().length()
+                    : ((DeviceUpdateDto) parsed).hashCode();
+        }
+        // Keeps the parses from being optimised away
+        if (sink == 42) {
+            System.out.print("");
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().threadId());
+    }
+}
@@ -0,0 +1,48 @@
+package nv.nadav.smart_home.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Component
+@ConfigurationProperties(prefix = "device.change-stream")
+public class DeviceChangeStreamProperties {
+    // Follow writes to the devices collection made by other replicas (needs a replica set)
+    private boolean enabled = true;
+    private Duration maxAwait = Duration.ofSeconds(1);  // Longest a poll of the stream blocks before checking for shutdown
+    private Duration reconnectBackoff = Duration.ofMillis(500);  // First wait before reopening a failed stream
+    private Duration maxReconnectBackoff = Duration.ofSeconds(30);
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Duration getMaxAwait() {
+        return maxAwait;
+    }
+
+    public void setMaxAwait(Duration maxAwait) {
+        this.maxAwait = maxAwait;
+    }
+
+    public Duration getReconnectBackoff() {
+        return reconnectBackoff;
+    }
+
+    public void setReconnectBackoff(Duration reconnectBackoff) {
+        this.reconnectBackoff = reconnectBackoff;
+    }
+
+    public Duration getMaxReconnectBackoff() {
+        return maxReconnectBackoff;
+    }
+
+    public void setMaxReconnectBackoff(Duration maxReconnectBackoff) {
+        this.maxReconnectBackoff = maxReconnectBackoff;
+    }
+}
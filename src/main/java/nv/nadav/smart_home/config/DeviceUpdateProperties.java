@@ -0,0 +1,38 @@
+package nv.nadav.smart_home.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Component
+@ConfigurationProperties(prefix = "device.update")
+public class DeviceUpdateProperties {
+    private int maxAttempts = 4;  // Conditional writes per update before giving up with a conflict
+    private Duration initialBackoff = Duration.ofMillis(5);  // Doubled after every conflict
+    private Duration maxBackoff = Duration.ofMillis(100);
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public Duration getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    public void setInitialBackoff(Duration initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    public Duration getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    public void setMaxBackoff(Duration maxBackoff) {
+        this.maxBackoff = maxBackoff;
+    }
+}
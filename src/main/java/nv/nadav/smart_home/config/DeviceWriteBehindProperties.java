@@ -0,0 +1,39 @@
+package nv.nadav.smart_home.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Component
+@ConfigurationProperties(prefix = "device.write-behind")
+public class DeviceWriteBehindProperties {
+    // Buffer telemetry-only updates in memory and write them to Mongo in batches
+    private boolean enabled = false;
+    private int maxBatchSize = 500;  // Buffered devices that trigger a flush before the interval is up
+    private Duration flushInterval = Duration.ofSeconds(1);  // Longest a buffered update waits for its write
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public Duration getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void setFlushInterval(Duration flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+}
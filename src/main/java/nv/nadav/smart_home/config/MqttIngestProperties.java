@@ -0,0 +1,41 @@
+package nv.nadav.smart_home.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Component
+@ConfigurationProperties(prefix = "mqtt.ingest")
+public class MqttIngestProperties {
+    // Number of ordered worker lanes, 0 means one lane per available core
+    private int lanes = 0;
+    // How long to hold UPDATE messages for a device so bursts fold into one write, zero disables
+    private Duration coalesceWindow = Duration.ZERO;
+    // Connections in the shared subscription group, each with its own socket and callback thread
+    private int consumers = 1;
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    public void setLanes(int lanes) {
+        this.lanes = lanes;
+    }
+
+    public int getConsumers() {
+        return consumers;
+    }
+
+    public void setConsumers(int consumers) {
+        this.consumers = consumers;
+    }
+
+    public Duration getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    public void setCoalesceWindow(Duration coalesceWindow) {
+        this.coalesceWindow = coalesceWindow;
+    }
+}
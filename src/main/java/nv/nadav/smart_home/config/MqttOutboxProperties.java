@@ -0,0 +1,50 @@
+package nv.nadav.smart_home.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties(prefix = "mqtt.outbox")
+public class MqttOutboxProperties {
+    private String path = "data/mqtt-outbox.journal";
+    private int capacityBytes = 16 * 1024 * 1024;
+    private double replayRate = 50.0;  // Messages per second
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        DROP_NEWEST
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public int getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public void setCapacityBytes(int capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    public double getReplayRate() {
+        return replayRate;
+    }
+
+    public void setReplayRate(double replayRate) {
+        this.replayRate = replayRate;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+}
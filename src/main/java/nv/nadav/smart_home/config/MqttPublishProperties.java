@@ -0,0 +1,46 @@
+package nv.nadav.smart_home.config;
+
+import nv.nadav.smart_home.serialization.PayloadFormat;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties(prefix = "mqtt.publish")
+public class MqttPublishProperties {
+    private int maxInflight = 64;  // Unacknowledged publishes before new ones go to the outbox
+    private PayloadFormat payloadFormat = PayloadFormat.JSON;  // Encoding of outbound device payloads
+    private int topicAliasMaximum = 64;  // Topic aliases the broker may use for messages it sends us, 0 to refuse
+    private boolean compactSenderHeader = false;  // Send sender identity as one short property instead of two
+
+    public int getMaxInflight() {
+        return maxInflight;
+    }
+
+    public void setMaxInflight(int maxInflight) {
+        this.maxInflight = maxInflight;
+    }
+
+    public int getTopicAliasMaximum() {
+        return topicAliasMaximum;
+    }
+
+    public void setTopicAliasMaximum(int topicAliasMaximum) {
+        this.topicAliasMaximum = topicAliasMaximum;
+    }
+
+    public boolean isCompactSenderHeader() {
+        return compactSenderHeader;
+    }
+
+    public void setCompactSenderHeader(boolean compactSenderHeader) {
+        this.compactSenderHeader = compactSenderHeader;
+    }
+
+    public PayloadFormat getPayloadFormat() {
+        return payloadFormat;
+    }
+
+    public void setPayloadFormat(PayloadFormat payloadFormat) {
+        this.payloadFormat = payloadFormat;
+    }
+}
@@ -0,0 +1,82 @@
+package nv.nadav.smart_home.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Component
+@ConfigurationProperties(prefix = "mqtt.rate-limit")
+public class MqttRateLimitProperties {
+    private boolean enabled = false;
+    // Sustained messages per second and burst size allowed for each sender (group + id)
+    private double senderRate = 20.0;
+    private int senderBurst = 40;
+    // Sustained messages per second and burst size allowed for each device, across all senders
+    private double deviceRate = 10.0;
+    private int deviceBurst = 20;
+    private OverLimitAction overLimitAction = OverLimitAction.DROP;
+    // Longest a message is held back under DELAY; anything that would wait longer is dropped
+    private Duration maxDelay = Duration.ofSeconds(2);
+
+    public enum OverLimitAction {
+        DROP,
+        DELAY
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public double getSenderRate() {
+        return senderRate;
+    }
+
+    public void setSenderRate(double senderRate) {
+        this.senderRate = senderRate;
+    }
+
+    public int getSenderBurst() {
+        return senderBurst;
+    }
+
+    public void setSenderBurst(int senderBurst) {
+        this.senderBurst = senderBurst;
+    }
+
+    public double getDeviceRate() {
+        return deviceRate;
+    }
+
+    public void setDeviceRate(double deviceRate) {
+        this.deviceRate = deviceRate;
+    }
+
+    public int getDeviceBurst() {
+        return deviceBurst;
+    }
+
+    public void setDeviceBurst(int deviceBurst) {
+        this.deviceBurst = deviceBurst;
+    }
+
+    public OverLimitAction getOverLimitAction() {
+        return overLimitAction;
+    }
+
+    public void setOverLimitAction(OverLimitAction overLimitAction) {
+        this.overLimitAction = overLimitAction;
+    }
+
+    public Duration getMaxDelay() {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(Duration maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+}
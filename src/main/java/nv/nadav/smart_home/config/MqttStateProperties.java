@@ -0,0 +1,27 @@
+package nv.nadav.smart_home.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties(prefix = "mqtt.state")
+public class MqttStateProperties {
+    private boolean enabled = true;  // Keep a retained state message per device on the state topic
+    private boolean publishOnStartup = true;  // Republish every device once the app starts, in case the broker lost them
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isPublishOnStartup() {
+        return publishOnStartup;
+    }
+
+    public void setPublishOnStartup(boolean publishOnStartup) {
+        this.publishOnStartup = publishOnStartup;
+    }
+}
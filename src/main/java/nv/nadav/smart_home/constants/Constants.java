@@ -53,6 +53,14 @@ public class Constants {
     public static final String DEFAULT_CURTAIN_STATUS = "open";
     public static final int DEFAULT_POSITION = 100;
 
+    // Device list paging
+    public static final int DEFAULT_DEVICE_PAGE_SIZE = 100;
+    public static final int MAX_DEVICE_PAGE_SIZE = 1000;
+
+    // Bulk device import and update
+    public static final int MAX_DEVICE_IMPORT_SIZE = 1000;
+    public static final int MAX_DEVICE_BULK_UPDATE_SIZE = 1000;
+
     // Regex patterns
     public static final String TIME_REGEX = "^([01][0-9]|2[0-3]):([0-5][0-9])(:[0-5][0-9])?$";
     public static final String COLOR_REGEX = "^#([0-9A-Fa-f]{3}|[0-9A-Fa-f]{6})$";
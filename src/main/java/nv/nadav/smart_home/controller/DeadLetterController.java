@@ -0,0 +1,91 @@
+package nv.nadav.smart_home.controller;
+
+import nv.nadav.smart_home.config.SecurityConfig;
+import nv.nadav.smart_home.serialization.PayloadFormat;
+import nv.nadav.smart_home.service.DeadLetterStore;
+import nv.nadav.smart_home.service.JwtService;
+import nv.nadav.smart_home.service.MqttService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@Import(SecurityConfig.class)
+@RestController
+@RequestMapping("/api/admin/dead-letters")
+public class DeadLetterController {
+    private static final int MAX_PAGE_SIZE = 500;
+
+    private final DeadLetterStore deadLetterStore;
+    private final MqttService mqttService;
+    private final JwtService jwtService;
+
+    @Autowired
+    public DeadLetterController(DeadLetterStore deadLetterStore, MqttService mqttService, JwtService jwtService) {
+        this.deadLetterStore = deadLetterStore;
+        this.mqttService = mqttService;
+        this.jwtService = jwtService;
+    }
+
+    @GetMapping
+    public ResponseEntity<?> getDeadLetters(@RequestParam(defaultValue = "0") long after,
+                                            @RequestParam(defaultValue = "50") int limit,
+                                            @RequestHeader("Authorization") String authHeader) {
+        if (!isAdmin(authHeader)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Admins only"));
+        }
+
+        List<DeadLetterStore.DeadLetter> page = deadLetterStore.page(after, Math.clamp(limit, 1, MAX_PAGE_SIZE));
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("items", page.stream().map(DeadLetterController::toJson).toList());
+        body.put("next", page.isEmpty() ? null : page.getLast().id());  // Pass as "after" for the next page
+        body.put("total", deadLetterStore.size());
+        return ResponseEntity.ok(body);
+    }
+
+    @PostMapping("replay")
+    public ResponseEntity<?> replayDeadLetters(@RequestBody Map<String, List<Long>> request,
+                                               @RequestHeader("Authorization") String authHeader) {
+        if (!isAdmin(authHeader)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Admins only"));
+        }
+
+        List<Long> ids = request.get("ids");
+        if (ids == null || ids.isEmpty()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "No dead letter IDs given"));
+        }
+        int replayed = mqttService.replayDeadLetters(ids);
+        return ResponseEntity.ok(Map.of("replayed", replayed, "missing", ids.size() - replayed));
+    }
+
+    private boolean isAdmin(String authHeader) {
+        String token = authHeader.replace("Bearer ", "");
+        return "admin".equals(jwtService.getRoleFromToken(token));
+    }
+
+    private static Map<String, Object> toJson(DeadLetterStore.DeadLetter deadLetter) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("id", deadLetter.id());
+        json.put("failed_at", deadLetter.failedAt().toString());
+        json.put("reason", deadLetter.reason().name().toLowerCase());
+        json.put("detail", deadLetter.detail());
+        json.put("device_id", deadLetter.message().deviceId());
+        json.put("method", deadLetter.message().method().getValue());
+        json.put("sender_group", deadLetter.message().senderGroup());
+        json.put("sender_id", deadLetter.message().senderId());
+        json.put("content_type", deadLetter.message().format().getContentType());
+        // Binary encodings don't survive as text, so they are shown base64-encoded
+        byte[] payload = deadLetter.message().payload();
+        json.put("payload", deadLetter.message().format() == PayloadFormat.JSON
+                ? new String(payload, StandardCharsets.UTF_8)
+                : Base64.getEncoder().encodeToString(payload));
+        return json;
+    }
+}
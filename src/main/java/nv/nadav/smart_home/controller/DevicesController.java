@@ -1,8 +1,10 @@
 package nv.nadav.smart_home.controller;
 
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import jakarta.validation.Valid;
 import nv.nadav.smart_home.config.SecurityConfig;
 import nv.nadav.smart_home.dto.DeviceDto;
@@ -10,38 +12,62 @@ import nv.nadav.smart_home.dto.DeviceUpdateDto;
 import nv.nadav.smart_home.exception.DeviceExistsException;
 import nv.nadav.smart_home.exception.DeviceNotFoundException;
 import nv.nadav.smart_home.exception.DeviceValidationException;
+import nv.nadav.smart_home.exception.DeviceVersionConflictException;
+import nv.nadav.smart_home.model.DeviceType;
+import nv.nadav.smart_home.repository.DeviceFilter;
+import nv.nadav.smart_home.serialization.DeviceCodec;
 import nv.nadav.smart_home.service.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Import;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static nv.nadav.smart_home.constants.Constants.DEFAULT_DEVICE_PAGE_SIZE;
+import static nv.nadav.smart_home.constants.Constants.MAX_DEVICE_BULK_UPDATE_SIZE;
+import static nv.nadav.smart_home.constants.Constants.MAX_DEVICE_IMPORT_SIZE;
+import static nv.nadav.smart_home.constants.Constants.MAX_DEVICE_PAGE_SIZE;
 
 @Import(SecurityConfig.class)
 @RestController
 @RequestMapping("/api/")
 public class DevicesController {
+    private static final String NDJSON = "application/x-ndjson";
 
     private final DeviceService deviceService;
     private final DeviceMetricsService deviceMetricsService;
     private final MqttService mqttService;
     private final JwtService jwtService;
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter deviceWriter;
 
     @Autowired
     public DevicesController(
             DeviceService deviceService,
             DeviceMetricsService deviceMetricsService,
             MqttService mqttService,
-            JwtService jwtService
+            JwtService jwtService,
+            ObjectMapper objectMapper
     ) {
         this.deviceService = deviceService;
         this.deviceMetricsService = deviceMetricsService;
         this.mqttService = mqttService;
         this.jwtService = jwtService;
+        this.objectMapper = objectMapper;
+        // Same mapper as the JSON list, but leaving the response stream open between devices
+        this.deviceWriter = objectMapper.writerFor(DeviceDto.class).without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
     }
 
     @GetMapping("ids")
@@ -50,12 +76,74 @@ public class DevicesController {
     }
 
     @GetMapping("devices")
-    public ResponseEntity<List<DeviceDto>> getAllDevices() {
-        List<DeviceDto> devices = deviceService.getAllDevices();
-        for (DeviceDto device : devices) {
-            deviceMetricsService.addDevice(device);
+    public ResponseEntity<?> getAllDevices(@RequestParam(required = false) Integer limit,
+                                           @RequestParam(required = false) String cursor,
+                                           @RequestParam(required = false) String room,
+                                           @RequestParam(required = false) String type,
+                                           @RequestParam(required = false) String status) {
+        if (room != null || type != null || status != null) {
+            if (limit != null || cursor != null) {
+                return ResponseEntity
+                        .badRequest()
+                        .body(Map.of("error", "Filters can't be combined with limit or cursor"));
+            }
+            DeviceFilter filter;
+            try {
+                filter = new DeviceFilter(room, type != null ? DeviceType.fromString(type) : null, status);
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity
+                        .badRequest()
+                        .body(Map.of("error", e.getMessage()));
+            }
+            List<DeviceDto> devices = deviceService.getDevicesMatching(filter, 0);
+            deviceMetricsService.addDevices(devices);
+            return ResponseEntity.ok(devices);
+        }
+
+        if (limit == null && cursor == null) {
+            List<DeviceDto> devices = deviceService.getAllDevices();
+            for (DeviceDto device : devices) {
+                deviceMetricsService.addDevice(device);
+            }
+            return ResponseEntity.ok(devices);
         }
-        return ResponseEntity.ok(devices);
+
+        int pageSize = limit != null ? limit : DEFAULT_DEVICE_PAGE_SIZE;
+        if (pageSize < 1 || pageSize > MAX_DEVICE_PAGE_SIZE) {
+            return ResponseEntity
+                    .badRequest()
+                    .body(Map.of("error", String.format("limit must be between 1 and %d", MAX_DEVICE_PAGE_SIZE)));
+        }
+        try {
+            DevicePage page = deviceService.getDevicePage(cursor, pageSize);
+            for (DeviceDto device : page.devices()) {
+                deviceMetricsService.addDevice(device);
+            }
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("devices", page.devices());
+            body.put("next_cursor", page.nextCursor());
+            return ResponseEntity.ok(body);
+        } catch (DeviceValidationException e) {
+            return ResponseEntity
+                    .badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    // Chosen over the list above by "Accept: application/x-ndjson". One device per line, written as it
+    // comes off the Mongo cursor, so memory use doesn't grow with the number of devices.
+    @GetMapping(value = "devices", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> streamDevices() {
+        StreamingResponseBody body = out -> deviceService.forEachDevice(device -> {
+            deviceMetricsService.addDevice(device);
+            try {
+                deviceWriter.writeValue(out, device);
+                out.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
     }
 
     @GetMapping("devices/{deviceId}")
@@ -63,7 +151,7 @@ public class DevicesController {
         try {
             DeviceDto device = deviceService.getDeviceById(deviceId);
             deviceMetricsService.addDevice(device);
-            return ResponseEntity.ok(device);
+            return ResponseEntity.ok().eTag(String.valueOf(device.getVersion())).body(device);
         } catch (DeviceNotFoundException e) {
             return ResponseEntity
                     .status(HttpStatus.NOT_FOUND)
@@ -76,9 +164,7 @@ public class DevicesController {
         try {
             DeviceDto createdDevice = deviceService.addDevice(newDevice);
             deviceMetricsService.addDevice(createdDevice);
-            ObjectMapper mapper = new ObjectMapper();
-            Map<String, Object> payload = mapper.convertValue(createdDevice, new TypeReference<>() {
-            });
+            Map<String, Object> payload = DeviceCodec.toPayload(createdDevice);
             mqttService.publishMqtt(payload, MqttService.TOPIC, createdDevice.getId(), MqttService.Method.POST);
             return ResponseEntity
                     .status(HttpStatus.CREATED)
@@ -94,6 +180,38 @@ public class DevicesController {
         }
     }
 
+    // 201 if every device was added, 207 if only some were, 400 if none were
+    @PostMapping("devices/bulk")
+    public ResponseEntity<?> addDevices(@RequestBody List<DeviceDto> newDevices) {
+        if (newDevices.isEmpty() || newDevices.size() > MAX_DEVICE_IMPORT_SIZE) {
+            return ResponseEntity
+                    .badRequest()
+                    .body(Map.of("error", String.format("Import between 1 and %d devices", MAX_DEVICE_IMPORT_SIZE)));
+        }
+        DeviceImportResult result = deviceService.addDevices(newDevices);
+        deviceMetricsService.addDevices(result.added());
+        // Publishing is asynchronous, so the announcements go out back to back without waiting on the broker
+        for (DeviceDto device : result.added()) {
+            Map<String, Object> payload = DeviceCodec.toPayload(device);
+            mqttService.publishMqtt(payload, MqttService.TOPIC, device.getId(), MqttService.Method.POST);
+        }
+
+        List<Map<String, Object>> failed = result.failed().stream().map(failure -> {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("index", failure.index());
+            entry.put("id", failure.deviceId());
+            entry.put("error", failure.error());
+            return entry;
+        }).toList();
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("added", result.added());
+        body.put("failed", failed);
+        HttpStatus status = failed.isEmpty() ? HttpStatus.CREATED
+                : result.added().isEmpty() ? HttpStatus.BAD_REQUEST
+                : HttpStatus.MULTI_STATUS;
+        return ResponseEntity.status(status).body(body);
+    }
+
     @DeleteMapping("devices/{deviceId}")
     public ResponseEntity<?> deleteDevice(@PathVariable String deviceId,
                                           @RequestHeader("Authorization") String authHeader) {
@@ -115,18 +233,26 @@ public class DevicesController {
     }
 
     @PutMapping("devices/{deviceId}")
-    public ResponseEntity<?> updateDevice(@PathVariable String deviceId, @RequestBody String json) {
+    public ResponseEntity<?> updateDevice(@PathVariable String deviceId, @RequestBody String json,
+                                          @RequestHeader(value = "If-Match", required = false) String ifMatch) {
         try {
             DeviceDto device = deviceService.getDeviceById(deviceId);
             deviceMetricsService.addDevice(device);
             DeviceUpdateDto update = DeviceUpdateDto.deserialize(json, device.getType());
-            deviceService.updateDevice(deviceId, update);
+            Long expectedVersion = parseVersion(ifMatch);
+            DeviceDto updated = expectedVersion == null
+                    ? deviceService.updateDevice(deviceId, update)
+                    : deviceService.updateDevice(deviceId, update, expectedVersion);
             deviceMetricsService.updateDevice(DeviceUpdateDto.fromDto(device), update, device.getType(), deviceId);
-            ObjectMapper mapper = new ObjectMapper();
-            Map<String, Object> payload = mapper.convertValue(update, new TypeReference<>() {
-            });
+            Map<String, Object> payload = DeviceCodec.toPayload(update);
             mqttService.publishMqtt(payload, MqttService.TOPIC, deviceId, MqttService.Method.UPDATE);
-            return ResponseEntity.ok(Map.of("success", "Device updated successfully"));
+            return ResponseEntity.ok()
+                    .eTag(String.valueOf(updated.getVersion()))
+                    .body(Map.of("success", "Device updated successfully"));
+        } catch (DeviceVersionConflictException e) {
+            return ResponseEntity
+                    .status(HttpStatus.CONFLICT)
+                    .body(Map.of("error", e.getMessage()));
         } catch (DeviceNotFoundException e) {
             return ResponseEntity
                     .status(HttpStatus.NOT_FOUND)
@@ -137,4 +263,104 @@ public class DevicesController {
                     .body(Map.of("error", e.getMessage()));
         }
     }
+
+    // One update for many devices, picked by ID or by filter:
+    // {"ids": ["light1", ...], "update": {...}} or {"filter": {"room": ..., "type": ..., "status": ...}, "update": {...}}
+    @PutMapping("devices/bulk")
+    public ResponseEntity<?> updateDevices(@RequestBody String json) {
+        try {
+            JsonNode request = objectMapper.readTree(json);
+            JsonNode updateJson = request.path("update");
+            if (!updateJson.isObject()) {
+                return ResponseEntity.badRequest().body(Map.of("error", "update must be an object"));
+            }
+            List<DeviceDto> devices;
+            List<String> notFound = new ArrayList<>();
+            if (request.hasNonNull("ids")) {
+                JsonNode ids = request.get("ids");
+                if (!ids.isArray() || ids.isEmpty() || ids.size() > MAX_DEVICE_BULK_UPDATE_SIZE) {
+                    return ResponseEntity
+                            .badRequest()
+                            .body(Map.of("error", String.format("ids must list between 1 and %d devices",
+                                    MAX_DEVICE_BULK_UPDATE_SIZE)));
+                }
+                List<String> deviceIds = new ArrayList<>(ids.size());
+                for (JsonNode id : ids) {
+                    if (!id.isTextual()) {
+                        return ResponseEntity.badRequest().body(Map.of("error", "ids must be strings"));
+                    }
+                    deviceIds.add(id.asText());
+                }
+                Map<String, DeviceDto> found = deviceService.getDevicesByIds(deviceIds);
+                devices = List.copyOf(found.values());
+                deviceIds.stream().filter(deviceId -> !found.containsKey(deviceId)).forEach(notFound::add);
+            } else if (request.path("filter").isObject()) {
+                DeviceFilter filter = objectMapper.treeToValue(request.get("filter"), DeviceFilter.class);
+                if (filter.isEmpty()) {
+                    return ResponseEntity
+                            .badRequest()
+                            .body(Map.of("error", "filter must set at least one of room, type and status"));
+                }
+                // One extra device tells the filter matched too many
+                devices = deviceService.getDevicesMatching(filter, MAX_DEVICE_BULK_UPDATE_SIZE + 1);
+                if (devices.size() > MAX_DEVICE_BULK_UPDATE_SIZE) {
+                    return ResponseEntity
+                            .badRequest()
+                            .body(Map.of("error", String.format("filter matches more than %d devices",
+                                    MAX_DEVICE_BULK_UPDATE_SIZE)));
+                }
+            } else {
+                return ResponseEntity.badRequest().body(Map.of("error", "Either ids or filter is required"));
+            }
+
+            List<DeviceDto> updated = List.of();
+            if (!devices.isEmpty()) {
+                Set<DeviceType> types = devices.stream().map(DeviceDto::getType).collect(Collectors.toSet());
+                // Parameters are read per device type, so a shared parameters update needs a single type
+                if (updateJson.has("parameters") && types.size() > 1) {
+                    return ResponseEntity
+                            .badRequest()
+                            .body(Map.of("error", "parameters can only be updated on devices of one type"));
+                }
+                DeviceUpdateDto update = DeviceCodec.readUpdate(updateJson, types.iterator().next());
+                deviceMetricsService.addDevices(devices);
+                updated = deviceService.updateDevices(devices.stream().map(DeviceDto::getId).toList(), update);
+
+                Map<String, DeviceDto> previous = devices.stream()
+                        .collect(Collectors.toMap(DeviceDto::getId, Function.identity()));
+                for (DeviceDto device : updated) {
+                    DeviceDto before = previous.get(device.getId());
+                    deviceMetricsService.updateDevice(DeviceUpdateDto.fromDto(before), update, before.getType(), device.getId());
+                }
+                // One message per device, as subscribers to a device's topic expect. Publishing is asynchronous,
+                // so they go out back to back without waiting on the broker.
+                Map<String, Object> payload = DeviceCodec.toPayload(update);
+                for (DeviceDto device : updated) {
+                    mqttService.publishMqtt(payload, MqttService.TOPIC, device.getId(), MqttService.Method.UPDATE);
+                }
+            }
+
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("updated", updated.stream().map(DeviceDto::getId).toList());
+            body.put("not_found", notFound);
+            return ResponseEntity.ok(body);
+        } catch (DeviceValidationException | IOException e) {
+            return ResponseEntity
+                    .badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    // If-Match carries the ETag from a GET: the device version, quoted. "*" matches any version.
+    static Long parseVersion(String ifMatch) {
+        if (ifMatch == null || ifMatch.isBlank() || ifMatch.trim().equals("*")) {
+            return null;
+        }
+        String version = ifMatch.trim().replaceFirst("^W/", "").replace("\"", "");
+        try {
+            return Long.parseLong(version);
+        } catch (NumberFormatException e) {
+            throw new DeviceValidationException("If-Match must be a device version, got " + ifMatch);
+        }
+    }
 }
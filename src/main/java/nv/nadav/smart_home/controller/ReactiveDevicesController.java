@@ -0,0 +1,147 @@
+package nv.nadav.smart_home.controller;
+
+import jakarta.validation.Valid;
+import nv.nadav.smart_home.config.SecurityConfig;
+import nv.nadav.smart_home.dto.DeviceDto;
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.exception.DeviceExistsException;
+import nv.nadav.smart_home.exception.DeviceNotFoundException;
+import nv.nadav.smart_home.exception.DeviceValidationException;
+import nv.nadav.smart_home.exception.DeviceVersionConflictException;
+import nv.nadav.smart_home.serialization.DeviceCodec;
+import nv.nadav.smart_home.service.*;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.util.Map;
+
+// DevicesController's device endpoints on ReactiveDeviceService, so a request holds no thread while waiting on
+// Mongo. Metrics still use the blocking Redis client, on the bounded elastic scheduler
+@Import(SecurityConfig.class)
+@RestController
+@RequestMapping("/api/reactive/")
+@ConditionalOnProperty(prefix = "device.reactive", name = "enabled", havingValue = "true")
+public class ReactiveDevicesController {
+    private static final String NDJSON = "application/x-ndjson";
+
+    private final ReactiveDeviceService deviceService;
+    private final DeviceMetricsService deviceMetricsService;
+    private final MqttService mqttService;
+    private final JwtService jwtService;
+
+    public ReactiveDevicesController(
+            ReactiveDeviceService deviceService,
+            DeviceMetricsService deviceMetricsService,
+            MqttService mqttService,
+            JwtService jwtService
+    ) {
+        this.deviceService = deviceService;
+        this.deviceMetricsService = deviceMetricsService;
+        this.mqttService = mqttService;
+        this.jwtService = jwtService;
+    }
+
+    // A JSON array by default, or one device per line as they come off the cursor with "Accept: application/x-ndjson"
+    @GetMapping(value = "devices", produces = {MediaType.APPLICATION_JSON_VALUE, NDJSON})
+    public Flux<DeviceDto> getAllDevices() {
+        return deviceService.getAllDevices()
+                .publishOn(Schedulers.boundedElastic())
+                .doOnNext(deviceMetricsService::addDevice);
+    }
+
+    @GetMapping("devices/{deviceId}")
+    public Mono<ResponseEntity<?>> getDeviceById(@PathVariable("deviceId") String deviceId) {
+        return deviceService.getDeviceById(deviceId)
+                .<ResponseEntity<?>>flatMap(device -> metrics(() -> deviceMetricsService.addDevice(device))
+                        .thenReturn(ResponseEntity.ok().eTag(String.valueOf(device.getVersion())).body(device)))
+                .onErrorResume(DeviceNotFoundException.class, _ -> Mono.just(notFound(deviceId)));
+    }
+
+    @PostMapping("devices")
+    public Mono<ResponseEntity<?>> addDevice(@Valid @RequestBody DeviceDto newDevice) {
+        return deviceService.addDevice(newDevice)
+                .<ResponseEntity<?>>flatMap(createdDevice -> metrics(() -> deviceMetricsService.addDevice(createdDevice))
+                        .then(Mono.fromRunnable(() -> mqttService.publishMqtt(DeviceCodec.toPayload(createdDevice),
+                                MqttService.TOPIC, createdDevice.getId(), MqttService.Method.POST)))
+                        .thenReturn(ResponseEntity.status(HttpStatus.CREATED).body(createdDevice)))
+                .onErrorResume(DeviceExistsException.class, _ -> Mono.just(ResponseEntity
+                        .badRequest()
+                        .body(Map.of("error", String.format("Device ID %s already exists", newDevice.getId())))))
+                .onErrorResume(DeviceValidationException.class, e -> Mono.just(badRequest(e.getMessage())));
+    }
+
+    @DeleteMapping("devices/{deviceId}")
+    public Mono<ResponseEntity<?>> deleteDevice(@PathVariable String deviceId,
+                                                @RequestHeader("Authorization") String authHeader) {
+        String token = authHeader.replace("Bearer ", "");
+        String role = jwtService.getRoleFromToken(token);
+
+        if (!"admin".equals(role)) {
+            return Mono.just(ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Admins only")));
+        }
+
+        return deviceService.deleteDeviceById(deviceId)
+                .then(metrics(() -> deviceMetricsService.deleteDevice(deviceId)))  // Allows adding a new device with old id
+                .then(Mono.fromRunnable(() ->
+                        mqttService.publishMqtt(Map.of(), MqttService.TOPIC, deviceId, MqttService.Method.DELETE)))
+                .<ResponseEntity<?>>thenReturn(ResponseEntity.ok(Map.of("output", "Device was deleted from the database")))
+                .onErrorResume(DeviceNotFoundException.class, _ -> Mono.just(ResponseEntity
+                        .status(HttpStatus.NOT_FOUND)
+                        .body(Map.of("error", "Device ID " + deviceId + " not found"))));
+    }
+
+    @PutMapping("devices/{deviceId}")
+    public Mono<ResponseEntity<?>> updateDevice(@PathVariable String deviceId, @RequestBody String json,
+                                                @RequestHeader(value = "If-Match", required = false) String ifMatch) {
+        return deviceService.getDeviceById(deviceId)
+                .<ResponseEntity<?>>flatMap(device -> {
+                    DeviceUpdateDto update;
+                    try {
+                        update = DeviceUpdateDto.deserialize(json, device.getType());
+                    } catch (IOException e) {
+                        return Mono.error(new DeviceValidationException(e.getMessage()));
+                    }
+                    return deviceService.updateDevice(deviceId, update, DevicesController.parseVersion(ifMatch))
+                            .flatMap(updated -> metrics(() -> {
+                                deviceMetricsService.addDevice(device);
+                                deviceMetricsService.updateDevice(DeviceUpdateDto.fromDto(device), update,
+                                        device.getType(), deviceId);
+                            })
+                                    .then(Mono.fromRunnable(() -> mqttService.publishMqtt(DeviceCodec.toPayload(update),
+                                            MqttService.TOPIC, deviceId, MqttService.Method.UPDATE)))
+                                    .thenReturn(ResponseEntity.ok()
+                                            .eTag(String.valueOf(updated.getVersion()))
+                                            .body(Map.of("success", "Device updated successfully"))));
+                })
+                .onErrorResume(DeviceVersionConflictException.class, e -> Mono.just(ResponseEntity
+                        .status(HttpStatus.CONFLICT)
+                        .body(Map.of("error", e.getMessage()))))
+                .onErrorResume(DeviceNotFoundException.class, _ -> Mono.just(notFound(deviceId)))
+                .onErrorResume(DeviceValidationException.class, e -> Mono.just(badRequest(e.getMessage())));
+    }
+
+    // The Redis calls behind device metrics block, so they are kept off the threads that serve Mongo results
+    private static Mono<Void> metrics(Runnable record) {
+        return Mono.fromRunnable(record).subscribeOn(Schedulers.boundedElastic()).then();
+    }
+
+    private static ResponseEntity<?> notFound(String deviceId) {
+        return ResponseEntity
+                .status(HttpStatus.NOT_FOUND)
+                .body(Map.of("error", String.format("Device ID %s not found", deviceId)));
+    }
+
+    private static ResponseEntity<?> badRequest(String message) {
+        return ResponseEntity
+                .badRequest()
+                .body(Map.of("error", message));
+    }
+}
@@ -23,6 +23,8 @@ public class DeviceDto {
     private String status;
     @NotNull(message = "Parameters must be provided")
     private DeviceParameters parameters;
+    // Read-only: set from the stored device, ignored on input
+    private Long version;
 
     public String getId() {
         return id;
@@ -72,6 +74,14 @@ public class DeviceDto {
         this.parameters = parameters;
     }
 
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
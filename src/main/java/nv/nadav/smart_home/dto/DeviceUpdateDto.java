@@ -1,12 +1,11 @@
 package nv.nadav.smart_home.dto;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import nv.nadav.smart_home.model.DeviceType;
 import nv.nadav.smart_home.model.parameters.DeviceParameters;
 import nv.nadav.smart_home.serialization.DelegatingParametersDeserializer;
-import nv.nadav.smart_home.serialization.DeviceParametersDeserializer;
+import nv.nadav.smart_home.serialization.DeviceCodec;
 
 import java.io.IOException;
 import java.util.Map;
@@ -64,13 +63,7 @@ public class DeviceUpdateDto {
     }
 
     public static DeviceUpdateDto deserialize(String json, DeviceType deviceType) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        DelegatingParametersDeserializer.delegate.set(new DeviceParametersDeserializer(deviceType));
-        try {
-            return mapper.readValue(json, DeviceUpdateDto.class);
-        } finally {
-            DelegatingParametersDeserializer.delegate.remove();
-        }
+        return DeviceCodec.readUpdate(json, deviceType);
     }
 
     @Override
@@ -0,0 +1,11 @@
+package nv.nadav.smart_home.exception;
+
+public class DeviceVersionConflictException extends RuntimeException {
+    public DeviceVersionConflictException() {
+        super();
+    }
+
+    public DeviceVersionConflictException(String message) {
+        super(message);
+    }
+}
@@ -23,6 +23,8 @@ public class Device {
     private String room;
     private String status;
     private DeviceParameters parameters;
+    // Bumped by every write; not part of equality, since it describes the stored copy, not the device
+    private Long version;
 
     public ObjectId get_id() {
         return _id;
@@ -80,6 +82,14 @@ public class Device {
         this.parameters = parameters;
     }
 
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     public static Device fromDto(DeviceDto deviceDto) {
         Device newDevice = new Device();
         newDevice.setDeviceId(deviceDto.getId());
@@ -0,0 +1,17 @@
+package nv.nadav.smart_home.repository;
+
+import nv.nadav.smart_home.model.Device;
+import nv.nadav.smart_home.model.DeviceType;
+
+// Null fields match anything, so an empty filter matches every device
+public record DeviceFilter(String room, DeviceType type, String status) {
+    public boolean isEmpty() {
+        return room == null && type == null && status == null;
+    }
+
+    public boolean matches(Device device) {
+        return (room == null || room.equals(device.getRoom()))
+                && (type == null || type == device.getType())
+                && (status == null || status.equals(device.getStatus()));
+    }
+}
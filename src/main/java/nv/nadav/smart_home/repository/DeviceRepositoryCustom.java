@@ -0,0 +1,46 @@
+package nv.nadav.smart_home.repository;
+
+import com.mongodb.bulk.BulkWriteError;
+import nv.nadav.smart_home.model.Device;
+
+import org.bson.types.ObjectId;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+public interface DeviceRepositoryCustom {
+    // One findAndModify that sets the fields and bumps the version, only if the device is still at
+    // expectedVersion. Empty if no device has that ID and version
+    Optional<Device> updateFields(String deviceId, long expectedVersion, Map<String, Object> fields);
+
+    // One unconditional bulk write, keyed by device ID. Bumps each version
+    void updateFieldsAll(Map<String, Map<String, Object>> fieldsByDeviceId);
+
+    // One unconditional updateMany that bumps each version. Returns how many devices matched
+    long updateFieldsMany(Collection<String> deviceIds, Map<String, Object> fields);
+
+    // The first limit IDs in id order, from a compound index without loading any document. A limit of 0 means
+    // no limit
+    List<String> findMatchingDeviceIds(DeviceFilter filter, int limit);
+
+    // Only creates what is missing, so it is safe on every startup
+    void ensureIndexes();
+
+    // Read from the unique index on id, without loading any document
+    List<String> findAllDeviceIds();
+
+    // Read from the unique index, like findAllDeviceIds
+    List<String> findExistingDeviceIds(Collection<String> deviceIds);
+
+    // Unordered, so one failing insert doesn't stop the others. Failures are keyed by position in devices
+    Map<Integer, BulkWriteError> insertUnordered(List<Device> devices);
+
+    // In _id order after the given ID, or from the first device if it is null
+    List<Device> findPage(ObjectId after, int limit);
+
+    // Read lazily from a Mongo cursor, so the stream must be closed
+    Stream<Device> streamAll();
+}
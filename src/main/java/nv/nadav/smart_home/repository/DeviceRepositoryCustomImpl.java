@@ -0,0 +1,197 @@
+package nv.nadav.smart_home.repository;
+
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import nv.nadav.smart_home.model.Device;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+public class DeviceRepositoryCustomImpl implements DeviceRepositoryCustom {
+    private static final int STREAM_BATCH_SIZE = 500;
+    // Every combination of room, type and status is a prefix of one of these, so any filter is an index
+    // range scan. The trailing id makes the scan covered: matching IDs come from index keys alone.
+    private static final List<IndexModel> FILTER_INDEXES = List.of(
+            new IndexModel(Indexes.ascending("room", "type", "status", "id")),
+            new IndexModel(Indexes.ascending("type", "status", "id")),
+            new IndexModel(Indexes.ascending("status", "room", "id"))
+    );
+    static final Bson ID_ONLY = Projections.fields(Projections.include("id"), Projections.excludeId());
+    private final MongoTemplate mongoTemplate;
+
+    public DeviceRepositoryCustomImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public Optional<Device> updateFields(String deviceId, long expectedVersion, Map<String, Object> fields) {
+        // $set touches only the given fields, so concurrent updates to other fields aren't lost
+        return Optional.ofNullable(mongoTemplate.findAndModify(
+                byVersion(deviceId, expectedVersion),
+                toUpdate(fields),
+                FindAndModifyOptions.options().returnNew(true),
+                Device.class
+        ));
+    }
+
+    @Override
+    public void updateFieldsAll(Map<String, Map<String, Object>> fieldsByDeviceId) {
+        if (fieldsByDeviceId.isEmpty()) {
+            return;
+        }
+        // Unordered, since each update targets a different document
+        BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Device.class);
+        fieldsByDeviceId.forEach((deviceId, fields) -> operations.updateOne(byDeviceId(deviceId), toUpdate(fields)));
+        operations.execute();
+    }
+
+    @Override
+    public long updateFieldsMany(Collection<String> deviceIds, Map<String, Object> fields) {
+        if (deviceIds.isEmpty()) {
+            return 0;
+        }
+        return mongoTemplate.updateMulti(
+                Query.query(Criteria.where("deviceId").in(deviceIds)),
+                toUpdate(fields),
+                Device.class
+        ).getMatchedCount();
+    }
+
+    @Override
+    public List<String> findMatchingDeviceIds(DeviceFilter filter, int limit) {
+        List<String> ids = new ArrayList<>();
+        collection()
+                .find(matching(filter))
+                .projection(ID_ONLY)
+                .forEach(document -> ids.add(document.getString("id")));
+        // Sorted and cut here rather than in the query: a sort on id could steer the planner onto the unique
+        // id index, which can only apply the filter by fetching documents
+        ids.sort(null);
+        return limit > 0 && ids.size() > limit ? ids.subList(0, limit) : ids;
+    }
+
+    @Override
+    public void ensureIndexes() {
+        MongoCollection<Document> devices = collection();
+        devices.createIndexes(FILTER_INDEXES);
+        // Declared on Device, but index auto-creation is off. Last, since existing duplicates make it fail.
+        devices.createIndex(Indexes.ascending("id"), new IndexOptions().unique(true));
+    }
+
+    @Override
+    public List<String> findAllDeviceIds() {
+        // Sorting on the indexed field gets the planner onto the index, and projecting nothing else makes
+        // the query covered: IDs come from index keys, no document is fetched. A hint would do the same,
+        // but fails outright if the index is missing.
+        List<String> ids = new ArrayList<>();
+        collection()
+                .find()
+                .projection(ID_ONLY)
+                .sort(Sorts.ascending("id"))
+                .forEach(document -> ids.add(document.getString("id")));
+        return ids;
+    }
+
+    @Override
+    public List<String> findExistingDeviceIds(Collection<String> deviceIds) {
+        List<String> ids = new ArrayList<>();
+        if (deviceIds.isEmpty()) {
+            return ids;
+        }
+        collection()
+                .find(Filters.in("id", deviceIds))
+                .projection(ID_ONLY)
+                .forEach(document -> ids.add(document.getString("id")));
+        return ids;
+    }
+
+    @Override
+    public Map<Integer, BulkWriteError> insertUnordered(List<Device> devices) {
+        Map<Integer, BulkWriteError> errors = new HashMap<>();
+        if (devices.isEmpty()) {
+            return errors;
+        }
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Device.class).insert(devices).execute();
+        } catch (BulkOperationException e) {
+            // Unordered, so every device without an error here was inserted
+            e.getErrors().forEach(error -> errors.put(error.getIndex(), error));
+        }
+        return errors;
+    }
+
+    @Override
+    public List<Device> findPage(ObjectId after, int limit) {
+        // Keyset paging: _id is indexed and unique, so each page is an index range scan however deep it is
+        Query query = new Query().with(Sort.by("_id")).limit(limit);
+        if (after != null) {
+            query.addCriteria(Criteria.where("_id").gt(after));
+        }
+        return mongoTemplate.find(query, Device.class);
+    }
+
+    @Override
+    public Stream<Device> streamAll() {
+        return mongoTemplate.stream(new Query().with(Sort.by("_id")).cursorBatchSize(STREAM_BATCH_SIZE), Device.class);
+    }
+
+    private MongoCollection<Document> collection() {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(Device.class));
+    }
+
+    static Bson matching(DeviceFilter filter) {
+        List<Bson> conditions = new ArrayList<>();
+        if (filter.room() != null) {
+            conditions.add(Filters.eq("room", filter.room()));
+        }
+        if (filter.type() != null) {
+            // Stored lowercase by DeviceWriteConverter
+            conditions.add(Filters.eq("type", filter.type().name().toLowerCase()));
+        }
+        if (filter.status() != null) {
+            conditions.add(Filters.eq("status", filter.status()));
+        }
+        return conditions.isEmpty() ? Filters.empty() : Filters.and(conditions);
+    }
+
+    private static Query byDeviceId(String deviceId) {
+        return Query.query(Criteria.where("deviceId").is(deviceId));
+    }
+
+    static Query byVersion(String deviceId, long expectedVersion) {
+        Criteria version = Criteria.where("version").is(expectedVersion);
+        if (expectedVersion == 0) {
+            // Devices stored before versioning have no version field
+            version = new Criteria().orOperator(version, Criteria.where("version").exists(false));
+        }
+        return Query.query(Criteria.where("deviceId").is(deviceId).andOperator(version));
+    }
+
+    static Update toUpdate(Map<String, Object> fields) {
+        Update update = new Update();
+        fields.forEach(update::set);
+        return update.inc("version", 1);
+    }
+}
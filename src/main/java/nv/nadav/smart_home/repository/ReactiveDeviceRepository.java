@@ -0,0 +1,13 @@
+package nv.nadav.smart_home.repository;
+
+import nv.nadav.smart_home.model.Device;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Mono;
+
+public interface ReactiveDeviceRepository extends ReactiveMongoRepository<Device, ObjectId>, ReactiveDeviceRepositoryCustom {
+
+    Mono<Device> findByDeviceId(String deviceId);
+
+    Mono<Boolean> existsByDeviceId(String deviceId);
+}
@@ -0,0 +1,16 @@
+package nv.nadav.smart_home.repository;
+
+import nv.nadav.smart_home.model.Device;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+
+// Non-blocking counterpart of DeviceRepositoryCustom
+public interface ReactiveDeviceRepositoryCustom {
+    // Completes empty when the device is missing or not at expectedVersion
+    Mono<Device> updateFields(String deviceId, long expectedVersion, Map<String, Object> fields);
+
+    // In _id order, fetched as the subscriber asks for them
+    Flux<Device> streamAll();
+}
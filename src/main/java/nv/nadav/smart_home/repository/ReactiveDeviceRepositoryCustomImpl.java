@@ -0,0 +1,34 @@
+package nv.nadav.smart_home.repository;
+
+import nv.nadav.smart_home.model.Device;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+
+public class ReactiveDeviceRepositoryCustomImpl implements ReactiveDeviceRepositoryCustom {
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    public ReactiveDeviceRepositoryCustomImpl(ReactiveMongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public Mono<Device> updateFields(String deviceId, long expectedVersion, Map<String, Object> fields) {
+        return mongoTemplate.findAndModify(
+                DeviceRepositoryCustomImpl.byVersion(deviceId, expectedVersion),
+                DeviceRepositoryCustomImpl.toUpdate(fields),
+                FindAndModifyOptions.options().returnNew(true),
+                Device.class
+        );
+    }
+
+    @Override
+    public Flux<Device> streamAll() {
+        return mongoTemplate.find(new Query().with(Sort.by("_id")), Device.class);
+    }
+}
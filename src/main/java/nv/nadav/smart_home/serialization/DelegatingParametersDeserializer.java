@@ -1,25 +1,24 @@
 package nv.nadav.smart_home.serialization;
 
-import com.fasterxml.jackson.core.JacksonException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
+import nv.nadav.smart_home.model.DeviceType;
 import nv.nadav.smart_home.model.parameters.DeviceParameters;
 
 import java.io.IOException;
 
 public class DelegatingParametersDeserializer extends JsonDeserializer<DeviceParameters> {
 
-    public static final ThreadLocal<JsonDeserializer<DeviceParameters>> delegate = new ThreadLocal<>();
-
     @Override
     public DeviceParameters deserialize(JsonParser jsonParser, DeserializationContext deserializationContext)
             throws IOException {
-        JsonDeserializer<DeviceParameters> injected = delegate.get();
-        if (injected == null) {
-            throw new IllegalStateException("No delegate deserializer set");
+        // Set per reader by DeviceCodec, so no per-thread state is needed
+        DeviceType type = (DeviceType) deserializationContext.getAttribute(DeviceCodec.DEVICE_TYPE_ATTRIBUTE);
+        if (type == null) {
+            throw new IllegalStateException("No device type set");
         }
 
-        return injected.deserialize(jsonParser, deserializationContext);
+        return DeviceParametersDeserializer.read(jsonParser, deserializationContext, type);
     }
 }
@@ -0,0 +1,122 @@
+package nv.nadav.smart_home.serialization;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.exc.MismatchedInputException;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import nv.nadav.smart_home.dto.DeviceDto;
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.model.DeviceType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+// Pre-built readers and writers, one set per PayloadFormat. They are immutable and thread-safe, which keeps mapper
+// setup off the request and message paths
+public final class DeviceCodec {
+    // Tells the parameters deserializer which device type an update is for
+    public static final String DEVICE_TYPE_ATTRIBUTE = "smart_home.device_type";
+
+    private static final TypeReference<Map<String, Object>> PAYLOAD_TYPE = new TypeReference<>() {
+    };
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Map<PayloadFormat, FormatCodec> CODECS = new EnumMap<>(PayloadFormat.class);
+
+    static {
+        CODECS.put(PayloadFormat.JSON, new FormatCodec(MAPPER));
+        CODECS.put(PayloadFormat.CBOR, new FormatCodec(new CBORMapper()));
+        CODECS.put(PayloadFormat.SMILE, new FormatCodec(new SmileMapper()));
+    }
+
+    private DeviceCodec() {
+    }
+
+    public static DeviceDto readDevice(byte[] payload) throws IOException {
+        return readDevice(payload, PayloadFormat.JSON);
+    }
+
+    public static DeviceDto readDevice(byte[] payload, PayloadFormat format) throws IOException {
+        return CODECS.get(format).deviceReader.readValue(payload);
+    }
+
+    public static DeviceUpdateDto readUpdate(byte[] payload, DeviceType type) throws IOException {
+        return readUpdate(payload, type, PayloadFormat.JSON);
+    }
+
+    public static DeviceUpdateDto readUpdate(byte[] payload, DeviceType type, PayloadFormat format) throws IOException {
+        return CODECS.get(format).updateReaders.get(type).readValue(payload);
+    }
+
+    public static DeviceUpdateDto readUpdate(String json, DeviceType type) throws IOException {
+        return CODECS.get(PayloadFormat.JSON).updateReaders.get(type).readValue(json);
+    }
+
+    // An array of updates, each naming its device in an id field. Left as trees, since parameters are read by
+    // device type
+    public static List<BulkUpdate> readBulkUpdate(byte[] payload, PayloadFormat format) throws IOException {
+        JsonNode root = CODECS.get(format).treeReader.readTree(payload);
+        if (root == null || !root.isArray()) {
+            throw MismatchedInputException.from(null, BulkUpdate.class, "Bulk update must be an array");
+        }
+        List<BulkUpdate> updates = new ArrayList<>(root.size());
+        for (JsonNode element : root) {
+            if (!(element instanceof ObjectNode update) || !update.path("id").isTextual()) {
+                throw MismatchedInputException.from(null, BulkUpdate.class, "Each bulk update needs a string id");
+            }
+            String deviceId = update.remove("id").asText();
+            updates.add(new BulkUpdate(deviceId, update));
+        }
+        return updates;
+    }
+
+    public static DeviceUpdateDto readUpdate(JsonNode update, DeviceType type) throws IOException {
+        return CODECS.get(PayloadFormat.JSON).updateReaders.get(type).readValue(update);
+    }
+
+    public static byte[] writeTree(JsonNode tree, PayloadFormat format) throws JsonProcessingException {
+        return CODECS.get(format).treeWriter.writeValueAsBytes(tree);
+    }
+
+    public static byte[] writePayload(Map<String, Object> payload) throws JsonProcessingException {
+        return writePayload(payload, PayloadFormat.JSON);
+    }
+
+    public static byte[] writePayload(Map<String, Object> payload, PayloadFormat format) throws JsonProcessingException {
+        return CODECS.get(format).payloadWriter.writeValueAsBytes(payload);
+    }
+
+    public static Map<String, Object> toPayload(Object value) {
+        return MAPPER.convertValue(value, PAYLOAD_TYPE);
+    }
+
+    public record BulkUpdate(String deviceId, JsonNode update) {
+    }
+
+    private static final class FormatCodec {
+        private final ObjectReader deviceReader;
+        private final ObjectReader treeReader;
+        private final ObjectWriter payloadWriter;
+        private final ObjectWriter treeWriter;
+        private final Map<DeviceType, ObjectReader> updateReaders = new EnumMap<>(DeviceType.class);
+
+        private FormatCodec(ObjectMapper mapper) {
+            deviceReader = mapper.readerFor(DeviceDto.class);
+            treeReader = mapper.reader();
+            payloadWriter = mapper.writerFor(PAYLOAD_TYPE);
+            treeWriter = mapper.writer();
+            for (DeviceType type : DeviceType.values()) {
+                updateReaders.put(type, mapper.readerFor(DeviceUpdateDto.class)
+                        .withAttribute(DEVICE_TYPE_ATTRIBUTE, type));
+            }
+        }
+    }
+}
@@ -1,14 +1,12 @@
 package nv.nadav.smart_home.serialization;
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import nv.nadav.smart_home.dto.DeviceDto;
 import nv.nadav.smart_home.model.DeviceType;
-import nv.nadav.smart_home.model.parameters.*;
 
 import java.io.IOException;
 
@@ -20,29 +18,59 @@ public class DeviceDtoDeserializer extends StdDeserializer<DeviceDto> {
 
     @Override
     public DeviceDto deserialize(JsonParser parser, DeserializationContext context) throws IOException {
-        ObjectMapper mapper = (ObjectMapper) parser.getCodec();
-        ObjectNode node = mapper.readTree(parser);
+        DeviceDto dto = new DeviceDto();
+        // Parameters can only be typed once "type" is known; buffer them if they come first
+        TokenBuffer bufferedParameters = null;
 
-        DeviceType type = DeviceType.fromString(node.get("type").asText());
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_OBJECT) {
+            token = parser.nextToken();
+        }
+        for (; token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "id" -> dto.setId(readString(parser, context));
+                case "type" -> dto.setType(readType(parser, context));
+                case "name" -> dto.setName(readString(parser, context));
+                case "room" -> dto.setRoom(readString(parser, context));
+                case "status" -> dto.setStatus(readString(parser, context));
+                case "parameters" -> {
+                    if (dto.getType() != null) {
+                        dto.setParameters(DeviceParametersDeserializer.read(parser, context, dto.getType()));
+                    } else {
+                        bufferedParameters = context.bufferAsCopyOfValue(parser);
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
 
-        DeviceDto dto = new DeviceDto();
-        dto.setType(type);
-        dto.setStatus(node.get("status").asText());
-        dto.setId(node.get("id").asText());
-        dto.setName(node.get("name").asText());
-        dto.setRoom(node.get("room").asText());
-
-        JsonNode parametersNode = node.get("parameters");
-
-        DeviceParameters parameters = switch (type) {
-            case LIGHT -> mapper.treeToValue(parametersNode, LightParameters.class);
-            case WATER_HEATER -> mapper.treeToValue(parametersNode, WaterHeaterParameters.class);
-            case AIR_CONDITIONER -> mapper.treeToValue(parametersNode, AirConditionerParameters.class);
-            case DOOR_LOCK -> mapper.treeToValue(parametersNode, DoorLockParameters.class);
-            case CURTAIN -> mapper.treeToValue(parametersNode, CurtainParameters.class);
-        };
-
-        dto.setParameters(parameters);
+        if (bufferedParameters != null && dto.getType() != null) {
+            try (JsonParser bufferedParser = bufferedParameters.asParserOnFirstToken()) {
+                dto.setParameters(DeviceParametersDeserializer.read(bufferedParser, context, dto.getType()));
+            }
+        }
         return dto;
     }
+
+    // getValueAsString() would leave an object or array unread and the parser out of step with the payload
+    private static String readString(JsonParser parser, DeserializationContext context) throws IOException {
+        if (parser.currentToken().isStructStart()) {
+            return (String) context.handleUnexpectedToken(String.class, parser);
+        }
+        return parser.getValueAsString();
+    }
+
+    private static DeviceType readType(JsonParser parser, DeserializationContext context) throws IOException {
+        String value = readString(parser, context);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return DeviceType.fromString(value);
+        } catch (IllegalArgumentException e) {
+            throw context.weirdStringException(value, DeviceType.class, e.getMessage());
+        }
+    }
 }
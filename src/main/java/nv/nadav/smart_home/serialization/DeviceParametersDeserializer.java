@@ -1,10 +1,9 @@
 package nv.nadav.smart_home.serialization;
 
 import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.JsonNode;
 import nv.nadav.smart_home.model.DeviceType;
 import nv.nadav.smart_home.model.parameters.*;
 
@@ -19,18 +18,24 @@ public class DeviceParametersDeserializer extends JsonDeserializer<DeviceParamet
 
     @Override
     public DeviceParameters deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException {
-        ObjectCodec codec = jsonParser.getCodec();
-        JsonNode node = codec.readTree(jsonParser);
+        return read(jsonParser, deserializationContext, type);
+    }
 
-        Class<? extends DeviceParameters> targetClass = switch (type) {
+    public static Class<? extends DeviceParameters> targetClass(DeviceType type) {
+        return switch (type) {
             case LIGHT -> LightParameters.class;
             case WATER_HEATER -> WaterHeaterParameters.class;
             case AIR_CONDITIONER -> AirConditionerParameters.class;
             case DOOR_LOCK -> DoorLockParameters.class;
             case CURTAIN -> CurtainParameters.class;
-            default -> throw new IllegalArgumentException("Unsupported type: " + type);
         };
+    }
 
-        return codec.treeToValue(node, targetClass);
+    // Binds straight from the token stream, without building an intermediate tree
+    static DeviceParameters read(JsonParser parser, DeserializationContext context, DeviceType type) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        return context.readValue(parser, targetClass(type));
     }
 }
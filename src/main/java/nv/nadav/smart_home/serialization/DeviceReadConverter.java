@@ -27,6 +27,9 @@ public class DeviceReadConverter implements Converter<Document, Device> {
         };
 
         device.setParameters(params);
+        // Devices stored before versioning have no version and count as version 0
+        Number version = source.get("version", Number.class);
+        device.setVersion(version == null ? 0L : version.longValue());
         return device;
     }
 
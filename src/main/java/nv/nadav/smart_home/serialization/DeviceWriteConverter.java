@@ -1,10 +1,14 @@
 package nv.nadav.smart_home.serialization;
 
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
 import nv.nadav.smart_home.model.parameters.*;
 import org.springframework.core.convert.converter.Converter;
 import nv.nadav.smart_home.model.Device;
 import org.bson.Document;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class DeviceWriteConverter implements Converter<Device, Document> {
     @Override
     public Document convert(Device device) {
@@ -18,9 +22,28 @@ public class DeviceWriteConverter implements Converter<Device, Document> {
         doc.put("room", device.getRoom());
         doc.put("status", device.getStatus());
 
-        Document paramsDoc = new Document();
-        DeviceParameters params = device.getParameters();
+        doc.put("parameters", writeParameters(device.getParameters()));
+        if (device.getVersion() != null) {
+            doc.put("version", device.getVersion());
+        }
+        return doc;
+    }
+
+    // $set fields in stored names, parameters as parameters.<field> paths. Null fields are skipped
+    public static Map<String, Object> updateFields(DeviceUpdateDto update) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        putIfSet(fields, "name", update.getName());
+        putIfSet(fields, "room", update.getRoom());
+        putIfSet(fields, "status", update.getStatus());
+        if (update.getParameters() != null) {
+            writeParameters(update.getParameters())
+                    .forEach((field, value) -> putIfSet(fields, "parameters." + field, value));
+        }
+        return fields;
+    }
 
+    private static Document writeParameters(DeviceParameters params) {
+        Document paramsDoc = new Document();
         if (params instanceof WaterHeaterParameters whp) {
             paramsDoc.put("temperature", whp.getTemperature());
             paramsDoc.put("target_temperature", whp.getTargetTemperature());
@@ -30,9 +53,9 @@ public class DeviceWriteConverter implements Converter<Device, Document> {
             paramsDoc.put("scheduled_off", whp.getScheduledOff());
         } else if (params instanceof AirConditionerParameters acp) {
             paramsDoc.put("temperature", acp.getTemperature());
-            paramsDoc.put("mode", acp.getMode().getValue());
-            paramsDoc.put("swing", acp.getSwing().getValue());
-            paramsDoc.put("fan_speed", acp.getFanSpeed().getValue());
+            paramsDoc.put("mode", acp.getMode() == null ? null : acp.getMode().getValue());
+            paramsDoc.put("swing", acp.getSwing() == null ? null : acp.getSwing().getValue());
+            paramsDoc.put("fan_speed", acp.getFanSpeed() == null ? null : acp.getFanSpeed().getValue());
         } else if (params instanceof CurtainParameters cp) {
             paramsDoc.put("position", cp.getPosition());
         } else if (params instanceof DoorLockParameters dlp) {
@@ -44,8 +67,12 @@ public class DeviceWriteConverter implements Converter<Device, Document> {
             paramsDoc.put("is_dimmable", lp.isDimmable());
             paramsDoc.put("dynamic_color", lp.isDynamicColor());
         }
+        return paramsDoc;
+    }
 
-        doc.put("parameters", paramsDoc);
-        return doc;
+    private static void putIfSet(Map<String, Object> fields, String field, Object value) {
+        if (value != null) {
+            fields.put(field, value);
+        }
     }
 }
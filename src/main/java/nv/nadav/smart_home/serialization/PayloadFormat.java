@@ -0,0 +1,32 @@
+package nv.nadav.smart_home.serialization;
+
+// Identified on MQTT by the MQTT 5 content-type property
+public enum PayloadFormat {
+    JSON("application/json"),
+    CBOR("application/cbor"),
+    SMILE("application/x-jackson-smile");
+
+    private final String contentType;
+
+    PayloadFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    // Parameters are ignored, and no content type means JSON
+    public static PayloadFormat fromContentType(String contentType) {
+        if (contentType == null || contentType.isBlank()) {
+            return JSON;
+        }
+        String mediaType = contentType.split(";", 2)[0].trim();
+        for (PayloadFormat format : PayloadFormat.values()) {
+            if (format.contentType.equalsIgnoreCase(mediaType)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported content type: " + contentType);
+    }
+}
@@ -0,0 +1,25 @@
+package nv.nadav.smart_home.service;
+
+import java.time.Instant;
+import java.util.List;
+
+public interface DeadLetterStore {
+    void add(InboundMessage message, Reason reason, String detail);
+
+    // Oldest first, starting after afterId
+    List<DeadLetter> page(long afterId, int limit);
+
+    // IDs no longer stored are skipped
+    List<DeadLetter> take(List<Long> ids);
+
+    int size();
+
+    enum Reason {
+        PARSE_ERROR,
+        VALIDATION_FAILED,
+        DEVICE_NOT_FOUND
+    }
+
+    record DeadLetter(long id, Instant failedAt, Reason reason, String detail, InboundMessage message) {
+    }
+}
@@ -0,0 +1,11 @@
+package nv.nadav.smart_home.service;
+
+// Republishes every write to the devices collection as a DeviceStoreChangedEvent, so each replica follows the
+// others' writes. Resumes from its last token after a reconnect
+public interface DeviceChangeStream {
+    void start();
+
+    void stop();
+
+    boolean isRunning();
+}
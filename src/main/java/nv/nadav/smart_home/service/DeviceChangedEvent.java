@@ -0,0 +1,10 @@
+package nv.nadav.smart_home.service;
+
+import nv.nadav.smart_home.dto.DeviceDto;
+
+// Published by DeviceService after each write. device is null once the device has been deleted
+public record DeviceChangedEvent(String deviceId, DeviceDto device) {
+    public boolean isDeleted() {
+        return device == null;
+    }
+}
@@ -0,0 +1,11 @@
+package nv.nadav.smart_home.service;
+
+import nv.nadav.smart_home.dto.DeviceDto;
+
+import java.util.List;
+
+// failed holds each device that wasn't stored, by its position in the request
+public record DeviceImportResult(List<DeviceDto> added, List<Failure> failed) {
+    public record Failure(int index, String deviceId, String error) {
+    }
+}
@@ -9,5 +9,6 @@ public interface DeviceMapper {
 
     @BeanMapping(nullValuePropertyMappingStrategy = NullValuePropertyMappingStrategy.IGNORE)
     @Mapping(target = "parameters", ignore = true)
+    @Mapping(target = "version", ignore = true)
     void updateDeviceFromDto(DeviceUpdateDto dto, @MappingTarget Device device);
 }
@@ -4,10 +4,18 @@ import nv.nadav.smart_home.dto.DeviceDto;
 import nv.nadav.smart_home.dto.DeviceUpdateDto;
 import nv.nadav.smart_home.model.DeviceType;
 
+import java.util.List;
+
 public interface DeviceMetricsService {
     void addDevice(DeviceDto device);
 
+    // Checks and marks the devices in the tracking store in batches
+    void addDevices(List<DeviceDto> devices);
+
     void updateDevice(DeviceUpdateDto oldValues, DeviceUpdateDto update, DeviceType type, String deviceId);
 
     void deleteDevice(String deviceId);
+
+    // Keeps this replica's gauges in step with writes made by any replica
+    void onStoreChanged(DeviceStoreChangedEvent event);
 }
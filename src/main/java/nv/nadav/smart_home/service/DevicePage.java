@@ -0,0 +1,9 @@
+package nv.nadav.smart_home.service;
+
+import nv.nadav.smart_home.dto.DeviceDto;
+
+import java.util.List;
+
+// nextCursor is null on the last page
+public record DevicePage(List<DeviceDto> devices, String nextCursor) {
+}
@@ -2,18 +2,48 @@ package nv.nadav.smart_home.service;
 
 import nv.nadav.smart_home.dto.DeviceDto;
 import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.repository.DeviceFilter;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 public interface DeviceService {
     DeviceDto addDevice(DeviceDto deviceDto);
 
+    // One unordered insert for the valid devices. Invalid, repeated or existing devices are reported rather than
+    // failing the rest
+    DeviceImportResult addDevices(List<DeviceDto> devices);
+
     DeviceDto updateDevice(String deviceId, DeviceUpdateDto deviceDto);
 
+    // Throws DeviceVersionConflictException without retrying once the device is past expectedVersion
+    DeviceDto updateDevice(String deviceId, DeviceUpdateDto deviceDto, long expectedVersion);
+
+    // One write for every device. Missing IDs are skipped, and if any update is invalid nothing is written
+    List<DeviceDto> updateDevices(Map<String, DeviceUpdateDto> updates);
+
+    // One write for every device. Missing IDs are skipped, and if the update is invalid for any of them nothing is
+    // written
+    List<DeviceDto> updateDevices(Collection<String> deviceIds, DeviceUpdateDto update);
+
     DeviceDto getDeviceById(String deviceId);
 
+    // One query. Missing IDs are left out
+    Map<String, DeviceDto> getDevicesByIds(Collection<String> deviceIds);
+
     List<DeviceDto> getAllDevices();
 
+    // The first limit matching devices by ID. A limit of 0 means no limit
+    List<DeviceDto> getDevicesMatching(DeviceFilter filter, int limit);
+
+    // cursor comes from the previous page, null for the first. Cursors are opaque to callers
+    DevicePage getDevicePage(String cursor, int limit);
+
+    // Streams the devices rather than holding the whole list in memory
+    void forEachDevice(Consumer<DeviceDto> consumer);
+
     void deleteDeviceById(String deviceId);
 
     List<String> getDeviceIds();
@@ -0,0 +1,9 @@
+package nv.nadav.smart_home.service;
+
+// Mirrors device changes into retained messages on MqttService.STATE_TOPIC, so clients get each device's state
+// from the broker when they connect
+public interface DeviceStatePublisher {
+    void onDeviceChanged(DeviceChangedEvent event);
+
+    void publishAll();
+}
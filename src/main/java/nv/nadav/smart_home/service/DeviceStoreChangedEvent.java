@@ -0,0 +1,12 @@
+package nv.nadav.smart_home.service;
+
+import nv.nadav.smart_home.model.Device;
+import org.bson.types.ObjectId;
+
+// Published by DeviceChangeStream for every write, from any replica. device is null for a delete, which only
+// carries deviceId when the collection records pre-images
+public record DeviceStoreChangedEvent(ObjectId storedId, String deviceId, Device device) {
+    public boolean isDeleted() {
+        return device == null;
+    }
+}
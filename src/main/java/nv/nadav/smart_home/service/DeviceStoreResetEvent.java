@@ -0,0 +1,5 @@
+package nv.nadav.smart_home.service;
+
+// The change stream couldn't resume, so changes may have been missed and local device copies can't be trusted
+public record DeviceStoreResetEvent() {
+}
@@ -6,6 +6,7 @@ import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.time.temporal.ChronoUnit;
+import java.util.Collection;
 import java.util.List;
 
 public interface DeviceTrackingService {
@@ -15,6 +16,11 @@ public interface DeviceTrackingService {
 
     void removeDeviceSeen(String deviceId);
 
+    // One round trip, answers in the order given
+    List<Boolean> areDevicesNew(List<String> deviceIds);
+
+    void markDevicesSeen(Collection<String> deviceIds);
+
     List<Interval> getDeviceIntervals(String deviceId);
 
     void saveDeviceIntervals(String deviceId, List<Interval> intervals);
@@ -0,0 +1,27 @@
+package nv.nadav.smart_home.service;
+
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.model.DeviceType;
+
+import java.util.Collection;
+
+public interface DeviceWriteBehind {
+    boolean isEnabled();
+
+    // Only updates touching nothing but telemetry, such as a water heater's temperature, are written behind
+    boolean accepts(DeviceType type, DeviceUpdateDto update);
+
+    // Later values win field by field. True if nothing was buffered for the device yet, so the flush writing this
+    // bumps its stored version
+    boolean buffer(String deviceId, DeviceType type, DeviceUpdateDto update);
+
+    // Null if nothing is buffered
+    DeviceUpdateDto peek(String deviceId);
+
+    void discard(String deviceId);
+
+    void flush();
+
+    // Waits out a flush already running, so a synchronous write that follows lands after every buffered value
+    void flush(Collection<String> deviceIds);
+}
@@ -0,0 +1,9 @@
+package nv.nadav.smart_home.service;
+
+public interface DuplicateFilter {
+    // Records the ID as seen. Messages without one are never duplicates
+    boolean isDuplicate(String senderGroup, String senderId, String messageId);
+
+    // For a message that was never processed, so its redelivery isn't taken for a duplicate
+    void forget(String senderGroup, String senderId, String messageId);
+}
@@ -10,4 +10,6 @@ public interface GaugeManager {
     void setEnumGauge(String name, String description, Enum<?> selected, Map<String, String> tags);
 
     void setScheduleGauge(String name, String description, String deviceId, String scheduledOn, String scheduledOff);
+
+    void removeDeviceGauges(String deviceId);
 }
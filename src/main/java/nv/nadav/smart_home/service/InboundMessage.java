@@ -0,0 +1,13 @@
+package nv.nadav.smart_home.service;
+
+import nv.nadav.smart_home.serialization.PayloadFormat;
+
+public record InboundMessage(
+        String deviceId,
+        MqttService.Method method,
+        String senderGroup,
+        String senderId,
+        byte[] payload,
+        PayloadFormat format
+) {
+}
@@ -0,0 +1,11 @@
+package nv.nadav.smart_home.service;
+
+import java.util.Collection;
+
+public interface IngestDispatcher {
+    // Tasks sharing a key run one at a time, in order. Tasks for other keys may run in parallel
+    void dispatch(String key, Runnable task);
+
+    // Holds every key's lane from submission until the task finishes, so it is ordered against each key's tasks
+    void dispatchAll(Collection<String> keys, Runnable task);
+}
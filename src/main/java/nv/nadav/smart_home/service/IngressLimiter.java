@@ -0,0 +1,7 @@
+package nv.nadav.smart_home.service;
+
+public interface IngressLimiter {
+    // Runs the task now if the sender and device are within their limits, otherwise drops or delays it as
+    // configured. Tasks for one device run in the order submitted. False if it was dropped
+    boolean submit(String senderGroup, String senderId, String deviceId, Runnable task);
+}
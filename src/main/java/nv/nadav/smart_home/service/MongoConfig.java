@@ -26,7 +26,7 @@ public class MongoConfig extends AbstractMongoClientConfiguration {
         this.mongoProperties = mongoProperties;
     }
 
-    private static String injectCredentialsIntoUri(String uri, String username, String password) throws URISyntaxException {
+    static String injectCredentialsIntoUri(String uri, String username, String password) throws URISyntaxException {
         URI parsed = new URI(uri);
 
         // Check if credentials are already present
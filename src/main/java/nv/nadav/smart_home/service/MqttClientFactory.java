@@ -0,0 +1,10 @@
+package nv.nadav.smart_home.service;
+
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.common.MqttException;
+
+// Unconnected clients, with IDs that share this instance's prefix
+@FunctionalInterface
+public interface MqttClientFactory {
+    MqttAsyncClient create(String clientIdSuffix) throws MqttException;
+}
@@ -1,7 +1,7 @@
 package nv.nadav.smart_home.service;
 
 import nv.nadav.smart_home.config.MqttProperties;
-import org.eclipse.paho.mqttv5.client.MqttClient;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
 import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
 import org.eclipse.paho.mqttv5.common.MqttException;
 import org.springframework.context.annotation.Bean;
@@ -13,10 +13,15 @@ import java.util.Optional;
 public class MqttConfig {
 
     @Bean
-    public MqttClient mqttClient(MqttProperties props) throws MqttException {
+    public MqttClientFactory mqttClientFactory(MqttProperties props) {
         String brokerUri = "tcp://" + props.getHost() + ":" + props.getPort();
         String hostname = Optional.ofNullable(System.getenv("HOSTNAME")).orElse("unknown-host");
         String clientId = "spring-backend-" + hostname;
-        return new MqttClient(brokerUri, clientId, new MemoryPersistence());
+        return suffix -> new MqttAsyncClient(brokerUri, clientId + suffix, new MemoryPersistence());
+    }
+
+    @Bean
+    public MqttAsyncClient mqttClient(MqttClientFactory clientFactory) throws MqttException {
+        return clientFactory.create("");
     }
 }
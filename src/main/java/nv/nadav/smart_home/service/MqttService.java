@@ -4,17 +4,32 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonValue;
 import nv.nadav.smart_home.service.impl.MqttServiceImpl;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
 
 public interface MqttService {
     String TOPIC = Optional.ofNullable(System.getenv("MQTT_TOPIC")).orElse("nadavnv-smart-home/devices");
+    // Retained per-device state lives outside TOPIC, so the backend's own subscription never sees it
+    String STATE_TOPIC = Optional.ofNullable(System.getenv("MQTT_STATE_TOPIC")).orElse("nadavnv-smart-home/state");
+    // Compact sender identity, "<sender_group>/<sender_id>", accepted in place of sender_group and sender_id
+    String SENDER_PROPERTY = "s";
+    // Device ID segment of the topic that takes updates for many devices in one message
+    String BULK_DEVICE_ID = "_bulk";
 
     void publishMqtt(Map<String, Object> payload, String topicPrefix, String deviceId, MqttServiceImpl.Method method);
 
+    // Retained on STATE_TOPIC/<device_id>
+    void publishState(String deviceId, Map<String, Object> state);
+
+    void clearState(String deviceId);
+
     boolean isConnected();
 
+    // Returns how many were found
+    int replayDeadLetters(List<Long> ids);
+
     enum Method {
         POST("post"),
         UPDATE("update"),
@@ -0,0 +1,20 @@
+package nv.nadav.smart_home.service;
+
+import nv.nadav.smart_home.serialization.PayloadFormat;
+
+import java.util.Optional;
+
+public interface PublishJournal {
+    // False if the journal is full and the overflow policy rejected the entry
+    boolean append(String topic, byte[] payload, int qos, PayloadFormat format, boolean retained);
+
+    Optional<PendingPublish> peek();
+
+    // Only while published is still the head
+    void remove(PendingPublish published);
+
+    int size();
+
+    record PendingPublish(long sequence, String topic, byte[] payload, int qos, PayloadFormat format, boolean retained) {
+    }
+}
@@ -0,0 +1,21 @@
+package nv.nadav.smart_home.service;
+
+import nv.nadav.smart_home.dto.DeviceDto;
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+// Non-blocking DeviceService behind /api/reactive, throwing the same exceptions. Writes go straight to Mongo, and
+// the blocking service's cache follows them through DeviceChangeStream
+public interface ReactiveDeviceService {
+    Mono<DeviceDto> getDeviceById(String deviceId);
+
+    Flux<DeviceDto> getAllDevices();
+
+    Mono<DeviceDto> addDevice(DeviceDto device);
+
+    // Conditional on expectedVersion if set, otherwise retried on conflict like DeviceService.updateDevice
+    Mono<DeviceDto> updateDevice(String deviceId, DeviceUpdateDto update, Long expectedVersion);
+
+    Mono<Void> deleteDeviceById(String deviceId);
+}
@@ -0,0 +1,54 @@
+package nv.nadav.smart_home.service;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import nv.nadav.smart_home.config.MongoProperties;
+import nv.nadav.smart_home.repository.ReactiveDeviceRepository;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.SimpleReactiveMongoDatabaseFactory;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.repository.config.EnableReactiveMongoRepositories;
+
+import java.net.URISyntaxException;
+
+@Configuration
+@ConditionalOnProperty(prefix = "device.reactive", name = "enabled", havingValue = "true")
+@EnableReactiveMongoRepositories(basePackageClasses = ReactiveDeviceRepository.class)
+public class ReactiveMongoConfig {
+
+    private final MongoProperties mongoProperties;
+
+    public ReactiveMongoConfig(MongoProperties mongoProperties) {
+        this.mongoProperties = mongoProperties;
+    }
+
+    @Bean(destroyMethod = "close")
+    public MongoClient reactiveMongoClient() {
+        try {
+            String uri = MongoConfig.injectCredentialsIntoUri(
+                    mongoProperties.getUri(),
+                    mongoProperties.getUser(),
+                    mongoProperties.getPass()
+            );
+            return MongoClients.create(MongoClientSettings.builder()
+                    .applyConnectionString(new ConnectionString(uri))
+                    .build());
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException("Failed to construct MongoClient URI", e);
+        }
+    }
+
+    // Shares the blocking template's converter, so devices are read and written by the same converters
+    @Bean
+    public ReactiveMongoTemplate reactiveMongoTemplate(MongoClient reactiveMongoClient, MappingMongoConverter converter) {
+        return new ReactiveMongoTemplate(
+                new SimpleReactiveMongoDatabaseFactory(reactiveMongoClient, mongoProperties.getDb()),
+                converter
+        );
+    }
+}
@@ -0,0 +1,20 @@
+package nv.nadav.smart_home.service;
+
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.model.DeviceType;
+
+import java.util.List;
+
+public interface UpdateCoalescer {
+    boolean isEnabled();
+
+    // The first message for a device opens a window, and windowClosed runs when it closes. It should drain the
+    // device on its lane, so nothing routed for it meanwhile is overtaken
+    void offer(InboundMessage message, Runnable windowClosed);
+
+    // For a message that must not overtake what is buffered
+    List<InboundMessage> drain(String deviceId);
+
+    // Later values win field by field
+    DeviceUpdateDto merge(String deviceId, DeviceType type, List<DeviceUpdateDto> updates);
+}
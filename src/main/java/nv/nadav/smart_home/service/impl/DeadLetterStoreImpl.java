@@ -0,0 +1,169 @@
+package nv.nadav.smart_home.service.impl;
+
+import nv.nadav.smart_home.config.MqttDeadLetterProperties;
+import nv.nadav.smart_home.serialization.PayloadFormat;
+import nv.nadav.smart_home.service.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+
+@Service
+public class DeadLetterStoreImpl implements DeadLetterStore {
+    private static final Logger logger = LoggerFactory.getLogger("smart_home.mqtt");
+    private static final int MAX_DETAIL_LENGTH = 256;
+    private static final Reason[] REASONS = Reason.values();
+    private static final MqttService.Method[] METHODS = MqttService.Method.values();
+    private static final PayloadFormat[] FORMATS = PayloadFormat.values();
+
+    private final int maxEntries;
+    private final int maxBytes;
+    private final GaugeManager gaugeManager;
+    private final CounterManager counterManager;
+    // Entries are kept encoded, so each one costs a single array rather than a graph of objects
+    private final NavigableMap<Long, byte[]> entries = new TreeMap<>();
+    private long nextId = 1;
+    private long storedBytes = 0;
+
+    public DeadLetterStoreImpl(
+            MqttDeadLetterProperties properties,
+            GaugeManager gaugeManager,
+            CounterManager counterManager
+    ) {
+        this.maxEntries = properties.getMaxEntries();
+        this.maxBytes = properties.getMaxBytes();
+        this.gaugeManager = gaugeManager;
+        this.counterManager = counterManager;
+    }
+
+    @Override
+    public void add(InboundMessage message, Reason reason, String detail) {
+        byte[] record = encode(Instant.now(), reason, detail, message);
+        if (record.length > maxBytes) {
+            logger.warn("Dead letter for {} is larger than the store, discarding it", message.deviceId());
+            return;
+        }
+        synchronized (this) {
+            while (!entries.isEmpty() && (entries.size() >= maxEntries || storedBytes + record.length > maxBytes)) {
+                storedBytes -= entries.pollFirstEntry().getValue().length;
+                counterManager.increment(
+                        "mqtt_dead_letters_evicted_total",
+                        "Dead letters discarded to make room for newer ones",
+                        Map.of()
+                );
+            }
+            entries.put(nextId++, record);
+            storedBytes += record.length;
+            updateSizeGauge();
+        }
+        counterManager.increment(
+                "mqtt_dead_letters_total",
+                "MQTT messages that failed processing and were kept for replay",
+                Map.of("reason", reason.name().toLowerCase())
+        );
+    }
+
+    @Override
+    public synchronized List<DeadLetter> page(long afterId, int limit) {
+        List<DeadLetter> page = new ArrayList<>(Math.min(limit, entries.size()));
+        for (Map.Entry<Long, byte[]> entry : entries.tailMap(afterId, false).entrySet()) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.add(decode(entry.getKey(), entry.getValue()));
+        }
+        return page;
+    }
+
+    @Override
+    public synchronized List<DeadLetter> take(List<Long> ids) {
+        List<DeadLetter> taken = new ArrayList<>(ids.size());
+        for (long id : ids) {
+            byte[] record = entries.remove(id);
+            if (record != null) {
+                storedBytes -= record.length;
+                taken.add(decode(id, record));
+            }
+        }
+        updateSizeGauge();
+        return taken;
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void updateSizeGauge() {
+        gaugeManager.setNumericGauge(
+                "mqtt_dead_letters_stored",
+                "MQTT messages currently held in the dead-letter store",
+                entries.size(),
+                Map.of()
+        );
+    }
+
+    // [long failedAt][byte reason][byte method][byte format][str deviceId][str group][str sender][str detail][int len][payload]
+    // where str is [short len][UTF-8 bytes]
+    private static byte[] encode(Instant failedAt, Reason reason, String detail, InboundMessage message) {
+        byte[] deviceId = utf8(message.deviceId());
+        byte[] senderGroup = utf8(message.senderGroup());
+        byte[] senderId = utf8(message.senderId());
+        String trimmedDetail = detail == null ? "" : detail;
+        if (trimmedDetail.length() > MAX_DETAIL_LENGTH) {
+            trimmedDetail = trimmedDetail.substring(0, MAX_DETAIL_LENGTH);
+        }
+        byte[] detailBytes = utf8(trimmedDetail);
+        byte[] payload = message.payload();
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + 3 + 4 * Short.BYTES + Integer.BYTES
+                + deviceId.length + senderGroup.length + senderId.length + detailBytes.length + payload.length);
+        buffer.putLong(failedAt.toEpochMilli());
+        buffer.put((byte) reason.ordinal());
+        buffer.put((byte) message.method().ordinal());
+        buffer.put((byte) message.format().ordinal());
+        putString(buffer, deviceId);
+        putString(buffer, senderGroup);
+        putString(buffer, senderId);
+        putString(buffer, detailBytes);
+        buffer.putInt(payload.length);
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    private static DeadLetter decode(long id, byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        Instant failedAt = Instant.ofEpochMilli(buffer.getLong());
+        Reason reason = REASONS[buffer.get()];
+        MqttService.Method method = METHODS[buffer.get()];
+        PayloadFormat format = FORMATS[buffer.get()];
+        String deviceId = getString(buffer);
+        String senderGroup = getString(buffer);
+        String senderId = getString(buffer);
+        String detail = getString(buffer);
+        byte[] payload = new byte[buffer.getInt()];
+        buffer.get(payload);
+        return new DeadLetter(id, failedAt, reason, detail,
+                new InboundMessage(deviceId, method, senderGroup, senderId, payload, format));
+    }
+
+    private static byte[] utf8(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        // Topic segments and user properties are far shorter than this in practice
+        return bytes.length <= Short.MAX_VALUE ? bytes : Arrays.copyOf(bytes, Short.MAX_VALUE);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
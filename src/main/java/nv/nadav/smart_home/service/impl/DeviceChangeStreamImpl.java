@@ -0,0 +1,213 @@
+package nv.nadav.smart_home.service.impl;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.FullDocumentBeforeChange;
+import jakarta.annotation.PreDestroy;
+import nv.nadav.smart_home.config.DeviceChangeStreamProperties;
+import nv.nadav.smart_home.model.Device;
+import nv.nadav.smart_home.service.*;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@Service
+public class DeviceChangeStreamImpl implements DeviceChangeStream {
+    private static final Logger logger = LoggerFactory.getLogger("smart_home.devices");
+    // $changeStream is only supported on replica sets
+    private static final int CHANGE_STREAM_NOT_SUPPORTED = 40573;
+    private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+
+    private final DeviceChangeStreamProperties properties;
+    private final MongoTemplate mongoTemplate;
+    private final ApplicationEventPublisher eventPublisher;
+    private final CounterManager counterManager;
+    private volatile boolean running;
+    private volatile Thread thread;
+    private BsonDocument resumeToken;
+
+    public DeviceChangeStreamImpl(
+            DeviceChangeStreamProperties properties,
+            MongoTemplate mongoTemplate,
+            ApplicationEventPublisher eventPublisher,
+            CounterManager counterManager
+    ) {
+        this.properties = properties;
+        this.mongoTemplate = mongoTemplate;
+        this.eventPublisher = eventPublisher;
+        this.counterManager = counterManager;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startOnReady() {
+        if (properties.isEnabled()) {
+            start();
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = Thread.ofPlatform().name("device-change-stream").daemon().start(this::run);
+    }
+
+    @Override
+    @PreDestroy
+    public synchronized void stop() {
+        running = false;
+        Thread current = thread;
+        if (current != null) {
+            current.interrupt();
+            thread = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void run() {
+        long backoffNanos = properties.getReconnectBackoff().toNanos();
+        while (running) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = open()) {
+                logger.info("Following device changes{}", resumeToken != null ? " from the last resume token" : "");
+                backoffNanos = properties.getReconnectBackoff().toNanos();
+                boolean open = true;
+                while (running && open) {
+                    ChangeStreamDocument<Document> change = cursor.tryNext();
+                    if (change != null) {
+                        open = handle(change);
+                    }
+                    // Also advances while the collection is idle, so a reconnect doesn't replay old changes
+                    BsonDocument token = cursor.getResumeToken();
+                    if (open && token != null) {
+                        resumeToken = token;
+                    }
+                }
+            } catch (MongoException e) {
+                if (!running) {
+                    break;
+                }
+                if (e instanceof MongoCommandException command && command.getErrorCode() == CHANGE_STREAM_NOT_SUPPORTED) {
+                    logger.warn("Change streams need a replica set; device state is not kept in step across replicas");
+                    running = false;
+                    break;
+                }
+                if (isNotResumable(e)) {
+                    logger.warn("Device change stream can't resume, starting over: {}", e.getMessage());
+                    reset();
+                } else {
+                    logger.warn("Device change stream failed, reconnecting: {}", e.getMessage());
+                }
+                counterManager.increment(
+                        "device_change_stream_reconnects_total",
+                        "Times the device change stream was reopened after a failure",
+                        Map.of()
+                );
+                if (!sleep(backoffNanos)) {
+                    break;
+                }
+                backoffNanos = Math.min(backoffNanos * 2, properties.getMaxReconnectBackoff().toNanos());
+            }
+        }
+    }
+
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> open() {
+        ChangeStreamIterable<Document> stream = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Device.class))
+                .watch(List.of(Aggregates.match(Filters.in("operationType",
+                        "insert", "update", "replace", "delete", "invalidate"))))
+                .fullDocument(FullDocument.UPDATE_LOOKUP)
+                // Names the device on deletes where the collection records pre-images
+                .fullDocumentBeforeChange(FullDocumentBeforeChange.WHEN_AVAILABLE)
+                .maxAwaitTime(properties.getMaxAwait().toMillis(), TimeUnit.MILLISECONDS);
+        if (resumeToken != null) {
+            stream = stream.resumeAfter(resumeToken);
+        }
+        return stream.cursor();
+    }
+
+    // Returns false once the stream is invalidated and has to be reopened
+    boolean handle(ChangeStreamDocument<Document> change) {
+        String operation = change.getOperationTypeString();
+        counterManager.increment(
+                "device_change_stream_events_total",
+                "Changes to the devices collection received from its change stream",
+                Map.of("operation", operation)
+        );
+        switch (change.getOperationType()) {
+            case INSERT, UPDATE, REPLACE -> {
+                Document stored = change.getFullDocument();
+                // Null when the device was deleted before the update could be looked up; its delete follows
+                if (stored != null) {
+                    Device device = mongoTemplate.getConverter().read(Device.class, stored);
+                    eventPublisher.publishEvent(new DeviceStoreChangedEvent(device.get_id(), device.getDeviceId(), device));
+                }
+            }
+            case DELETE -> {
+                BsonValue storedId = change.getDocumentKey() != null ? change.getDocumentKey().get("_id") : null;
+                Document before = change.getFullDocumentBeforeChange();
+                eventPublisher.publishEvent(new DeviceStoreChangedEvent(
+                        storedId != null && storedId.isObjectId() ? storedId.asObjectId().getValue() : null,
+                        before != null ? before.getString("id") : null,
+                        null
+                ));
+            }
+            // The collection was dropped or renamed; the stream ends here and starts over on reopening
+            case INVALIDATE -> {
+                reset();
+                return false;
+            }
+            default -> {
+            }
+        }
+        return true;
+    }
+
+    private void reset() {
+        resumeToken = null;
+        counterManager.increment(
+                "device_change_stream_resets_total",
+                "Times the device change stream lost its place and local device state was dropped",
+                Map.of()
+        );
+        eventPublisher.publishEvent(new DeviceStoreResetEvent());
+    }
+
+    private static boolean isNotResumable(MongoException e) {
+        return e.getCode() == CHANGE_STREAM_HISTORY_LOST
+                || e.getCode() == CHANGE_STREAM_FATAL_ERROR
+                || e.hasErrorLabel("NonResumableChangeStreamError");
+    }
+
+    private static boolean sleep(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+            return true;
+        } catch (InterruptedException _) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -2,19 +2,24 @@ package nv.nadav.smart_home.service.impl;
 
 import nv.nadav.smart_home.dto.DeviceDto;
 import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.model.Device;
 import nv.nadav.smart_home.model.DeviceType;
 import nv.nadav.smart_home.model.parameters.*;
 import nv.nadav.smart_home.model.parameters.AirConditionerParameters.*;
 import nv.nadav.smart_home.service.CounterManager;
 import nv.nadav.smart_home.service.DeviceMetricsService;
+import nv.nadav.smart_home.service.DeviceStoreChangedEvent;
 import nv.nadav.smart_home.service.DeviceTrackingService;
 import nv.nadav.smart_home.service.GaugeManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -74,27 +79,46 @@ public class DeviceMetricsServiceImpl implements DeviceMetricsService {
     public void addDevice(DeviceDto device) {
         String deviceId = device.getId();
         if (trackingService.isDeviceNew(deviceId)) {
-            logger.info("Device {} read from the database for the first time.", deviceId);
-            logger.info("Adding device metrics.");
-            String deviceType = device.getType().getValue();
-            counterManager.incrementBy(
-                    "device_on_events_total",
-                    metricDescriptions.get("device_on_events_total"),
-                    Map.of("device_id", deviceId, "device_type", deviceType),
-                    0.0
-            );
-            counterManager.incrementBy(
-                    "device_usage_seconds_total",
-                    metricDescriptions.get("device_usage_seconds_total"),
-                    Map.of("device_id", deviceId, "device_type", deviceType),
-                    0.0
-            );
-            DeviceUpdateDto deviceValues = DeviceUpdateDto.fromDto(device);
-            updateDevice(deviceValues, deviceValues, device.getType(), deviceId);
+            registerDevice(device);
             trackingService.markDeviceSeen(deviceId);
         }
     }
 
+    @Override
+    public void addDevices(List<DeviceDto> devices) {
+        // One seen-set check and one mark for the whole batch, instead of one of each per device
+        List<Boolean> newDevices = trackingService.areDevicesNew(devices.stream().map(DeviceDto::getId).toList());
+        List<String> registered = new ArrayList<>();
+        for (int i = 0; i < devices.size(); i++) {
+            if (newDevices.get(i)) {
+                registerDevice(devices.get(i));
+                registered.add(devices.get(i).getId());
+            }
+        }
+        trackingService.markDevicesSeen(registered);
+    }
+
+    private void registerDevice(DeviceDto device) {
+        String deviceId = device.getId();
+        logger.info("Device {} read from the database for the first time.", deviceId);
+        logger.info("Adding device metrics.");
+        String deviceType = device.getType().getValue();
+        counterManager.incrementBy(
+                "device_on_events_total",
+                metricDescriptions.get("device_on_events_total"),
+                Map.of("device_id", deviceId, "device_type", deviceType),
+                0.0
+        );
+        counterManager.incrementBy(
+                "device_usage_seconds_total",
+                metricDescriptions.get("device_usage_seconds_total"),
+                Map.of("device_id", deviceId, "device_type", deviceType),
+                0.0
+        );
+        DeviceUpdateDto deviceValues = DeviceUpdateDto.fromDto(device);
+        updateDevice(deviceValues, deviceValues, device.getType(), deviceId);
+    }
+
     private void updateDeviceStatus(String deviceId, DeviceType deviceType, String oldStatus, String newStatus) {
         if ("on".equals(newStatus) && (trackingService.isDeviceNew(deviceId) || "off".equals(oldStatus))) {
             trackingService.startNewInterval(deviceId, Instant.now());
@@ -117,6 +141,10 @@ public class DeviceMetricsServiceImpl implements DeviceMetricsService {
             );
         }
 
+        setStatusGauge(deviceId, deviceType, newStatus);
+    }
+
+    private void setStatusGauge(String deviceId, DeviceType deviceType, String newStatus) {
         Set<String> activeStates = Set.of("on", "locked", "closed");
         switch (deviceType) {
             case LIGHT, WATER_HEATER, AIR_CONDITIONER -> gaugeManager.setNumericGauge(
@@ -440,6 +468,26 @@ public class DeviceMetricsServiceImpl implements DeviceMetricsService {
         }
     }
 
+    @Override
+    @EventListener
+    public void onStoreChanged(DeviceStoreChangedEvent event) {
+        if (event.isDeleted()) {
+            // Without pre-images a delete doesn't name the device, and its gauges stay until they expire
+            if (event.deviceId() != null) {
+                gaugeManager.removeDeviceGauges(event.deviceId());
+            }
+            return;
+        }
+        // Only this replica's gauges are set; counters and usage intervals were recorded by the writer
+        Device device = event.device();
+        if (device.getStatus() != null) {
+            setStatusGauge(device.getDeviceId(), device.getType(), device.getStatus());
+        }
+        if (device.getParameters() != null) {
+            updateDeviceParameters(device.getParameters(), device.getParameters(), device.getType(), device.getDeviceId());
+        }
+    }
+
     @Override
     public void deleteDevice(String deviceId) {
         try {
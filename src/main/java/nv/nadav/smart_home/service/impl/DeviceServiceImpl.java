@@ -1,22 +1,59 @@
 package nv.nadav.smart_home.service.impl;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import nv.nadav.smart_home.config.DeviceCacheProperties;
+import nv.nadav.smart_home.config.DeviceUpdateProperties;
 import nv.nadav.smart_home.dto.DeviceDto;
 import nv.nadav.smart_home.dto.DeviceUpdateDto;
 import nv.nadav.smart_home.exception.DeviceExistsException;
 import nv.nadav.smart_home.exception.DeviceNotFoundException;
 import nv.nadav.smart_home.exception.DeviceValidationException;
+import nv.nadav.smart_home.exception.DeviceVersionConflictException;
 import nv.nadav.smart_home.model.Device;
+import nv.nadav.smart_home.model.DeviceType;
 import nv.nadav.smart_home.model.parameters.*;
+import nv.nadav.smart_home.repository.DeviceFilter;
 import nv.nadav.smart_home.repository.DeviceRepository;
+import nv.nadav.smart_home.serialization.DeviceWriteConverter;
 import nv.nadav.smart_home.service.*;
 import nv.nadav.smart_home.validation.Validators;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class DeviceServiceImpl implements DeviceService {
+    private static final Logger logger = LoggerFactory.getLogger("smart_home.devices");
 
     private final DeviceRepository repo;
     private final DeviceMapper deviceMapper;
@@ -25,7 +62,19 @@ public class DeviceServiceImpl implements DeviceService {
     private final DoorLockParametersMapper doorLockParametersMapper;
     private final LightParametersMapper lightParametersMapper;
     private final WaterHeaterParametersMapper waterHeaterParametersMapper;
-
+    private final ApplicationEventPublisher eventPublisher;
+    // Write-through: every write puts its result here. Entries are private copies, never handed out directly,
+    // so callers can't change cached state by mutating what they get back.
+    private final Cache<String, Device> cache;
+    private final DeviceUpdateProperties updateProperties;
+    private final CounterManager counterManager;
+    private final DeviceWriteBehind writeBehind;
+    private final Validator validator;
+    // Kept current by this instance's inserts and deletes, and reloaded after the cache TTL
+    // to pick up other instances' changes
+    private final Set<String> deviceIds = new ConcurrentSkipListSet<>();
+    private final long deviceIdsTtlNanos;
+    private volatile long deviceIdsLoadedAt;
 
     @Autowired
     public DeviceServiceImpl(
@@ -35,7 +84,14 @@ public class DeviceServiceImpl implements DeviceService {
             CurtainParametersMapper curtainParametersMapper,
             DoorLockParametersMapper doorLockParametersMapper,
             LightParametersMapper lightParametersMapper,
-            WaterHeaterParametersMapper waterHeaterParametersMapper
+            WaterHeaterParametersMapper waterHeaterParametersMapper,
+            ApplicationEventPublisher eventPublisher,
+            DeviceCacheProperties cacheProperties,
+            DeviceUpdateProperties updateProperties,
+            MeterRegistry meterRegistry,
+            CounterManager counterManager,
+            DeviceWriteBehind writeBehind,
+            Validator validator
     ) {
         this.repo = deviceRepository;
         this.deviceMapper = deviceMapper;
@@ -44,9 +100,22 @@ public class DeviceServiceImpl implements DeviceService {
         this.doorLockParametersMapper = doorLockParametersMapper;
         this.lightParametersMapper = lightParametersMapper;
         this.waterHeaterParametersMapper = waterHeaterParametersMapper;
+        this.eventPublisher = eventPublisher;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(cacheProperties.isEnabled() ? cacheProperties.getMaximumSize() : 0)
+                .expireAfterWrite(cacheProperties.getTtl())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "devices");
+        this.updateProperties = updateProperties;
+        this.counterManager = counterManager;
+        this.writeBehind = writeBehind;
+        this.validator = validator;
+        this.deviceIdsTtlNanos = cacheProperties.getTtl().toNanos();
+        this.deviceIdsLoadedAt = System.nanoTime() - deviceIdsTtlNanos - 1;
     }
 
-    private static DeviceDto mapToDto(Device device) {
+    static DeviceDto mapToDto(Device device) {
         DeviceDto deviceDto = new DeviceDto();
         deviceDto.setId(device.getDeviceId());
         deviceDto.setName(device.getName());
@@ -54,95 +123,516 @@ public class DeviceServiceImpl implements DeviceService {
         deviceDto.setRoom(device.getRoom());
         deviceDto.setType(device.getType());
         deviceDto.setStatus(device.getStatus());
+        deviceDto.setVersion(device.getVersion());
         return deviceDto;
     }
 
     @Override
     public DeviceDto addDevice(DeviceDto deviceDto) {
-        if (repo.existsByDeviceId(deviceDto.getId())) {
+        if (existsByDeviceId(deviceDto.getId())) {
             throw new DeviceExistsException();
         }
         Validators.ValidationResult validationResult = Validators.validateNewDeviceData(deviceDto);
         if (validationResult.isValid()) {
             Device newDevice = Device.fromDto(deviceDto);
+            newDevice.setVersion(0L);
             newDevice = repo.insert(newDevice);
-            return mapToDto(newDevice);
+            cache(newDevice);
+            deviceIds.add(newDevice.getDeviceId());
+            return changed(mapToDto(newDevice));
         } else {
             throw new DeviceValidationException(validationResult.errorMessages());
         }
     }
 
+    @Override
+    public DeviceImportResult addDevices(List<DeviceDto> devices) {
+        List<DeviceImportResult.Failure> failed = new ArrayList<>();
+        Map<String, Integer> candidates = new LinkedHashMap<>();  // Device ID to its position in the request
+        for (int i = 0; i < devices.size(); i++) {
+            DeviceDto device = devices.get(i);
+            try {
+                validateNewDevice(device);
+            } catch (DeviceValidationException e) {
+                failed.add(new DeviceImportResult.Failure(i, device != null ? device.getId() : null, e.getMessage()));
+                continue;
+            }
+            if (candidates.putIfAbsent(device.getId(), i) != null) {
+                failed.add(new DeviceImportResult.Failure(i, device.getId(),
+                        String.format("Device ID %s appears more than once", device.getId())));
+            }
+        }
+        // One query for every ID instead of an existence check per device
+        for (String deviceId : repo.findExistingDeviceIds(candidates.keySet())) {
+            failed.add(new DeviceImportResult.Failure(candidates.remove(deviceId), deviceId,
+                    String.format("Device ID %s already exists", deviceId)));
+        }
+
+        List<Device> newDevices = new ArrayList<>(candidates.size());
+        candidates.values().forEach(index -> {
+            Device newDevice = Device.fromDto(devices.get(index));
+            // Assigned here, since a bulk insert doesn't hand the generated IDs back
+            newDevice.set_id(new ObjectId());
+            newDevice.setVersion(0L);
+            newDevices.add(newDevice);
+        });
+        Map<Integer, BulkWriteError> errors = repo.insertUnordered(newDevices);
+        List<DeviceDto> added = new ArrayList<>(newDevices.size());
+        for (int i = 0; i < newDevices.size(); i++) {
+            Device newDevice = newDevices.get(i);
+            BulkWriteError error = errors.get(i);
+            if (error == null) {
+                cache(newDevice);
+                deviceIds.add(newDevice.getDeviceId());
+                added.add(changed(mapToDto(newDevice)));
+            } else {
+                // A duplicate here was inserted concurrently, after the existence check
+                failed.add(new DeviceImportResult.Failure(candidates.get(newDevice.getDeviceId()), newDevice.getDeviceId(),
+                        ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY
+                                ? String.format("Device ID %s already exists", newDevice.getDeviceId())
+                                : error.getMessage()));
+            }
+        }
+        failed.sort(Comparator.comparingInt(DeviceImportResult.Failure::index));
+        return new DeviceImportResult(added, failed);
+    }
+
+    private void validateNewDevice(DeviceDto device) {
+        if (device == null) {
+            throw new DeviceValidationException("Device must be an object");
+        }
+        Set<ConstraintViolation<DeviceDto>> violations = validator.validate(device);
+        if (!violations.isEmpty()) {
+            throw new DeviceValidationException(violations.stream()
+                    .map(ConstraintViolation::getMessage)
+                    .toList());
+        }
+        Validators.ValidationResult validationResult = Validators.validateNewDeviceData(device);
+        if (!validationResult.isValid()) {
+            throw new DeviceValidationException(validationResult.errorMessages());
+        }
+    }
+
     @Override
     public DeviceDto updateDevice(String deviceId, DeviceUpdateDto deviceDto) {
-        Device device = repo.findByDeviceId(deviceId).orElseThrow(() ->
-                new DeviceNotFoundException(String.format("Device ID %s not found", deviceId)));
-        Validators.ValidationResult validationResult = Validators.validateDeviceData(deviceDto, device.getType());
-        if (validationResult.isValid()) {
-            deviceMapper.updateDeviceFromDto(deviceDto, device);
-            DeviceParameters parametersUpdate = deviceDto.getParameters();
-            DeviceParameters currentParameters = device.getParameters();
-            if (parametersUpdate != null) {
-                try {
-                    switch (device.getType()) {
-                        case LIGHT -> lightParametersMapper.updateFromOther(
-                                (LightParameters) parametersUpdate,
-                                (LightParameters) currentParameters
-                        );
-                        case WATER_HEATER -> waterHeaterParametersMapper.updateFromOther(
-                                (WaterHeaterParameters) parametersUpdate,
-                                (WaterHeaterParameters) currentParameters
-                        );
-                        case CURTAIN -> curtainParametersMapper.updateFromOther(
-                                (CurtainParameters) parametersUpdate,
-                                (CurtainParameters) currentParameters
-                        );
-                        case DOOR_LOCK -> doorLockParametersMapper.updateFromOther(
-                                (DoorLockParameters) parametersUpdate,
-                                (DoorLockParameters) currentParameters
-                        );
-                        case AIR_CONDITIONER -> airConditionerParametersMapper.updateFromOther(
-                                (AirConditionerParameters) parametersUpdate,
-                                (AirConditionerParameters) currentParameters
-                        );
-                    }
-                } catch (ClassCastException e) {
-                    throw new DeviceValidationException(String.format("Incorrect parameters for device type %s", device.getType()));
-                }
+        return applyUpdate(deviceId, deviceDto, null);
+    }
+
+    @Override
+    public DeviceDto updateDevice(String deviceId, DeviceUpdateDto deviceDto, long expectedVersion) {
+        return applyUpdate(deviceId, deviceDto, expectedVersion);
+    }
+
+    // Every write is conditional on a version. Without one from the caller, the version read here is used,
+    // and a conflict (a concurrent write, or a stale cache entry) is retried against a fresh read.
+    private DeviceDto applyUpdate(String deviceId, DeviceUpdateDto deviceDto, Long expectedVersion) {
+        // Only the type is needed to validate, and it never changes, so a cached copy is good enough
+        Device current = findDevice(deviceId);
+        validateUpdate(deviceDto, current.getType());
+        if (expectedVersion == null && writeBehind.accepts(current.getType(), deviceDto)) {
+            if (writeBehind.buffer(deviceId, current.getType(), deviceDto)) {
+                // Handed out with the version its flush will store, so it stays good as an expected version
+                current.setVersion(current.getVersion() + 1);
             }
-            device = repo.save(device);
-            return mapToDto(device);
-        } else {
+            mergeUpdate(current, deviceDto);
+            cache(current);
+            return changed(mapToDto(current));
+        }
+        Map<String, Object> fields = DeviceWriteConverter.updateFields(deviceDto);
+        if (fields.isEmpty()) {
+            return mapToDto(current);
+        }
+        // Buffered telemetry is older than this write, so it goes first rather than overwriting it later.
+        // Mongo then has the version handed out with it, which the cached copy already carries.
+        writeBehind.flush(List.of(deviceId));
+        long backoffNanos = updateProperties.getInitialBackoff().toNanos();
+        for (int attempt = 1; ; attempt++) {
+            long version = expectedVersion != null ? expectedVersion : current.getVersion();
+            Optional<Device> updated = repo.updateFields(deviceId, version, fields);
+            if (updated.isPresent()) {
+                Device device = withBuffered(updated.get());
+                cache(device);
+                return changed(mapToDto(device));
+            }
+            cache.invalidate(deviceId);
+            current = findDevice(deviceId);
+            if (expectedVersion != null || attempt >= updateProperties.getMaxAttempts()) {
+                counterManager.increment("device_update_conflicts_total", "Device updates that hit a version conflict",
+                        Map.of("outcome", "rejected"));
+                throw new DeviceVersionConflictException(String.format(
+                        "Device ID %s is at version %d", deviceId, current.getVersion()));
+            }
+            counterManager.increment("device_update_conflicts_total", "Device updates that hit a version conflict",
+                    Map.of("outcome", "retried"));
+            LockSupport.parkNanos(backoffNanos);
+            backoffNanos = Math.min(backoffNanos * 2, updateProperties.getMaxBackoff().toNanos());
+        }
+    }
+
+    @Override
+    public List<DeviceDto> updateDevices(Map<String, DeviceUpdateDto> updates) {
+        List<Device> devices = findDevices(updates.keySet());
+        // Validate everything before writing, so an invalid update leaves the whole batch untouched
+        Map<String, Map<String, Object>> fieldsByDeviceId = new HashMap<>();
+        for (Device device : devices) {
+            DeviceUpdateDto update = updates.get(device.getDeviceId());
+            validateUpdate(update, device.getType());
+            Map<String, Object> fields = DeviceWriteConverter.updateFields(update);
+            if (!fields.isEmpty()) {
+                fieldsByDeviceId.put(device.getDeviceId(), fields);
+            }
+        }
+        writeBehind.flush(fieldsByDeviceId.keySet());
+        // Unconditional, unlike single updates: each sets fields without depending on what was read, so a
+        // conditional write retried on conflict would end in the same state
+        repo.updateFieldsAll(fieldsByDeviceId);
+        List<DeviceDto> result = new ArrayList<>(devices.size());
+        for (Device device : devices) {
+            if (!fieldsByDeviceId.containsKey(device.getDeviceId())) {
+                result.add(mapToDto(device));
+            }
+        }
+        for (Device device : reload(fieldsByDeviceId.keySet())) {
+            result.add(changed(mapToDto(device)));
+        }
+        return result;
+    }
+
+    @Override
+    public List<DeviceDto> updateDevices(Collection<String> deviceIds, DeviceUpdateDto update) {
+        List<Device> devices = findDevices(deviceIds);
+        // The update is shared, so one check per device type covers every device
+        devices.stream().map(Device::getType).distinct().forEach(type -> validateUpdate(update, type));
+        Map<String, Object> fields = DeviceWriteConverter.updateFields(update);
+        if (fields.isEmpty()) {
+            return devices.stream().map(DeviceServiceImpl::mapToDto).toList();
+        }
+        List<String> ids = devices.stream().map(Device::getDeviceId).toList();
+        writeBehind.flush(ids);
+        // Unconditional for the same reason as the per-device bulk write above
+        repo.updateFieldsMany(ids, fields);
+        return reload(ids).stream().map(DeviceServiceImpl::mapToDto).map(this::changed).toList();
+    }
+
+    static void validateUpdate(DeviceUpdateDto deviceDto, DeviceType type) {
+        Validators.ValidationResult validationResult = Validators.validateDeviceData(deviceDto, type);
+        if (!validationResult.isValid()) {
             throw new DeviceValidationException(validationResult.errorMessages());
         }
+        DeviceParameters parameters = deviceDto.getParameters();
+        if (parameters != null && !parametersMatchType(parameters, type)) {
+            throw new DeviceValidationException(String.format("Incorrect parameters for device type %s", type));
+        }
+    }
+
+    private static boolean parametersMatchType(DeviceParameters parameters, DeviceType type) {
+        return switch (type) {
+            case LIGHT -> parameters instanceof LightParameters;
+            case WATER_HEATER -> parameters instanceof WaterHeaterParameters;
+            case CURTAIN -> parameters instanceof CurtainParameters;
+            case DOOR_LOCK -> parameters instanceof DoorLockParameters;
+            case AIR_CONDITIONER -> parameters instanceof AirConditionerParameters;
+        };
+    }
+
+    private void mergeUpdate(Device device, DeviceUpdateDto deviceDto) {
+        deviceMapper.updateDeviceFromDto(deviceDto, device);
+        DeviceParameters parametersUpdate = deviceDto.getParameters();
+        DeviceParameters currentParameters = device.getParameters();
+        if (parametersUpdate != null) {
+            switch (device.getType()) {
+                case LIGHT -> lightParametersMapper.updateFromOther(
+                        (LightParameters) parametersUpdate,
+                        (LightParameters) currentParameters
+                );
+                case WATER_HEATER -> waterHeaterParametersMapper.updateFromOther(
+                        (WaterHeaterParameters) parametersUpdate,
+                        (WaterHeaterParameters) currentParameters
+                );
+                case CURTAIN -> curtainParametersMapper.updateFromOther(
+                        (CurtainParameters) parametersUpdate,
+                        (CurtainParameters) currentParameters
+                );
+                case DOOR_LOCK -> doorLockParametersMapper.updateFromOther(
+                        (DoorLockParameters) parametersUpdate,
+                        (DoorLockParameters) currentParameters
+                );
+                case AIR_CONDITIONER -> airConditionerParametersMapper.updateFromOther(
+                        (AirConditionerParameters) parametersUpdate,
+                        (AirConditionerParameters) currentParameters
+                );
+            }
+        }
     }
 
     @Override
     public DeviceDto getDeviceById(String deviceId) {
-        Device device = repo.findByDeviceId(deviceId).orElseThrow(() ->
-                new DeviceNotFoundException(String.format("Device ID %s not found", deviceId)));
-        return mapToDto(device);
+        return mapToDto(findDevice(deviceId));
+    }
+
+    @Override
+    public Map<String, DeviceDto> getDevicesByIds(Collection<String> deviceIds) {
+        return findDevices(deviceIds).stream()
+                .collect(Collectors.toMap(Device::getDeviceId, DeviceServiceImpl::mapToDto));
     }
 
     @Override
     public List<DeviceDto> getAllDevices() {
         List<Device> devices = repo.findAll();
-        return devices.stream().map(DeviceServiceImpl::mapToDto).toList();
+        return devices.stream().map(this::withBuffered).map(DeviceServiceImpl::mapToDto).toList();
+    }
+
+    @Override
+    public List<DeviceDto> getDevicesMatching(DeviceFilter filter, int limit) {
+        // The index scan returns IDs only; the devices themselves mostly come from the cache
+        List<Device> devices = findDevices(repo.findMatchingDeviceIds(filter, limit));
+        // A cached copy can lag a write made elsewhere, so one that doesn't match is read again, and left out
+        // if it still doesn't
+        List<String> stale = devices.stream()
+                .filter(device -> !filter.matches(device))
+                .map(Device::getDeviceId)
+                .toList();
+        if (!stale.isEmpty()) {
+            devices = Stream.concat(devices.stream(), reload(stale).stream()).toList();
+        }
+        return devices.stream()
+                .filter(filter::matches)
+                .map(DeviceServiceImpl::mapToDto)
+                .sorted(Comparator.comparing(DeviceDto::getId))
+                .toList();
+    }
+
+    @Override
+    public DevicePage getDevicePage(String cursor, int limit) {
+        ObjectId after = cursor != null ? decodeCursor(cursor) : null;
+        // One extra device tells whether there is a next page without another query
+        List<Device> devices = repo.findPage(after, limit + 1);
+        String nextCursor = null;
+        if (devices.size() > limit) {
+            devices = devices.subList(0, limit);
+            nextCursor = encodeCursor(devices.getLast().get_id());
+        }
+        return new DevicePage(devices.stream().map(this::withBuffered).map(DeviceServiceImpl::mapToDto).toList(), nextCursor);
+    }
+
+    @Override
+    public void forEachDevice(Consumer<DeviceDto> consumer) {
+        try (Stream<Device> devices = repo.streamAll()) {
+            devices.map(this::withBuffered).map(DeviceServiceImpl::mapToDto).forEach(consumer);
+        }
+    }
+
+    private static String encodeCursor(ObjectId id) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(id.toByteArray());
+    }
+
+    private static ObjectId decodeCursor(String cursor) {
+        try {
+            return new ObjectId(Base64.getUrlDecoder().decode(cursor));
+        } catch (IllegalArgumentException e) {
+            throw new DeviceValidationException("Invalid cursor " + cursor);
+        }
     }
 
     @Override
     public void deleteDeviceById(String deviceId) {
-        Device device = repo.findByDeviceId(deviceId).orElseThrow(() ->
-                new DeviceNotFoundException(String.format("Device ID %s not found", deviceId)));
+        Device device = findDevice(deviceId);
         repo.delete(device);
+        writeBehind.discard(deviceId);
+        cache.invalidate(deviceId);
+        deviceIds.remove(deviceId);
+        eventPublisher.publishEvent(new DeviceChangedEvent(deviceId, null));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void ensureIndexes() {
+        try {
+            repo.ensureIndexes();
+        } catch (MongoException e) {
+            // Queries still work without them, only slower
+            logger.error("Error creating device indexes", e);
+        }
+    }
+
+    // Writes that bypass this service, such as the reactive API's, only reach it here. Its own writes come back
+    // too, with the version already cached, and leave the cache as it is
+    @EventListener
+    public void onDeviceChanged(DeviceChangedEvent event) {
+        String deviceId = event.deviceId();
+        if (event.isDeleted()) {
+            cache.invalidate(deviceId);
+            deviceIds.remove(deviceId);
+            return;
+        }
+        deviceIds.add(deviceId);
+        Long version = event.device().getVersion();
+        cache.asMap().computeIfPresent(deviceId, (_, cached) ->
+                version == null || version > cached.getVersion() ? null : cached);
+    }
+
+    // Writes by this replica come back here too; they carry the version already cached and are skipped
+    @EventListener
+    public void onStoreChanged(DeviceStoreChangedEvent event) {
+        if (!event.isDeleted()) {
+            Device stored = event.device();
+            deviceIds.add(stored.getDeviceId());
+            cache.asMap().computeIfPresent(stored.getDeviceId(), (_, cached) ->
+                    stored.getVersion() > cached.getVersion() ? withBuffered(copyOf(stored)) : cached);
+            return;
+        }
+        String deviceId = event.deviceId() != null ? event.deviceId() : cachedDeviceId(event.storedId());
+        if (deviceId == null) {
+            // Can't tell which device went, so the ID set is reloaded on its next read
+            expireDeviceIds();
+            return;
+        }
+        writeBehind.discard(deviceId);
+        cache.invalidate(deviceId);
+        deviceIds.remove(deviceId);
+    }
+
+    @EventListener
+    public void onStoreReset(DeviceStoreResetEvent event) {
+        cache.invalidateAll();
+        expireDeviceIds();
+    }
+
+    private String cachedDeviceId(ObjectId storedId) {
+        if (storedId == null) {
+            return null;
+        }
+        return cache.asMap().values().stream()
+                .filter(device -> storedId.equals(device.get_id()))
+                .map(Device::getDeviceId)
+                .findFirst()
+                .orElse(null);
+    }
+
+    private Device findDevice(String deviceId) {
+        Device cached = cache.getIfPresent(deviceId);
+        if (cached != null) {
+            return copyOf(cached);
+        }
+        Device device = repo.findByDeviceId(deviceId).map(this::withBuffered).orElseThrow(() ->
+                new DeviceNotFoundException(String.format("Device ID %s not found", deviceId)));
+        cache(device);
+        return device;
+    }
+
+    private List<Device> findDevices(Collection<String> deviceIds) {
+        List<Device> devices = new ArrayList<>(deviceIds.size());
+        Set<String> missing = new HashSet<>(deviceIds);
+        cache.getAllPresent(deviceIds).forEach((deviceId, cached) -> {
+            devices.add(copyOf(cached));
+            missing.remove(deviceId);
+        });
+        if (!missing.isEmpty()) {
+            devices.addAll(reload(missing));
+        }
+        return devices;
+    }
+
+    // One $in query, also used after bulk writes since they return no documents
+    private List<Device> reload(Collection<String> deviceIds) {
+        if (deviceIds.isEmpty()) {
+            return List.of();
+        }
+        List<Device> loaded = repo.findByDeviceIdIn(deviceIds);
+        loaded.forEach(this::withBuffered);
+        loaded.forEach(this::cache);
+        return loaded;
+    }
+
+    private void cache(Device device) {
+        cache.put(device.getDeviceId(), copyOf(device));
+    }
+
+    // Buffered telemetry is newer than anything read from Mongo, and carries the version its flush will store
+    private Device withBuffered(Device device) {
+        DeviceUpdateDto buffered = writeBehind.peek(device.getDeviceId());
+        if (buffered != null) {
+            mergeUpdate(device, buffered);
+            device.setVersion(device.getVersion() + 1);
+        }
+        return device;
+    }
+
+    private Device copyOf(Device device) {
+        Device copy = new Device();
+        copy.set_id(device.get_id());
+        copy.setDeviceId(device.getDeviceId());
+        copy.setType(device.getType());
+        copy.setName(device.getName());
+        copy.setRoom(device.getRoom());
+        copy.setStatus(device.getStatus());
+        copy.setParameters(copyOf(device.getParameters()));
+        copy.setVersion(device.getVersion());
+        return copy;
+    }
+
+    // The parameter mappers skip nulls, so merging into an empty instance copies every set field
+    private DeviceParameters copyOf(DeviceParameters parameters) {
+        return switch (parameters) {
+            case null -> null;
+            case LightParameters light -> {
+                LightParameters copy = new LightParameters();
+                lightParametersMapper.updateFromOther(light, copy);
+                yield copy;
+            }
+            case WaterHeaterParameters waterHeater -> {
+                WaterHeaterParameters copy = new WaterHeaterParameters();
+                waterHeaterParametersMapper.updateFromOther(waterHeater, copy);
+                yield copy;
+            }
+            case CurtainParameters curtain -> {
+                CurtainParameters copy = new CurtainParameters();
+                curtainParametersMapper.updateFromOther(curtain, copy);
+                yield copy;
+            }
+            case DoorLockParameters doorLock -> {
+                DoorLockParameters copy = new DoorLockParameters();
+                doorLockParametersMapper.updateFromOther(doorLock, copy);
+                yield copy;
+            }
+            case AirConditionerParameters airConditioner -> {
+                AirConditionerParameters copy = new AirConditionerParameters();
+                airConditionerParametersMapper.updateFromOther(airConditioner, copy);
+                yield copy;
+            }
+            default -> throw new IllegalStateException("Unknown parameters " + parameters.getClass());
+        };
+    }
+
+    private DeviceDto changed(DeviceDto device) {
+        eventPublisher.publishEvent(new DeviceChangedEvent(device.getId(), device));
+        return device;
     }
 
     @Override
     public List<String> getDeviceIds() {
-        return repo.getDeviceIds();
+        if (System.nanoTime() - deviceIdsLoadedAt > deviceIdsTtlNanos) {
+            loadDeviceIds();
+        }
+        return List.copyOf(deviceIds);
+    }
+
+    private void expireDeviceIds() {
+        deviceIdsLoadedAt = System.nanoTime() - deviceIdsTtlNanos - 1;
+    }
+
+    private synchronized void loadDeviceIds() {
+        if (System.nanoTime() - deviceIdsLoadedAt <= deviceIdsTtlNanos) {
+            return;
+        }
+        List<String> ids = repo.findAllDeviceIds();
+        // Updated in place rather than swapped, so concurrent adds and deletes aren't lost
+        deviceIds.retainAll(new HashSet<>(ids));
+        deviceIds.addAll(ids);
+        deviceIdsLoadedAt = System.nanoTime();
     }
 
     @Override
     public boolean existsByDeviceId(String deviceId) {
-        return repo.existsByDeviceId(deviceId);
+        return cache.getIfPresent(deviceId) != null || repo.existsByDeviceId(deviceId);
     }
 }
@@ -0,0 +1,114 @@
+package nv.nadav.smart_home.service.impl;
+
+import nv.nadav.smart_home.config.MqttStateProperties;
+import nv.nadav.smart_home.dto.DeviceDto;
+import nv.nadav.smart_home.exception.DeviceNotFoundException;
+import nv.nadav.smart_home.serialization.DeviceCodec;
+import nv.nadav.smart_home.service.DeviceChangedEvent;
+import nv.nadav.smart_home.service.DeviceService;
+import nv.nadav.smart_home.service.DeviceStatePublisher;
+import nv.nadav.smart_home.service.MqttService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Service
+public class DeviceStatePublisherImpl implements DeviceStatePublisher {
+    private static final Logger logger = LoggerFactory.getLogger("smart_home.mqtt");
+
+    private final MqttService mqttService;
+    private final DeviceService deviceService;
+    private final MqttStateProperties properties;
+    // Changes are published from whichever thread made them, so an older snapshot can arrive after a newer one.
+    // Deleted devices keep a tombstone, so a snapshot from before the delete can't bring their state back
+    private final Map<String, Published> published = new ConcurrentHashMap<>();
+
+    private record Published(Long version, boolean deleted) {
+    }
+
+    public DeviceStatePublisherImpl(MqttService mqttService, DeviceService deviceService, MqttStateProperties properties) {
+        this.mqttService = mqttService;
+        this.deviceService = deviceService;
+        this.properties = properties;
+    }
+
+    @Override
+    @EventListener
+    public void onDeviceChanged(DeviceChangedEvent event) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        if (event.isDeleted()) {
+            published.compute(event.deviceId(), (deviceId, last) -> {
+                mqttService.clearState(deviceId);
+                return new Published(last != null ? last.version() : null, true);
+            });
+        } else {
+            publish(event.device());
+        }
+    }
+
+    @Override
+    public void publishAll() {
+        List<DeviceDto> devices = deviceService.getAllDevices();
+        devices.forEach(this::publish);
+        logger.info("Published retained state for {} devices", devices.size());
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void publishOnStartup() {
+        if (properties.isEnabled() && properties.isPublishOnStartup()) {
+            publishAll();
+        }
+    }
+
+    // Published under the device's entry, so the retained message always ends up the newest snapshot
+    private void publish(DeviceDto device) {
+        Published seen = published.get(device.getId());
+        DeviceDto snapshot = device;
+        if (seen != null && seen.deleted()) {
+            // A stale snapshot and one of the device added again look alike, and a new device starts over at
+            // version 0, so only the store can tell them apart
+            snapshot = current(device.getId());
+            if (snapshot == null) {
+                return;
+            }
+        }
+        DeviceDto state = snapshot;
+        published.compute(device.getId(), (deviceId, last) -> {
+            Long version = state.getVersion();
+            // Deleted since the snapshot was taken or looked up
+            if (last != null && last.deleted() && last != seen) {
+                return last;
+            }
+            if (last != null && !last.deleted() && last.version() != null && version != null
+                    && version < last.version()) {
+                return last;
+            }
+            mqttService.publishState(deviceId, toState(state));
+            return new Published(version != null ? version : last != null ? last.version() : null, false);
+        });
+    }
+
+    private DeviceDto current(String deviceId) {
+        try {
+            return deviceService.getDeviceById(deviceId);
+        } catch (DeviceNotFoundException e) {
+            return null;
+        }
+    }
+
+    // Unset fields are left out, since every subscriber receives this on connect
+    private static Map<String, Object> toState(DeviceDto device) {
+        Map<String, Object> state = DeviceCodec.toPayload(device);
+        state.values().removeIf(Objects::isNull);
+        return state;
+    }
+}
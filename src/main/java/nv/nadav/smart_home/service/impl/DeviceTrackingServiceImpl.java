@@ -11,6 +11,7 @@ import org.springframework.stereotype.Service;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 @Service
@@ -39,6 +40,21 @@ public class DeviceTrackingServiceImpl implements DeviceTrackingService {
         redis.srem("seen_devices", deviceId);
     }
 
+    @Override
+    public List<Boolean> areDevicesNew(List<String> deviceIds) {
+        if (deviceIds.isEmpty()) {
+            return List.of();
+        }
+        return redis.smismember("seen_devices", deviceIds.toArray(String[]::new));
+    }
+
+    @Override
+    public void markDevicesSeen(Collection<String> deviceIds) {
+        if (!deviceIds.isEmpty()) {
+            redis.sadd("seen_devices", deviceIds.toArray(String[]::new));
+        }
+    }
+
     @Override
     public List<Interval> getDeviceIntervals(String deviceId) {
         String json = redis.hget("device_on_intervals", deviceId);
@@ -0,0 +1,240 @@
+package nv.nadav.smart_home.service.impl;
+
+import jakarta.annotation.PreDestroy;
+import nv.nadav.smart_home.config.DeviceWriteBehindProperties;
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.model.DeviceType;
+import nv.nadav.smart_home.model.parameters.DoorLockParameters;
+import nv.nadav.smart_home.model.parameters.WaterHeaterParameters;
+import nv.nadav.smart_home.repository.DeviceRepository;
+import nv.nadav.smart_home.serialization.DeviceWriteConverter;
+import nv.nadav.smart_home.service.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Service
+public class DeviceWriteBehindImpl implements DeviceWriteBehind {
+    private static final Logger logger = LoggerFactory.getLogger("smart_home.devices");
+    // Stored paths of fields that change often and are only ever reported by the device itself
+    private static final Map<DeviceType, Set<String>> TELEMETRY_FIELDS = Map.of(
+            DeviceType.WATER_HEATER, Set.of("parameters.temperature"),
+            DeviceType.DOOR_LOCK, Set.of("parameters.battery_level")
+    );
+
+    private final DeviceWriteBehindProperties properties;
+    private final DeviceRepository repo;
+    private final CounterManager counterManager;
+    private final GaugeManager gaugeManager;
+    private final TimerManager timerManager;
+    private final WaterHeaterParametersMapper waterHeaterParametersMapper;
+    private final DoorLockParametersMapper doorLockParametersMapper;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final ScheduledExecutorService scheduler;
+
+    private record Pending(DeviceUpdateDto update, long bufferedAt) {
+    }
+
+    public DeviceWriteBehindImpl(
+            DeviceWriteBehindProperties properties,
+            DeviceRepository repo,
+            CounterManager counterManager,
+            GaugeManager gaugeManager,
+            TimerManager timerManager,
+            WaterHeaterParametersMapper waterHeaterParametersMapper,
+            DoorLockParametersMapper doorLockParametersMapper
+    ) {
+        this.properties = properties;
+        this.repo = repo;
+        this.counterManager = counterManager;
+        this.gaugeManager = gaugeManager;
+        this.timerManager = timerManager;
+        this.waterHeaterParametersMapper = waterHeaterParametersMapper;
+        this.doorLockParametersMapper = doorLockParametersMapper;
+        if (properties.isEnabled()) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("device-write-behind").daemon().factory()
+            );
+            long intervalNanos = properties.getFlushInterval().toNanos();
+            scheduler.scheduleWithFixedDelay(this::flush, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    @Override
+    public boolean accepts(DeviceType type, DeviceUpdateDto update) {
+        if (!isEnabled()) {
+            return false;
+        }
+        Set<String> telemetry = TELEMETRY_FIELDS.getOrDefault(type, Set.of());
+        Set<String> fields = DeviceWriteConverter.updateFields(update).keySet();
+        return !fields.isEmpty() && telemetry.containsAll(fields);
+    }
+
+    @Override
+    public boolean buffer(String deviceId, DeviceType type, DeviceUpdateDto update) {
+        AtomicBoolean first = new AtomicBoolean();
+        // Buffered updates are merged into a copy, since the caller keeps using its own
+        pending.compute(deviceId, (_, buffered) -> {
+            if (buffered == null) {
+                buffered = new Pending(emptyUpdate(type), System.nanoTime());
+                first.set(true);
+            }
+            mergeParameters(update, buffered.update());
+            return buffered;
+        });
+        counterManager.increment(
+                "device_write_behind_buffered_total",
+                "Device updates buffered instead of written synchronously",
+                Map.of("device_type", type.getValue())
+        );
+        reportPending();
+        if (pending.size() >= properties.getMaxBatchSize() && flushQueued.compareAndSet(false, true)) {
+            scheduler.execute(this::flush);
+        }
+        return first.get();
+    }
+
+    @Override
+    public DeviceUpdateDto peek(String deviceId) {
+        Pending buffered = pending.get(deviceId);
+        return buffered != null ? buffered.update() : null;
+    }
+
+    @Override
+    public void discard(String deviceId) {
+        if (pending.remove(deviceId) != null) {
+            reportPending();
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        flushQueued.set(false);
+        flush(new ArrayList<>(pending.keySet()));
+    }
+
+    @Override
+    public synchronized void flush(Collection<String> deviceIds) {
+        Map<String, Pending> batch = new HashMap<>();
+        boolean removed = false;
+        for (String deviceId : deviceIds) {
+            Pending buffered = pending.remove(deviceId);
+            if (buffered != null) {
+                batch.put(deviceId, buffered);
+                removed = true;
+            }
+            if (batch.size() >= properties.getMaxBatchSize()) {
+                write(batch);
+                batch = new HashMap<>();
+            }
+        }
+        write(batch);
+        if (removed) {
+            reportPending();
+        }
+    }
+
+    private void write(Map<String, Pending> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Map<String, Map<String, Object>> fieldsByDeviceId = new HashMap<>();
+        batch.forEach((deviceId, buffered) ->
+                fieldsByDeviceId.put(deviceId, DeviceWriteConverter.updateFields(buffered.update())));
+        try {
+            repo.updateFieldsAll(fieldsByDeviceId);
+        } catch (RuntimeException e) {
+            logger.warn("Write-behind flush of {} devices failed, keeping them buffered", batch.size(), e);
+            counterManager.increment(
+                    "device_write_behind_flush_failures_total",
+                    "Write-behind flushes that failed and were kept for the next one",
+                    Map.of()
+            );
+            // Anything buffered since is newer, so it wins over what is put back
+            batch.forEach((deviceId, failed) -> pending.merge(deviceId, failed, (newer, older) -> {
+                mergeParameters(newer.update(), older.update());
+                return older;
+            }));
+            return;
+        }
+        long now = System.nanoTime();
+        for (Pending written : batch.values()) {
+            timerManager.record(
+                    "device_write_behind_lag_seconds",
+                    "Time from buffering a device update to writing it to Mongo",
+                    Map.of(),
+                    now - written.bufferedAt(),
+                    TimeUnit.NANOSECONDS
+            );
+        }
+        counterManager.incrementBy(
+                "device_write_behind_flushed_total",
+                "Devices written by write-behind flushes",
+                Map.of(),
+                batch.size()
+        );
+    }
+
+    private void reportPending() {
+        gaugeManager.setNumericGauge(
+                "device_write_behind_pending",
+                "Devices with buffered updates not yet written to Mongo",
+                pending.size(),
+                Map.of()
+        );
+    }
+
+    private static DeviceUpdateDto emptyUpdate(DeviceType type) {
+        DeviceUpdateDto update = new DeviceUpdateDto();
+        update.setParameters(switch (type) {
+            case WATER_HEATER -> new WaterHeaterParameters();
+            case DOOR_LOCK -> new DoorLockParameters();
+            default -> throw new IllegalArgumentException("No telemetry fields for device type " + type);
+        });
+        return update;
+    }
+
+    private void mergeParameters(DeviceUpdateDto source, DeviceUpdateDto target) {
+        switch (source.getParameters()) {
+            case WaterHeaterParameters waterHeater -> waterHeaterParametersMapper.updateFromOther(
+                    waterHeater,
+                    (WaterHeaterParameters) target.getParameters()
+            );
+            case DoorLockParameters doorLock -> doorLockParametersMapper.updateFromOther(
+                    doorLock,
+                    (DoorLockParameters) target.getParameters()
+            );
+            default -> throw new IllegalArgumentException(
+                    "No telemetry fields for " + source.getParameters().getClass().getSimpleName());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        // The last batch is written here, before the Mongo client goes away
+        flush();
+    }
+}
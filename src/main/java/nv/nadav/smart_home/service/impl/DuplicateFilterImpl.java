@@ -0,0 +1,55 @@
+package nv.nadav.smart_home.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import nv.nadav.smart_home.config.MqttDedupProperties;
+import nv.nadav.smart_home.service.CounterManager;
+import nv.nadav.smart_home.service.DuplicateFilter;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+
+@Service
+public class DuplicateFilterImpl implements DuplicateFilter {
+    private static final String DESCRIPTION = "Inbound MQTT messages checked against recently seen message IDs";
+
+    private final boolean enabled;
+    private final CounterManager counterManager;
+    private final Cache<@NotNull String, Boolean> seen;
+
+    public DuplicateFilterImpl(MqttDedupProperties properties, CounterManager counterManager) {
+        this.enabled = properties.isEnabled();
+        this.counterManager = counterManager;
+        this.seen = Caffeine.newBuilder()
+                .maximumSize(properties.getMaxEntries())
+                .expireAfterWrite(properties.getWindow())
+                .build();
+    }
+
+    @Override
+    public boolean isDuplicate(String senderGroup, String senderId, String messageId) {
+        if (!enabled) {
+            return false;
+        }
+        if (messageId == null) {
+            counterManager.increment("mqtt_dedup_checks_total", DESCRIPTION, Map.of("result", "untracked"));
+            return false;
+        }
+        boolean duplicate = seen.asMap().putIfAbsent(key(senderGroup, senderId, messageId), Boolean.TRUE) != null;
+        counterManager.increment("mqtt_dedup_checks_total", DESCRIPTION, Map.of("result", duplicate ? "hit" : "miss"));
+        return duplicate;
+    }
+
+    @Override
+    public void forget(String senderGroup, String senderId, String messageId) {
+        if (enabled && messageId != null) {
+            seen.invalidate(key(senderGroup, senderId, messageId));
+        }
+    }
+
+    // IDs are only unique per sender, so two clients reusing a counter don't collide
+    private static String key(String senderGroup, String senderId, String messageId) {
+        return senderGroup + ':' + senderId + ':' + messageId;
+    }
+}
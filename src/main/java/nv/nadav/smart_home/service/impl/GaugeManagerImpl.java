@@ -9,6 +9,7 @@ import org.jetbrains.annotations.NotNull;
 import org.springframework.stereotype.Service;
 import com.google.common.util.concurrent.AtomicDouble;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
@@ -73,6 +74,16 @@ public class GaugeManagerImpl implements GaugeManager {
         ref.set(value);
     }
 
+    @Override
+    public void removeDeviceGauges(String deviceId) {
+        String tag = "device_id=" + deviceId;
+        gauges.asMap().keySet().removeIf(key ->
+                Arrays.asList(key.substring(key.indexOf('|') + 1).split(",")).contains(tag));
+        registry.getMeters().stream()
+                .filter(meter -> meter instanceof Gauge && deviceId.equals(meter.getId().getTag("device_id")))
+                .forEach(registry::remove);
+    }
+
     private String buildKey(String name, Map<String, String> tags) {
         return name + "|" + tags.entrySet().stream()
                 .sorted(Map.Entry.comparingByKey())
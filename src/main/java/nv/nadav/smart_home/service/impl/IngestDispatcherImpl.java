@@ -0,0 +1,142 @@
+package nv.nadav.smart_home.service.impl;
+
+import jakarta.annotation.PreDestroy;
+import nv.nadav.smart_home.config.MqttIngestProperties;
+import nv.nadav.smart_home.service.GaugeManager;
+import nv.nadav.smart_home.service.IngestDispatcher;
+import nv.nadav.smart_home.service.TimerManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Service
+public class IngestDispatcherImpl implements IngestDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger("smart_home.mqtt.ingest");
+    private final GaugeManager gaugeManager;
+    private final TimerManager timerManager;
+    private final Lane[] lanes;
+
+    public IngestDispatcherImpl(MqttIngestProperties properties, GaugeManager gaugeManager, TimerManager timerManager) {
+        this.gaugeManager = gaugeManager;
+        this.timerManager = timerManager;
+        int laneCount = properties.getLanes() > 0 ? properties.getLanes() : Runtime.getRuntime().availableProcessors();
+        ThreadFactory threadFactory = Thread.ofVirtual().name("mqtt-ingest-", 0).factory();
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(
+                    Executors.newSingleThreadExecutor(threadFactory),
+                    new AtomicInteger(),
+                    Map.of("lane", String.valueOf(i))
+            );
+        }
+        logger.info("MQTT ingest running on {} lanes", laneCount);
+    }
+
+    // Each lane is a single worker, so everything hashed to it runs strictly in order
+    private record Lane(ExecutorService executor, AtomicInteger depth, Map<String, String> tags) {
+    }
+
+    @Override
+    public void dispatch(String key, Runnable task) {
+        submit(laneFor(key), key, task);
+    }
+
+    // Synchronized so two of these never queue on shared lanes in opposite orders, which would leave
+    // each holding a lane the other waits for
+    @Override
+    public synchronized void dispatchAll(Collection<String> keys, Runnable task) {
+        List<Lane> held = keys.stream().map(this::laneFor).distinct().toList();
+        String key = String.join(",", keys);
+        AtomicInteger waiting = new AtomicInteger(held.size());
+        CountDownLatch done = new CountDownLatch(1);
+        for (Lane lane : held) {
+            boolean queued = submit(lane, key, () -> {
+                // The last lane to get here runs the task, the others wait for it
+                if (waiting.decrementAndGet() > 0) {
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return;
+                }
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            });
+            // Without this lane the count never reaches zero, so the task is dropped and the lanes already
+            // holding for it are let go
+            if (!queued) {
+                done.countDown();
+                return;
+            }
+        }
+    }
+
+    private Lane laneFor(String key) {
+        return lanes[Math.floorMod(key.hashCode(), lanes.length)];
+    }
+
+    // False if the lane rejected the task
+    private boolean submit(Lane lane, String key, Runnable task) {
+        long enqueuedAt = System.nanoTime();
+        reportDepth(lane, lane.depth().incrementAndGet());
+        try {
+            lane.executor().execute(() -> {
+                reportDepth(lane, lane.depth().decrementAndGet());
+                timerManager.record(
+                        "mqtt_ingest_lane_wait_seconds",
+                        "Time MQTT messages wait in their ingest lane",
+                        lane.tags(),
+                        System.nanoTime() - enqueuedAt,
+                        TimeUnit.NANOSECONDS
+                );
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Unhandled error while processing message for {}", key, e);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            reportDepth(lane, lane.depth().decrementAndGet());
+            logger.error("Ingest lane rejected message for {}, shutting down?", key, e);
+            return false;
+        }
+    }
+
+    private void reportDepth(Lane lane, int depth) {
+        gaugeManager.setNumericGauge(
+                "mqtt_ingest_queue_depth",
+                "MQTT messages waiting in an ingest lane",
+                depth,
+                lane.tags()
+        );
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        for (Lane lane : lanes) {
+            lane.executor().shutdown();
+        }
+        for (Lane lane : lanes) {
+            if (!lane.executor().awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warn("Ingest lane did not drain in time, {} messages dropped", lane.depth().get());
+                lane.executor().shutdownNow();
+            }
+        }
+    }
+}
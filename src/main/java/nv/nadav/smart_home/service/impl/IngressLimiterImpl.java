@@ -0,0 +1,189 @@
+package nv.nadav.smart_home.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PreDestroy;
+import nv.nadav.smart_home.config.MqttRateLimitProperties;
+import nv.nadav.smart_home.service.CounterManager;
+import nv.nadav.smart_home.service.IngressLimiter;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@Service
+public class IngressLimiterImpl implements IngressLimiter {
+    private static final Logger logger = LoggerFactory.getLogger("smart_home.mqtt");
+    private final MqttRateLimitProperties properties;
+    private final CounterManager counterManager;
+    private final long maxDelayNanos;
+    private final Cache<@NotNull String, TokenBucket> senderBuckets = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+    private final Cache<@NotNull String, TokenBucket> deviceBuckets = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+    // Delayed messages per device, in arrival order. While a device has any, its later messages queue behind them
+    // even when within their limits, so another sender's message never overtakes a delayed one
+    private final ConcurrentHashMap<String, Deque<Held>> held = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("mqtt-ingress-delay").daemon().factory()
+    );
+
+    public IngressLimiterImpl(MqttRateLimitProperties properties, CounterManager counterManager) {
+        this.properties = properties;
+        this.counterManager = counterManager;
+        this.maxDelayNanos = properties.getOverLimitAction() == MqttRateLimitProperties.OverLimitAction.DELAY
+                ? properties.getMaxDelay().toNanos()
+                : 0;
+    }
+
+    @Override
+    public boolean submit(String senderGroup, String senderId, String deviceId, Runnable task) {
+        if (!properties.isEnabled()) {
+            task.run();
+            return true;
+        }
+        String sender = senderGroup + ":" + senderId;
+        long now = System.nanoTime();
+        TokenBucket senderBucket = senderBuckets.get(sender, _ ->
+                new TokenBucket(properties.getSenderRate(), properties.getSenderBurst(), now));
+        TokenBucket deviceBucket = deviceBuckets.get(deviceId, _ ->
+                new TokenBucket(properties.getDeviceRate(), properties.getDeviceBurst(), now));
+
+        long senderWait = senderBucket.reserve(now, maxDelayNanos);
+        if (senderWait < 0) {
+            drop(sender, deviceId, "sender");
+            return false;
+        }
+        long deviceWait = deviceBucket.reserve(now, maxDelayNanos);
+        if (deviceWait < 0) {
+            senderBucket.cancel();  // Don't charge the sender for a message that was never processed
+            drop(sender, deviceId, "device");
+            return false;
+        }
+
+        long wait = Math.max(senderWait, deviceWait);
+        if (wait > 0) {
+            count(sender, senderWait >= deviceWait ? "sender" : "device", "delayed");
+        }
+        if (!hold(deviceId, now + wait, task, wait > 0)) {
+            task.run();
+        }
+        return true;
+    }
+
+    private record Held(long due, Runnable task) {
+    }
+
+    // False if the device has nothing held and the task doesn't need holding either, so it can run right away
+    private boolean hold(String deviceId, long due, Runnable task, boolean delayed) {
+        boolean[] first = {false};
+        Deque<Held> queue = held.compute(deviceId, (_, pending) -> {
+            if (pending == null) {
+                if (!delayed) {
+                    return null;
+                }
+                pending = new ArrayDeque<>();
+                first[0] = true;
+            }
+            pending.add(new Held(due, task));
+            return pending;
+        });
+        if (queue == null) {
+            return false;
+        }
+        if (first[0]) {
+            scheduler.schedule(() -> release(deviceId), due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        return true;
+    }
+
+    // Runs the device's held tasks in order as they come due. A task leaves the queue only after it has run,
+    // so a message arriving meanwhile still queues behind it
+    private void release(String deviceId) {
+        Held next;
+        while ((next = head(deviceId)) != null) {
+            long wait = next.due() - System.nanoTime();
+            if (wait > 0) {
+                scheduler.schedule(() -> release(deviceId), wait, TimeUnit.NANOSECONDS);
+                return;
+            }
+            try {
+                next.task().run();
+            } catch (RuntimeException e) {
+                logger.error("Error running delayed message for device {}", deviceId, e);
+            }
+            held.computeIfPresent(deviceId, (_, pending) -> {
+                pending.poll();
+                return pending.isEmpty() ? null : pending;
+            });
+        }
+    }
+
+    private Held head(String deviceId) {
+        Held[] head = {null};
+        held.computeIfPresent(deviceId, (_, pending) -> {
+            head[0] = pending.peek();
+            return pending;
+        });
+        return head[0];
+    }
+
+    private void drop(String sender, String deviceId, String limit) {
+        logger.warn("Dropping message from {} for device {}, {} limit exceeded", sender, deviceId, limit);
+        count(sender, limit, "dropped");
+    }
+
+    private void count(String sender, String limit, String action) {
+        counterManager.increment(
+                "mqtt_ingress_limited_total",
+                "MQTT messages held back or discarded by ingress rate limits",
+                Map.of("sender", sender, "limit", limit, "action", action)
+        );
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    // Token bucket kept as the time its next token is due (GCRA), so there is no refill task and a check is a few
+    // arithmetic operations
+    static final class TokenBucket {
+        private final long intervalNanos;
+        private final long burstNanos;
+        private long nextFree;
+
+        TokenBucket(double ratePerSecond, int burst, long now) {
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+            this.burstNanos = intervalNanos * Math.max(0, burst - 1);
+            this.nextFree = now;
+        }
+
+        // Returns how long to wait for the token, or -1 without taking it if that exceeds maxWaitNanos
+        synchronized long reserve(long now, long maxWaitNanos) {
+            long arrival = Math.max(nextFree, now);
+            long wait = Math.max(0, arrival - burstNanos - now);
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            nextFree = arrival + intervalNanos;
+            return wait;
+        }
+
+        synchronized void cancel() {
+            nextFree -= intervalNanos;
+        }
+    }
+}
@@ -1,17 +1,36 @@
 package nv.nadav.smart_home.service.impl;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Utf8;
+import com.google.common.util.concurrent.RateLimiter;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.validation.Validator;
 import jakarta.validation.ConstraintViolation;
+import nv.nadav.smart_home.config.MqttDeadLetterProperties;
+import nv.nadav.smart_home.config.MqttIngestProperties;
+import nv.nadav.smart_home.config.MqttOutboxProperties;
+import nv.nadav.smart_home.config.MqttPublishProperties;
 import nv.nadav.smart_home.dto.DeviceDto;
 import nv.nadav.smart_home.dto.DeviceUpdateDto;
 import nv.nadav.smart_home.exception.DeviceNotFoundException;
 import nv.nadav.smart_home.exception.DeviceValidationException;
+import nv.nadav.smart_home.model.DeviceType;
+import nv.nadav.smart_home.serialization.DeviceCodec;
+import nv.nadav.smart_home.serialization.PayloadFormat;
+import nv.nadav.smart_home.service.CounterManager;
+import nv.nadav.smart_home.service.DeadLetterStore;
 import nv.nadav.smart_home.service.DeviceMetricsService;
 import nv.nadav.smart_home.service.DeviceService;
+import nv.nadav.smart_home.service.DuplicateFilter;
+import nv.nadav.smart_home.service.InboundMessage;
+import nv.nadav.smart_home.service.IngestDispatcher;
+import nv.nadav.smart_home.service.IngressLimiter;
+import nv.nadav.smart_home.service.MqttClientFactory;
 import nv.nadav.smart_home.service.MqttService;
+import nv.nadav.smart_home.service.PublishJournal;
+import nv.nadav.smart_home.service.UpdateCoalescer;
+import nv.nadav.smart_home.validation.Validators;
 import org.eclipse.paho.mqttv5.client.*;
 import org.eclipse.paho.mqttv5.common.MqttException;
 import org.eclipse.paho.mqttv5.common.MqttMessage;
@@ -22,33 +41,127 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @Service
 public class MqttServiceImpl implements MqttService {
     private static final Logger logger = LoggerFactory.getLogger("smart_home.mqtt");
+    private static final String SHARED_SUBSCRIPTION = "$share/backend/" + TOPIC + "/#";
+    // How long replay waits for room in the window before checking the connection again
+    private static final long REPLAY_WINDOW_WAIT_MILLIS = 1000;
     private final Validator validator;
-    private final MqttClient mqttClient;
+    private final MqttAsyncClient mqttClient;
+    private final MqttClientFactory clientFactory;
+    // Extra connections in the shared subscription, on top of mqttClient, which also publishes
+    private final List<MqttAsyncClient> consumers = new ArrayList<>();
+    private final int consumerCount;
+    private final List<Map<String, String>> consumerTags;
     private final DeviceService deviceService;
     private final DeviceMetricsService metricsService;
-    private Queue<MessageRecord> messageQueue;
+    private final IngestDispatcher ingestDispatcher;
+    private final IngressLimiter ingressLimiter;
+    private final DuplicateFilter duplicateFilter;
+    private final UpdateCoalescer updateCoalescer;
+    private final PublishJournal publishJournal;
+    private final DeadLetterStore deadLetterStore;
+    private final int replayBatchSize;
+    private final RateLimiter replayLimiter;
+    private final ExecutorService replayExecutor;
+    private final AtomicBoolean replaying = new AtomicBoolean();
+    private final Semaphore inflightWindow;
+    private final PayloadFormat payloadFormat;
+    private final CounterManager counterManager;
+    private final int topicAliasMaximum;
+    private final List<UserProperty> senderProperties;
+    private final int senderPropertyBytes;
+    // Topics the client has aliased on the current connection, as far as we can tell from the broker's limit
+    private final Set<String> aliasedTopics = ConcurrentHashMap.newKeySet();
+    private volatile int outgoingAliasMaximum;
+    private final MqttActionListener publishListener = new MqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            settle(token.getUserContext());
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable exception) {
+            if (settle(token.getUserContext())) {
+                InFlight inFlight = (InFlight) token.getUserContext();
+                logger.error("Error trying to publish, keeping message for replay", exception);
+                publishJournal.append(inFlight.topic(), inFlight.payload(), inFlight.qos(), inFlight.format(),
+                        inFlight.retained());
+            }
+        }
+    };
+
+    // Settled exactly once, by whichever of deliveryComplete or the action listener sees it first
+    private record InFlight(String topic, byte[] payload, int qos, PayloadFormat format, boolean retained,
+                            AtomicBoolean settled) {
+    }
 
     @Autowired
     public MqttServiceImpl(
-            MqttClient client,
+            MqttAsyncClient client,
+            MqttClientFactory clientFactory,
             DeviceService deviceService,
             Validator validator,
-            DeviceMetricsService metricsService
+            DeviceMetricsService metricsService,
+            IngestDispatcher ingestDispatcher,
+            IngressLimiter ingressLimiter,
+            DuplicateFilter duplicateFilter,
+            UpdateCoalescer updateCoalescer,
+            PublishJournal publishJournal,
+            DeadLetterStore deadLetterStore,
+            MqttOutboxProperties outboxProperties,
+            MqttPublishProperties publishProperties,
+            MqttIngestProperties ingestProperties,
+            MqttDeadLetterProperties deadLetterProperties,
+            CounterManager counterManager
     ) {
         mqttClient = client;
+        this.clientFactory = clientFactory;
+        this.consumerCount = Math.max(1, ingestProperties.getConsumers());
+        this.consumerTags = IntStream.range(0, consumerCount)
+                .mapToObj(i -> Map.of("consumer", String.valueOf(i)))
+                .toList();
         this.deviceService = deviceService;
-        messageQueue = new LinkedList<>();
         this.validator = validator;
         this.metricsService = metricsService;
-    }
-
-    private record MessageRecord(String topic, MqttMessage message) {
+        this.ingestDispatcher = ingestDispatcher;
+        this.ingressLimiter = ingressLimiter;
+        this.duplicateFilter = duplicateFilter;
+        this.updateCoalescer = updateCoalescer;
+        this.publishJournal = publishJournal;
+        this.deadLetterStore = deadLetterStore;
+        this.replayBatchSize = deadLetterProperties.getReplayBatchSize();
+        this.replayLimiter = RateLimiter.create(outboxProperties.getReplayRate());
+        this.replayExecutor = Executors.newSingleThreadExecutor(
+                Thread.ofVirtual().name("mqtt-outbox-replay").factory()
+        );
+        this.inflightWindow = new Semaphore(publishProperties.getMaxInflight());
+        this.payloadFormat = publishProperties.getPayloadFormat();
+        this.counterManager = counterManager;
+        this.topicAliasMaximum = publishProperties.getTopicAliasMaximum();
+        this.senderProperties = publishProperties.isCompactSenderHeader()
+                ? List.of(new UserProperty(SENDER_PROPERTY, "backend/" + client.getClientId()))
+                : List.of(
+                        new UserProperty("sender_id", client.getClientId()),
+                        new UserProperty("sender_group", "backend")
+                );
+        // Identifier byte plus length-prefixed key and value, per property
+        this.senderPropertyBytes = senderProperties.stream()
+                .mapToInt(p -> 5 + Utf8.encodedLength(p.getKey()) + Utf8.encodedLength(p.getValue()))
+                .sum();
     }
 
     @PostConstruct
@@ -68,115 +181,21 @@ public class MqttServiceImpl implements MqttService {
                 }
 
                 @Override
-                public void messageArrived(String topic, MqttMessage message) throws Exception {
-                    MqttProperties props = message.getProperties();
-                    List<UserProperty> userProps = props.getUserProperties();
-                    String senderId = null;
-                    String senderGroup = null;
-                    for (UserProperty prop : userProps) {
-                        if ("sender_id".equals(prop.getKey())) {
-                            senderId = prop.getValue();
-                        } else if ("sender_group".equals(prop.getKey())) {
-                            senderGroup = prop.getValue();
-                        }
-                    }
-                    if (senderId == null) {
-                        logger.error("Message missing sender");
-                        return;
-                    }
-                    if (senderGroup == null) {
-                        logger.error("Message missing sender group");
-                        return;
-                    }
-                    if (mqttClient.getClientId().equals(senderId) || "backend".equals(senderGroup)) {
-                        return;
-                    }
-                    logger.info("Message received on topic {}", topic);
-
-                    String json = new String(message.getPayload(), StandardCharsets.UTF_8);
-
-                    // Extract device_id from topic:
-                    // expected format nadavnv-smart-home/devices/<device_id>/<method> or similar
-                    String[] topicSegments = topic.split("/");
-                    if (topicSegments.length == 4) {
-                        String deviceId = topicSegments[2];
-                        Method method;
-                        try {
-                            method = Method.fromValue(topicSegments[3]);
-                        } catch (IllegalArgumentException e) {
-                            logger.error("Unknown method {}", topicSegments[3], e);
-                            return;
-                        }
-
-                        switch (method) {
-                            case POST -> {
-                                try {
-                                    ObjectMapper mapper = new ObjectMapper();
-                                    DeviceDto deviceDto = mapper.readValue(json, DeviceDto.class);
-                                    Set<ConstraintViolation<DeviceDto>> violations = validator.validate(deviceDto);
-                                    if (!violations.isEmpty()) {
-                                        throw new DeviceValidationException(violations.stream()
-                                                .map(ConstraintViolation::getMessage)
-                                                .toList());
-                                    }
-                                    deviceService.addDevice(deviceDto);
-                                    metricsService.addDevice(deviceDto);
-                                } catch (JsonProcessingException e) {
-                                    logger.error("Error parsing json", e);
-                                } catch (DeviceValidationException e) {
-                                    logger.error("Error validating {}", deviceId, e);
-                                }
-                            }
-                            case UPDATE -> {
-                                try {
-                                    DeviceDto device = deviceService.getDeviceById(deviceId);
-                                    DeviceUpdateDto update = DeviceUpdateDto.deserialize(json, device.getType());
-                                    deviceService.updateDevice(deviceId, update);
-                                    metricsService.updateDevice(
-                                            DeviceUpdateDto.fromDto(device),
-                                            update,
-                                            device.getType(),
-                                            deviceId
-                                    );
-                                } catch (DeviceNotFoundException e) {
-                                    logger.error("Device {} not found", deviceId, e);
-                                } catch (DeviceValidationException e) {
-                                    logger.error("Error validating {}", deviceId, e);
-                                }
-                            }
-                            case DELETE -> {
-                                try {
-                                    deviceService.deleteDeviceById(deviceId);
-                                    metricsService.deleteDevice(deviceId);
-                                } catch (DeviceNotFoundException e) {
-                                    logger.error("Device {} not found", deviceId, e);
-                                }
-                            }
-                        }
-                    } else {
-                        logger.error("Incorrect topic {}", topic);
-                    }
-
+                public void messageArrived(String topic, MqttMessage message) {
+                    onMessage(0, topic, message);
                 }
 
                 @Override
                 public void deliveryComplete(IMqttToken iMqttToken) {
-                    logger.info("Delivery complete");
+                    settle(iMqttToken.getUserContext());
                 }
 
                 @Override
                 public void connectComplete(boolean reconnect, String serverURI) {
                     logger.info("Connected to broker at {}{}", serverURI, reconnect ? " (reconnected)" : "");
-                    Queue<MessageRecord> unsentMessages = new LinkedList<>();
-                    while (!messageQueue.isEmpty()) {
-                        MessageRecord message = messageQueue.poll();
-                        try {
-                            mqttClient.publish(message.topic, message.message);
-                        } catch (MqttException e) {
-                            unsentMessages.add(message);
-                        }
-                    }
-                    messageQueue = unsentMessages;
+                    // Aliases only live as long as the connection
+                    aliasedTopics.clear();
+                    scheduleReplay(true);
                 }
 
                 @Override
@@ -187,43 +206,578 @@ public class MqttServiceImpl implements MqttService {
             MqttConnectionOptions options = new MqttConnectionOptions();
             options.setAutomaticReconnect(true);
             options.setCleanStart(false);
+            options.setTopicAliasMaximum(topicAliasMaximum);
 
-            mqttClient.connect(options);
+            IMqttToken connectToken = mqttClient.connect(options);
+            connectToken.waitForCompletion();
+            // The client aliases outbound topics on its own, up to the limit the broker grants in its CONNACK
+            MqttProperties connack = connectToken.getResponseProperties();
+            outgoingAliasMaximum = connack == null || connack.getTopicAliasMaximum() == null
+                    ? 0
+                    : connack.getTopicAliasMaximum();
+            logger.info("Broker allows {} outbound topic aliases", outgoingAliasMaximum);
 
-            mqttClient.subscribe("$share/backend/" + TOPIC + "/#", 2);
+            mqttClient.subscribe(SHARED_SUBSCRIPTION, 2).waitForCompletion();
+            for (int i = 1; i < consumerCount; i++) {
+                consumers.add(connectConsumer(i));
+            }
 
-            logger.info("MQTT connected and subscribed");
+            logger.info("MQTT connected and subscribed with {} consumer connections", consumerCount);
         } catch (MqttException e) {
             logger.error("Error while establishing MQTT client", e);
         }
     }
 
+    // The broker spreads the shared subscription across these, so each adds a socket and a callback thread
+    private MqttAsyncClient connectConsumer(int consumer) throws MqttException {
+        MqttAsyncClient client = clientFactory.create("-c" + consumer);
+        client.setCallback(new MqttCallback() {
+            @Override
+            public void disconnected(MqttDisconnectResponse response) {
+                logger.warn("Consumer {} disconnected: {}", consumer, response.getReasonString());
+            }
+
+            @Override
+            public void mqttErrorOccurred(MqttException e) {
+                logger.error("MQTT error on consumer {}", consumer, e);
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                onMessage(consumer, topic, message);
+            }
+
+            @Override
+            public void deliveryComplete(IMqttToken token) {
+            }
+
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                logger.info("Consumer {} connected to {}{}", consumer, serverURI, reconnect ? " (reconnected)" : "");
+            }
+
+            @Override
+            public void authPacketArrived(int reasonCode, MqttProperties properties) {
+            }
+        });
+        MqttConnectionOptions options = new MqttConnectionOptions();
+        options.setAutomaticReconnect(true);
+        options.setCleanStart(false);
+        options.setTopicAliasMaximum(topicAliasMaximum);
+        client.connect(options).waitForCompletion();
+        client.subscribe(SHARED_SUBSCRIPTION, 2).waitForCompletion();
+        return client;
+    }
+
+    private void onMessage(int consumer, String topic, MqttMessage message) {
+        counterManager.increment(
+                "mqtt_consumer_messages_total",
+                "MQTT messages received, per consumer connection",
+                consumerTags.get(consumer)
+        );
+        MqttProperties props = message.getProperties();
+        List<UserProperty> userProps = props.getUserProperties();
+        String senderId = null;
+        String senderGroup = null;
+        String messageId = null;
+        for (UserProperty prop : userProps) {
+            if ("sender_id".equals(prop.getKey())) {
+                senderId = prop.getValue();
+            } else if ("sender_group".equals(prop.getKey())) {
+                senderGroup = prop.getValue();
+            } else if (SENDER_PROPERTY.equals(prop.getKey())) {
+                int separator = prop.getValue().indexOf('/');
+                if (separator > 0) {
+                    senderGroup = prop.getValue().substring(0, separator);
+                    senderId = prop.getValue().substring(separator + 1);
+                }
+            } else if ("message_id".equals(prop.getKey())) {
+                messageId = prop.getValue();
+            }
+        }
+        if (messageId == null && props.getCorrelationData() != null) {
+            messageId = HexFormat.of().formatHex(props.getCorrelationData());
+        }
+        if (senderId == null) {
+            logger.error("Message missing sender");
+            return;
+        }
+        if (senderGroup == null) {
+            logger.error("Message missing sender group");
+            return;
+        }
+        if (mqttClient.getClientId().equals(senderId) || "backend".equals(senderGroup)) {
+            return;
+        }
+        PayloadFormat format;
+        try {
+            format = PayloadFormat.fromContentType(props.getContentType());
+        } catch (IllegalArgumentException e) {
+            logger.error("Unsupported payload from {}: {}", senderId, e.getMessage());
+            return;
+        }
+        // Redeliveries are dropped here, before they cost a rate-limit token or any storage work
+        if (duplicateFilter.isDuplicate(senderGroup, senderId, messageId)) {
+            logger.info("Dropping duplicate message {} from {}", messageId, senderId);
+            return;
+        }
+        logger.info("Message received on topic {}", topic);
+
+        // Extract device_id from topic:
+        // expected format nadavnv-smart-home/devices/<device_id>/<method> or similar
+        String[] topicSegments = topic.split("/");
+        if (topicSegments.length == 4) {
+            String deviceId = topicSegments[2];
+            Method method;
+            try {
+                method = Method.fromValue(topicSegments[3]);
+            } catch (IllegalArgumentException e) {
+                logger.error("Unknown method {}", topicSegments[3], e);
+                return;
+            }
+            if (BULK_DEVICE_ID.equals(deviceId) && method != Method.UPDATE) {
+                logger.error("Bulk topic only takes updates, got {}", method.getValue());
+                return;
+            }
+            InboundMessage inbound = new InboundMessage(
+                    deviceId, method, senderGroup, senderId, message.getPayload(), format);
+            if (!ingressLimiter.submit(senderGroup, senderId, deviceId, () -> route(inbound))) {
+                // The message was never processed, so the sender's retry of it must not count as a duplicate
+                duplicateFilter.forget(senderGroup, senderId, messageId);
+            }
+        } else {
+            logger.error("Incorrect topic {}", topic);
+        }
+    }
+
+    private void route(InboundMessage message) {
+        String deviceId = message.deviceId();
+        // Hand off so a slow device never holds up Paho's callback thread
+        if (BULK_DEVICE_ID.equals(deviceId)) {
+            routeBulkUpdate(message);
+        } else if (message.method() == Method.UPDATE && updateCoalescer.isEnabled()) {
+            // Drained on the lane rather than the timer: a POST or DELETE routed meanwhile has either
+            // taken the batch ahead of itself, or queued behind this drain
+            updateCoalescer.offer(message, () -> ingestDispatcher.dispatch(deviceId, () -> {
+                List<InboundMessage> batch = updateCoalescer.drain(deviceId);
+                if (!batch.isEmpty()) {
+                    handleUpdates(deviceId, batch);
+                }
+            }));
+        } else {
+            dispatchBuffered(deviceId);
+            ingestDispatcher.dispatch(deviceId, () -> handleMessage(message));
+        }
+    }
+
+    // Parsed before dispatch, since which lanes it holds depends on the devices it names
+    private void routeBulkUpdate(InboundMessage message) {
+        List<DeviceCodec.BulkUpdate> entries;
+        try {
+            entries = DeviceCodec.readBulkUpdate(message.payload(), message.format());
+        } catch (IOException e) {
+            logger.error("Error parsing bulk update", e);
+            deadLetterStore.add(message, DeadLetterStore.Reason.PARSE_ERROR, e.getMessage());
+            return;
+        }
+        Set<String> deviceIds = entries.stream()
+                .map(DeviceCodec.BulkUpdate::deviceId)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        if (deviceIds.isEmpty()) {
+            return;
+        }
+        deviceIds.forEach(this::dispatchBuffered);
+        // Each device's lane is held while the batch runs, so it keeps its place among that device's messages
+        ingestDispatcher.dispatchAll(deviceIds, () -> handleBulkUpdate(message, entries));
+    }
+
+    // Buffered updates were sent first, so they must be applied first
+    private void dispatchBuffered(String deviceId) {
+        List<InboundMessage> buffered = updateCoalescer.drain(deviceId);
+        if (!buffered.isEmpty()) {
+            ingestDispatcher.dispatch(deviceId, () -> handleUpdates(deviceId, buffered));
+        }
+    }
+
+    private void handleMessage(InboundMessage message) {
+        String deviceId = message.deviceId();
+        switch (message.method()) {
+            case POST -> {
+                try {
+                    DeviceDto deviceDto = DeviceCodec.readDevice(message.payload(), message.format());
+                    Set<ConstraintViolation<DeviceDto>> violations = validator.validate(deviceDto);
+                    if (!violations.isEmpty()) {
+                        throw new DeviceValidationException(violations.stream()
+                                .map(ConstraintViolation::getMessage)
+                                .toList());
+                    }
+                    deviceService.addDevice(deviceDto);
+                    metricsService.addDevice(deviceDto);
+                } catch (IOException e) {
+                    logger.error("Error parsing payload", e);
+                    deadLetterStore.add(message, DeadLetterStore.Reason.PARSE_ERROR, e.getMessage());
+                } catch (DeviceValidationException e) {
+                    logger.error("Error validating {}", deviceId, e);
+                    deadLetterStore.add(message, DeadLetterStore.Reason.VALIDATION_FAILED, e.getMessage());
+                }
+            }
+            case UPDATE -> {
+                try {
+                    DeviceDto device = deviceService.getDeviceById(deviceId);
+                    DeviceUpdateDto update = DeviceCodec.readUpdate(
+                            message.payload(), device.getType(), message.format());
+                    deviceService.updateDevice(deviceId, update);
+                    metricsService.updateDevice(
+                            DeviceUpdateDto.fromDto(device),
+                            update,
+                            device.getType(),
+                            deviceId
+                    );
+                } catch (IOException e) {
+                    logger.error("Error parsing payload", e);
+                    deadLetterStore.add(message, DeadLetterStore.Reason.PARSE_ERROR, e.getMessage());
+                } catch (DeviceNotFoundException e) {
+                    logger.error("Device {} not found", deviceId, e);
+                    deadLetterStore.add(message, DeadLetterStore.Reason.DEVICE_NOT_FOUND, e.getMessage());
+                } catch (DeviceValidationException e) {
+                    logger.error("Error validating {}", deviceId, e);
+                    deadLetterStore.add(message, DeadLetterStore.Reason.VALIDATION_FAILED, e.getMessage());
+                }
+            }
+            case DELETE -> {
+                try {
+                    deviceService.deleteDeviceById(deviceId);
+                    metricsService.deleteDevice(deviceId);
+                } catch (DeviceNotFoundException e) {
+                    logger.error("Device {} not found", deviceId, e);
+                    deadLetterStore.add(message, DeadLetterStore.Reason.DEVICE_NOT_FOUND, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handleUpdates(String deviceId, List<InboundMessage> messages) {
+        List<InboundMessage> accepted = new ArrayList<>(messages.size());
+        try {
+            DeviceDto device = deviceService.getDeviceById(deviceId);
+            DeviceType type = device.getType();
+            List<DeviceUpdateDto> updates = new ArrayList<>(messages.size());
+            for (InboundMessage message : messages) {
+                try {
+                    DeviceUpdateDto update = DeviceCodec.readUpdate(message.payload(), type, message.format());
+                    // Validate one by one so a single bad message doesn't sink the whole burst
+                    Validators.ValidationResult result = Validators.validateDeviceData(update, type);
+                    if (result.isValid()) {
+                        updates.add(update);
+                        accepted.add(message);
+                    } else {
+                        logger.error("Error validating {}: {}", deviceId, result.errorMessages());
+                        deadLetterStore.add(message, DeadLetterStore.Reason.VALIDATION_FAILED,
+                                String.join(", ", result.errorMessages()));
+                    }
+                } catch (IOException e) {
+                    logger.error("Error parsing payload", e);
+                    deadLetterStore.add(message, DeadLetterStore.Reason.PARSE_ERROR, e.getMessage());
+                }
+            }
+            if (updates.isEmpty()) {
+                return;
+            }
+            DeviceUpdateDto update = updates.size() == 1
+                    ? updates.getFirst()
+                    : updateCoalescer.merge(deviceId, type, updates);
+            deviceService.updateDevice(deviceId, update);
+            metricsService.updateDevice(DeviceUpdateDto.fromDto(device), update, type, deviceId);
+        } catch (DeviceNotFoundException e) {
+            logger.error("Device {} not found", deviceId, e);
+            for (InboundMessage message : messages) {
+                deadLetterStore.add(message, DeadLetterStore.Reason.DEVICE_NOT_FOUND, e.getMessage());
+            }
+        } catch (DeviceValidationException e) {
+            logger.error("Error validating {}", deviceId, e);
+            for (InboundMessage message : accepted) {
+                deadLetterStore.add(message, DeadLetterStore.Reason.VALIDATION_FAILED, e.getMessage());
+            }
+        }
+    }
+
+    private void handleBulkUpdate(InboundMessage message, List<DeviceCodec.BulkUpdate> entries) {
+        Map<String, DeviceDto> devices = deviceService.getDevicesByIds(
+                entries.stream().map(DeviceCodec.BulkUpdate::deviceId).collect(Collectors.toSet()));
+
+        // Parse and validate every entry first, so one bad entry only costs its own device
+        Map<String, List<DeviceUpdateDto>> updatesByDevice = new LinkedHashMap<>();
+        List<DeviceCodec.BulkUpdate> accepted = new ArrayList<>(entries.size());
+        for (DeviceCodec.BulkUpdate entry : entries) {
+            DeviceDto device = devices.get(entry.deviceId());
+            if (device == null) {
+                deadLetterEntry(message, entry, DeadLetterStore.Reason.DEVICE_NOT_FOUND,
+                        String.format("Device ID %s not found", entry.deviceId()));
+                continue;
+            }
+            try {
+                DeviceUpdateDto update = DeviceCodec.readUpdate(entry.update(), device.getType());
+                Validators.ValidationResult result = Validators.validateDeviceData(update, device.getType());
+                if (result.isValid()) {
+                    updatesByDevice.computeIfAbsent(entry.deviceId(), _ -> new ArrayList<>()).add(update);
+                    accepted.add(entry);
+                } else {
+                    deadLetterEntry(message, entry, DeadLetterStore.Reason.VALIDATION_FAILED,
+                            String.join(", ", result.errorMessages()));
+                }
+            } catch (IOException e) {
+                deadLetterEntry(message, entry, DeadLetterStore.Reason.PARSE_ERROR, e.getMessage());
+            }
+        }
+        if (updatesByDevice.isEmpty()) {
+            return;
+        }
+
+        Map<String, DeviceUpdateDto> merged = new LinkedHashMap<>();
+        updatesByDevice.forEach((deviceId, updates) -> merged.put(deviceId, updates.size() == 1
+                ? updates.getFirst()
+                : updateCoalescer.merge(deviceId, devices.get(deviceId).getType(), updates)));
+        List<DeviceDto> updated;
+        try {
+            updated = deviceService.updateDevices(merged);
+        } catch (DeviceValidationException e) {
+            logger.error("Error validating bulk update", e);
+            for (DeviceCodec.BulkUpdate entry : accepted) {
+                deadLetterEntry(message, entry, DeadLetterStore.Reason.VALIDATION_FAILED, e.getMessage());
+            }
+            return;
+        }
+        for (DeviceDto device : updated) {
+            DeviceDto previous = devices.get(device.getId());
+            metricsService.updateDevice(
+                    DeviceUpdateDto.fromDto(previous),
+                    merged.get(device.getId()),
+                    previous.getType(),
+                    device.getId()
+            );
+        }
+        if (updated.size() < merged.size()) {
+            Set<String> updatedIds = updated.stream().map(DeviceDto::getId).collect(Collectors.toSet());
+            for (DeviceCodec.BulkUpdate entry : accepted) {
+                if (!updatedIds.contains(entry.deviceId())) {
+                    deadLetterEntry(message, entry, DeadLetterStore.Reason.DEVICE_NOT_FOUND,
+                            String.format("Device ID %s not found", entry.deviceId()));
+                }
+            }
+        }
+        logger.info("Applied bulk update to {} devices", updated.size());
+    }
+
+    // Stored as a plain update for its own device, so replaying it doesn't re-apply the rest of the batch
+    private void deadLetterEntry(InboundMessage bulk, DeviceCodec.BulkUpdate entry,
+                                 DeadLetterStore.Reason reason, String detail) {
+        logger.error("Bulk update for {} failed: {}", entry.deviceId(), detail);
+        try {
+            deadLetterStore.add(new InboundMessage(
+                    entry.deviceId(),
+                    Method.UPDATE,
+                    bulk.senderGroup(),
+                    bulk.senderId(),
+                    DeviceCodec.writeTree(entry.update(), bulk.format()),
+                    bulk.format()
+            ), reason, detail);
+        } catch (JsonProcessingException e) {
+            logger.error("Error encoding dead letter for {}", entry.deviceId(), e);
+        }
+    }
+
+    @Override
+    public int replayDeadLetters(List<Long> ids) {
+        int replayed = 0;
+        // Take in batches so a large selection doesn't pull everything out of the store at once
+        for (int from = 0; from < ids.size(); from += replayBatchSize) {
+            List<Long> batch = ids.subList(from, Math.min(from + replayBatchSize, ids.size()));
+            for (DeadLetterStore.DeadLetter deadLetter : deadLetterStore.take(batch)) {
+                route(deadLetter.message());
+                replayed++;
+            }
+        }
+        logger.info("Re-injected {} dead letters", replayed);
+        return replayed;
+    }
+
     @Override
     public void publishMqtt(Map<String, Object> payload, String topicPrefix, String deviceId, Method method) {
         String topic = String.format("%s/%s/%s", topicPrefix, deviceId, method.getValue());
         payload.remove("_id");  // Discard mongoDB _id field if present
-        String jsonPayload;
+        byte[] payloadBytes;
         try {
-            jsonPayload = new ObjectMapper().writeValueAsString(payload);
+            payloadBytes = DeviceCodec.writePayload(payload, payloadFormat);
         } catch (JsonProcessingException e) {
             logger.error("Error processing payload", e);
             return;
         }
+        publish(topic, payloadBytes, 2, false);
+    }
+
+    @Override
+    public void publishState(String deviceId, Map<String, Object> state) {
+        byte[] payloadBytes;
+        try {
+            payloadBytes = DeviceCodec.writePayload(state, payloadFormat);
+        } catch (JsonProcessingException e) {
+            logger.error("Error processing state of {}", deviceId, e);
+            return;
+        }
+        publish(STATE_TOPIC + "/" + deviceId, payloadBytes, 1, true);
+    }
+
+    @Override
+    public void clearState(String deviceId) {
+        // An empty retained message makes the broker drop the one it holds
+        publish(STATE_TOPIC + "/" + deviceId, new byte[0], 1, true);
+    }
+
+    private void publish(String topic, byte[] payload, int qos, boolean retained) {
+        // Behind anything already in the outbox, so a newer command never overtakes an older one
+        if (replaying.get() || publishJournal.size() > 0) {
+            publishJournal.append(topic, payload, qos, payloadFormat, retained);
+            scheduleReplay(false);
+            return;
+        }
+        // Never block the caller on the broker: with the window full, leave it to the outbox
+        if (!inflightWindow.tryAcquire()) {
+            logger.warn("Publish window full, keeping message for replay");
+            publishJournal.append(topic, payload, qos, payloadFormat, retained);
+            scheduleReplay(false);
+            return;
+        }
+        if (!send(topic, payload, qos, payloadFormat, retained)) {
+            publishJournal.append(topic, payload, qos, payloadFormat, retained);
+        }
+    }
+
+    // Expects a window permit to be held, which is returned once the publish settles. On failure the caller
+    // decides where the message goes, so replay can leave it at the head of the journal
+    private boolean send(String topic, byte[] payload, int qos, PayloadFormat format, boolean retained) {
+        InFlight inFlight = new InFlight(topic, payload, qos, format, retained, new AtomicBoolean());
+        try {
+            mqttClient.publish(topic, buildMessage(topic, payload, qos, format, retained), inFlight, publishListener);
+            return true;
+        } catch (MqttException e) {
+            settle(inFlight);
+            logger.error("Error trying to publish, keeping message for replay", e);
+            return false;
+        }
+    }
+
+    private boolean settle(Object context) {
+        if (context instanceof InFlight inFlight && inFlight.settled().compareAndSet(false, true)) {
+            inflightWindow.release();
+            // Room in the window is what the outbox waits for, not only a reconnect
+            scheduleReplay(false);
+            return true;
+        }
+        return false;
+    }
+
+    private void scheduleReplay(boolean throttled) {
+        if (replaying.get() || publishJournal.size() == 0) {
+            return;
+        }
+        try {
+            replayExecutor.execute(() -> replayJournal(throttled));
+        } catch (RejectedExecutionException e) {
+            logger.debug("Outbox replay not scheduled, shutting down");
+        }
+    }
+
+    private MqttMessage buildMessage(String topic, byte[] payload, int qos, PayloadFormat format, boolean retained) {
+        // Properties are per message since the client may stamp a topic alias on them
         MqttProperties props = new MqttProperties();
-        props.setUserProperties(List.of(
-                new UserProperty("sender_id", mqttClient.getClientId()),
-                new UserProperty("sender_group", "backend")
-        ));
+        props.setUserProperties(senderProperties);
+        // JSON goes without a content type, so existing subscribers keep working unchanged
+        if (format != PayloadFormat.JSON) {
+            props.setContentType(format.getContentType());
+        }
 
-        MqttMessage message = new MqttMessage(jsonPayload.getBytes(StandardCharsets.UTF_8));
-        message.setQos(2);
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(qos);
+        message.setRetained(retained);
         message.setProperties(props);
+        countHeaderBytes(topic, format);
+        return message;
+    }
+
+    // Variable header size: topic or alias, plus the properties we set
+    private void countHeaderBytes(String topic, PayloadFormat format) {
+        int topicBytes = 2;  // Length prefix, sent even when an alias stands in for the topic
+        if (aliasedTopics.contains(topic)) {
+            topicBytes += 3;
+        } else {
+            topicBytes += Utf8.encodedLength(topic);
+            if (aliasedTopics.size() < outgoingAliasMaximum && aliasedTopics.add(topic)) {
+                topicBytes += 3;
+            }
+        }
+        int propertyBytes = senderPropertyBytes;
+        if (format != PayloadFormat.JSON) {
+            propertyBytes += 3 + format.getContentType().length();
+        }
+        counterManager.incrementBy(
+                "mqtt_publish_header_bytes_total",
+                "Estimated topic and property bytes in the headers of MQTT publishes",
+                Map.of(),
+                topicBytes + propertyBytes
+        );
+        counterManager.increment("mqtt_publish_messages_total", "MQTT messages published", Map.of());
+    }
+
+    // Drains the journal in the background. After a reconnect it is throttled, so a long outage doesn't flood
+    // the broker; otherwise the window alone paces it.
+    private void replayJournal(boolean throttled) {
+        if (!replaying.compareAndSet(false, true)) {
+            return;
+        }
+        boolean drained = false;
         try {
-            mqttClient.publish(topic, message);
-        } catch (MqttException e) {
-            logger.error("Error trying to publish", e);
-            messageQueue.add(new MessageRecord(topic, message));
+            Optional<PublishJournal.PendingPublish> next;
+            while (mqttClient.isConnected() && (next = publishJournal.peek()).isPresent()) {
+                PublishJournal.PendingPublish pending = next.get();
+                if (throttled) {
+                    replayLimiter.acquire();
+                }
+                // Replay runs on its own thread, so it waits for room in the window instead of re-journaling.
+                // The wait is bounded, since a dropped connection may never settle what is in flight
+                if (!inflightWindow.tryAcquire(REPLAY_WINDOW_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                // Only removed once sent, so a failed entry keeps its place ahead of newer publishes
+                if (!send(pending.topic(), pending.payload(), pending.qos(), pending.format(), pending.retained())) {
+                    logger.error("Replay interrupted, {} messages still pending", publishJournal.size());
+                    break;
+                }
+                publishJournal.remove(pending);
+            }
+            drained = mqttClient.isConnected();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            replaying.set(false);
+        }
+        // Publishes journaled while the last entry went out saw a replay running and didn't start one
+        if (drained) {
+            scheduleReplay(throttled);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        replayExecutor.shutdownNow();
+        for (MqttAsyncClient consumer : consumers) {
+            try {
+                consumer.disconnect().waitForCompletion();
+                consumer.close();
+            } catch (MqttException e) {
+                logger.warn("Error closing MQTT consumer {}", consumer.getClientId(), e);
+            }
         }
+        consumers.clear();
     }
 
     @Override
@@ -0,0 +1,234 @@
+package nv.nadav.smart_home.service.impl;
+
+import jakarta.annotation.PreDestroy;
+import nv.nadav.smart_home.config.MqttOutboxProperties;
+import nv.nadav.smart_home.config.MqttOutboxProperties.OverflowPolicy;
+import nv.nadav.smart_home.serialization.PayloadFormat;
+import nv.nadav.smart_home.service.CounterManager;
+import nv.nadav.smart_home.service.GaugeManager;
+import nv.nadav.smart_home.service.PublishJournal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+
+// Append-only journal in a memory-mapped file, so pending publishes survive restarts.
+// Layout: a header (magic, head offset, tail offset, entry count, head sequence), then records of
+// [int length][byte flags][short topic length][topic][payload]. Flags hold the QoS in bits 0-1, the PayloadFormat
+// ordinal in bits 2-3 and retain in bit 4. Live records sit between head and tail, and slide back to the start of
+// the file once an append no longer fits at the tail
+@Service
+public class PublishJournalImpl implements PublishJournal {
+    private static final Logger logger = LoggerFactory.getLogger("smart_home.mqtt.outbox");
+    private static final int MAGIC = 0x4D514A31;  // "MQJ1"
+    private static final int HEADER_SIZE = 32;
+    private static final int HEAD_OFFSET = 4;
+    private static final int TAIL_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int SEQUENCE_OFFSET = 16;
+    private static final int RECORD_OVERHEAD = Integer.BYTES + Byte.BYTES + Short.BYTES;
+    private static final int QOS_MASK = 0x03;
+    private static final int FORMAT_SHIFT = 2;
+    private static final int FORMAT_MASK = 0x03;
+    private static final int RETAINED_FLAG = 0x10;
+
+    private final GaugeManager gaugeManager;
+    private final CounterManager counterManager;
+    private final OverflowPolicy overflowPolicy;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private int head;
+    private int tail;
+    private int count;
+    private long headSequence;
+
+    public PublishJournalImpl(
+            MqttOutboxProperties properties,
+            GaugeManager gaugeManager,
+            CounterManager counterManager
+    ) {
+        this.gaugeManager = gaugeManager;
+        this.counterManager = counterManager;
+        this.overflowPolicy = properties.getOverflowPolicy();
+        try {
+            Path path = Path.of(properties.getPath());
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Never map less than an existing journal, or its tail would be cut off
+            capacity = (int) Math.max(properties.getCapacityBytes(), channel.size());
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open MQTT outbox journal", e);
+        }
+        load();
+        reportSize();
+        if (count > 0) {
+            logger.info("Recovered {} pending MQTT publishes from journal", count);
+        }
+    }
+
+    private void load() {
+        head = buffer.getInt(HEAD_OFFSET);
+        tail = buffer.getInt(TAIL_OFFSET);
+        count = buffer.getInt(COUNT_OFFSET);
+        headSequence = buffer.getLong(SEQUENCE_OFFSET);
+        boolean valid = buffer.getInt(0) == MAGIC
+                && head >= HEADER_SIZE && head <= tail && tail <= capacity && count >= 0;
+        if (!valid) {
+            if (buffer.getInt(0) == MAGIC) {
+                logger.warn("MQTT outbox journal header is corrupt, starting with an empty journal");
+            }
+            buffer.putInt(0, MAGIC);
+            head = HEADER_SIZE;
+            tail = HEADER_SIZE;
+            count = 0;
+            headSequence = 0;
+            writeHeader();
+        }
+    }
+
+    @Override
+    public synchronized boolean append(String topic, byte[] payload, int qos, PayloadFormat format, boolean retained) {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_OVERHEAD + topicBytes.length + payload.length;
+        if (recordSize > capacity - HEADER_SIZE) {
+            logger.error("Publish to {} is larger than the whole journal, dropping it", topic);
+            countDropped();
+            return false;
+        }
+        while (!fits(recordSize)) {
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST || count == 0) {
+                logger.warn("MQTT outbox journal is full, dropping publish to {}", topic);
+                countDropped();
+                return false;
+            }
+            discardHead();
+            countDropped();
+        }
+
+        buffer.putInt(tail, recordSize - Integer.BYTES);
+        int flags = (qos & QOS_MASK) | format.ordinal() << FORMAT_SHIFT | (retained ? RETAINED_FLAG : 0);
+        buffer.put(tail + 4, (byte) flags);
+        buffer.putShort(tail + 5, (short) topicBytes.length);
+        buffer.put(tail + RECORD_OVERHEAD, topicBytes);
+        buffer.put(tail + RECORD_OVERHEAD + topicBytes.length, payload);
+        // The record is fully written before the header points past it
+        tail += recordSize;
+        count++;
+        writeHeader();
+        reportSize();
+        return true;
+    }
+
+    @Override
+    public synchronized Optional<PendingPublish> peek() {
+        if (count == 0) {
+            return Optional.empty();
+        }
+        int length = buffer.getInt(head);
+        int flags = buffer.get(head + 4);
+        int topicLength = buffer.getShort(head + 5) & 0xFFFF;
+        byte[] topicBytes = new byte[topicLength];
+        buffer.get(head + RECORD_OVERHEAD, topicBytes);
+        byte[] payload = new byte[length - (RECORD_OVERHEAD - Integer.BYTES) - topicLength];
+        buffer.get(head + RECORD_OVERHEAD + topicLength, payload);
+        return Optional.of(new PendingPublish(
+                headSequence,
+                new String(topicBytes, StandardCharsets.UTF_8),
+                payload,
+                flags & QOS_MASK,
+                PayloadFormat.values()[(flags >>> FORMAT_SHIFT) & FORMAT_MASK],
+                (flags & RETAINED_FLAG) != 0
+        ));
+    }
+
+    @Override
+    public synchronized void remove(PendingPublish published) {
+        // The head may have been dropped by an overflowing append since it was peeked
+        if (count > 0 && published.sequence() == headSequence) {
+            discardHead();
+            reportSize();
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return count;
+    }
+
+    private boolean fits(int recordSize) {
+        if (tail + recordSize <= capacity) {
+            return true;
+        }
+        if (head > HEADER_SIZE && tail - head + recordSize <= capacity - HEADER_SIZE) {
+            compact();
+            return true;
+        }
+        return false;
+    }
+
+    private void compact() {
+        int liveBytes = tail - head;
+        byte[] live = new byte[liveBytes];
+        buffer.get(head, live);
+        buffer.put(HEADER_SIZE, live);
+        head = HEADER_SIZE;
+        tail = HEADER_SIZE + liveBytes;
+        writeHeader();
+    }
+
+    private void discardHead() {
+        head += Integer.BYTES + buffer.getInt(head);
+        count--;
+        headSequence++;
+        if (count == 0) {
+            head = HEADER_SIZE;
+            tail = HEADER_SIZE;
+        }
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        buffer.putInt(HEAD_OFFSET, head);
+        buffer.putInt(TAIL_OFFSET, tail);
+        buffer.putInt(COUNT_OFFSET, count);
+        buffer.putLong(SEQUENCE_OFFSET, headSequence);
+    }
+
+    private void reportSize() {
+        gaugeManager.setNumericGauge(
+                "mqtt_outbox_pending",
+                "MQTT publishes waiting in the outbox journal",
+                count,
+                Map.of()
+        );
+    }
+
+    private void countDropped() {
+        counterManager.increment(
+                "mqtt_outbox_dropped_total",
+                "MQTT publishes dropped because the outbox journal was full",
+                Map.of("policy", overflowPolicy.name().toLowerCase())
+        );
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+}
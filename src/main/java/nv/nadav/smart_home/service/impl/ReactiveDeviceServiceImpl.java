@@ -0,0 +1,142 @@
+package nv.nadav.smart_home.service.impl;
+
+import nv.nadav.smart_home.config.DeviceUpdateProperties;
+import nv.nadav.smart_home.dto.DeviceDto;
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.exception.DeviceExistsException;
+import nv.nadav.smart_home.exception.DeviceNotFoundException;
+import nv.nadav.smart_home.exception.DeviceValidationException;
+import nv.nadav.smart_home.exception.DeviceVersionConflictException;
+import nv.nadav.smart_home.model.Device;
+import nv.nadav.smart_home.repository.ReactiveDeviceRepository;
+import nv.nadav.smart_home.serialization.DeviceWriteConverter;
+import nv.nadav.smart_home.service.CounterManager;
+import nv.nadav.smart_home.service.DeviceChangedEvent;
+import nv.nadav.smart_home.service.DeviceWriteBehind;
+import nv.nadav.smart_home.service.ReactiveDeviceService;
+import nv.nadav.smart_home.validation.Validators;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+@Service
+@ConditionalOnProperty(prefix = "device.reactive", name = "enabled", havingValue = "true")
+public class ReactiveDeviceServiceImpl implements ReactiveDeviceService {
+    private final ReactiveDeviceRepository repo;
+    private final ApplicationEventPublisher eventPublisher;
+    private final DeviceUpdateProperties updateProperties;
+    private final CounterManager counterManager;
+    private final DeviceWriteBehind writeBehind;
+
+    public ReactiveDeviceServiceImpl(
+            ReactiveDeviceRepository repo,
+            ApplicationEventPublisher eventPublisher,
+            DeviceUpdateProperties updateProperties,
+            CounterManager counterManager,
+            DeviceWriteBehind writeBehind
+    ) {
+        this.repo = repo;
+        this.eventPublisher = eventPublisher;
+        this.updateProperties = updateProperties;
+        this.counterManager = counterManager;
+        this.writeBehind = writeBehind;
+    }
+
+    @Override
+    public Mono<DeviceDto> getDeviceById(String deviceId) {
+        return findDevice(deviceId).map(DeviceServiceImpl::mapToDto);
+    }
+
+    @Override
+    public Flux<DeviceDto> getAllDevices() {
+        return repo.streamAll().map(DeviceServiceImpl::mapToDto);
+    }
+
+    @Override
+    public Mono<DeviceDto> addDevice(DeviceDto deviceDto) {
+        return repo.existsByDeviceId(deviceDto.getId())
+                .flatMap(exists -> {
+                    if (exists) {
+                        return Mono.error(new DeviceExistsException());
+                    }
+                    Validators.ValidationResult validationResult = Validators.validateNewDeviceData(deviceDto);
+                    if (!validationResult.isValid()) {
+                        return Mono.error(new DeviceValidationException(validationResult.errorMessages()));
+                    }
+                    Device newDevice = Device.fromDto(deviceDto);
+                    newDevice.setVersion(0L);
+                    return repo.insert(newDevice);
+                })
+                // Lost a race with another insert of the same ID
+                .onErrorMap(DuplicateKeyException.class, _ -> new DeviceExistsException())
+                .map(DeviceServiceImpl::mapToDto)
+                .doOnNext(this::changed);
+    }
+
+    @Override
+    public Mono<DeviceDto> updateDevice(String deviceId, DeviceUpdateDto update, Long expectedVersion) {
+        // Telemetry buffered by the blocking service goes first, or its flush would overwrite this write.
+        // The flush is a blocking write, so it runs off the event loop.
+        return Mono.fromRunnable(() -> writeBehind.flush(List.of(deviceId)))
+                .subscribeOn(Schedulers.boundedElastic())
+                .then(findDevice(deviceId))
+                .flatMap(current -> {
+                    DeviceServiceImpl.validateUpdate(update, current.getType());
+                    Map<String, Object> fields = DeviceWriteConverter.updateFields(update);
+                    if (fields.isEmpty()) {
+                        return Mono.just(DeviceServiceImpl.mapToDto(current));
+                    }
+                    return write(deviceId, fields, current.getVersion(), expectedVersion, 1,
+                            updateProperties.getInitialBackoff().toNanos())
+                            .map(DeviceServiceImpl::mapToDto)
+                            .doOnNext(this::changed);
+                });
+    }
+
+    // Same conflict handling as the blocking service, with the backoff on a timer instead of a parked thread
+    private Mono<Device> write(String deviceId, Map<String, Object> fields, long version, Long expectedVersion,
+                               int attempt, long backoffNanos) {
+        return repo.updateFields(deviceId, expectedVersion != null ? expectedVersion : version, fields)
+                .switchIfEmpty(Mono.defer(() -> findDevice(deviceId).flatMap(current -> {
+                    if (expectedVersion != null || attempt >= updateProperties.getMaxAttempts()) {
+                        counterManager.increment("device_update_conflicts_total",
+                                "Device updates that hit a version conflict", Map.of("outcome", "rejected"));
+                        return Mono.error(new DeviceVersionConflictException(String.format(
+                                "Device ID %s is at version %d", deviceId, current.getVersion())));
+                    }
+                    counterManager.increment("device_update_conflicts_total",
+                            "Device updates that hit a version conflict", Map.of("outcome", "retried"));
+                    long nextBackoffNanos = Math.min(backoffNanos * 2, updateProperties.getMaxBackoff().toNanos());
+                    return Mono.delay(Duration.ofNanos(backoffNanos))
+                            .then(write(deviceId, fields, current.getVersion(), null, attempt + 1, nextBackoffNanos));
+                })));
+    }
+
+    @Override
+    public Mono<Void> deleteDeviceById(String deviceId) {
+        return findDevice(deviceId)
+                .flatMap(repo::delete)
+                .then(Mono.fromRunnable(() -> {
+                    // Or its next flush would write the device's telemetry back
+                    writeBehind.discard(deviceId);
+                    eventPublisher.publishEvent(new DeviceChangedEvent(deviceId, null));
+                }));
+    }
+
+    private Mono<Device> findDevice(String deviceId) {
+        return repo.findByDeviceId(deviceId).switchIfEmpty(Mono.error(() ->
+                new DeviceNotFoundException(String.format("Device ID %s not found", deviceId))));
+    }
+
+    private void changed(DeviceDto device) {
+        eventPublisher.publishEvent(new DeviceChangedEvent(device.getId(), device));
+    }
+}
@@ -0,0 +1,150 @@
+package nv.nadav.smart_home.service.impl;
+
+import jakarta.annotation.PreDestroy;
+import nv.nadav.smart_home.config.MqttIngestProperties;
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.model.DeviceType;
+import nv.nadav.smart_home.model.parameters.*;
+import nv.nadav.smart_home.service.*;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@Service
+public class UpdateCoalescerImpl implements UpdateCoalescer {
+    private final long windowNanos;
+    private final CounterManager counterManager;
+    private final AirConditionerParametersMapper airConditionerParametersMapper;
+    private final CurtainParametersMapper curtainParametersMapper;
+    private final DoorLockParametersMapper doorLockParametersMapper;
+    private final LightParametersMapper lightParametersMapper;
+    private final WaterHeaterParametersMapper waterHeaterParametersMapper;
+    private final Map<String, List<InboundMessage>> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("mqtt-coalesce").daemon().factory()
+    );
+
+    public UpdateCoalescerImpl(
+            MqttIngestProperties properties,
+            CounterManager counterManager,
+            AirConditionerParametersMapper airConditionerParametersMapper,
+            CurtainParametersMapper curtainParametersMapper,
+            DoorLockParametersMapper doorLockParametersMapper,
+            LightParametersMapper lightParametersMapper,
+            WaterHeaterParametersMapper waterHeaterParametersMapper
+    ) {
+        this.windowNanos = properties.getCoalesceWindow().toNanos();
+        this.counterManager = counterManager;
+        this.airConditionerParametersMapper = airConditionerParametersMapper;
+        this.curtainParametersMapper = curtainParametersMapper;
+        this.doorLockParametersMapper = doorLockParametersMapper;
+        this.lightParametersMapper = lightParametersMapper;
+        this.waterHeaterParametersMapper = waterHeaterParametersMapper;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return windowNanos > 0;
+    }
+
+    @Override
+    public void offer(InboundMessage message, Runnable windowClosed) {
+        String deviceId = message.deviceId();
+        boolean[] opened = {false};
+        pending.compute(deviceId, (_, buffered) -> {
+            if (buffered == null) {
+                opened[0] = true;
+                buffered = new ArrayList<>();
+            }
+            buffered.add(message);
+            return buffered;
+        });
+        if (opened[0]) {
+            scheduler.schedule(windowClosed, windowNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public List<InboundMessage> drain(String deviceId) {
+        List<InboundMessage> batch = pending.remove(deviceId);
+        return batch != null ? batch : List.of();
+    }
+
+    @Override
+    public DeviceUpdateDto merge(String deviceId, DeviceType type, List<DeviceUpdateDto> updates) {
+        DeviceUpdateDto merged = new DeviceUpdateDto();
+        for (DeviceUpdateDto update : updates) {
+            if (update.getName() != null) {
+                merged.setName(update.getName());
+            }
+            if (update.getRoom() != null) {
+                merged.setRoom(update.getRoom());
+            }
+            if (update.getStatus() != null) {
+                merged.setStatus(update.getStatus());
+            }
+            if (update.getParameters() != null) {
+                if (merged.getParameters() == null) {
+                    merged.setParameters(emptyParameters(type));
+                }
+                mergeParameters(update.getParameters(), merged.getParameters(), type);
+            }
+        }
+        if (updates.size() > 1) {
+            counterManager.incrementBy(
+                    "mqtt_updates_coalesced_total",
+                    "MQTT UPDATE messages folded into another update before persistence",
+                    Map.of("device_id", deviceId, "device_type", type.getValue()),
+                    updates.size() - 1
+            );
+        }
+        return merged;
+    }
+
+    private static DeviceParameters emptyParameters(DeviceType type) {
+        return switch (type) {
+            case LIGHT -> new LightParameters();
+            case WATER_HEATER -> new WaterHeaterParameters();
+            case AIR_CONDITIONER -> new AirConditionerParameters();
+            case DOOR_LOCK -> new DoorLockParameters();
+            case CURTAIN -> new CurtainParameters();
+        };
+    }
+
+    private void mergeParameters(DeviceParameters source, DeviceParameters target, DeviceType type) {
+        switch (type) {
+            case LIGHT -> lightParametersMapper.updateFromOther(
+                    (LightParameters) source,
+                    (LightParameters) target
+            );
+            case WATER_HEATER -> waterHeaterParametersMapper.updateFromOther(
+                    (WaterHeaterParameters) source,
+                    (WaterHeaterParameters) target
+            );
+            case AIR_CONDITIONER -> airConditionerParametersMapper.updateFromOther(
+                    (AirConditionerParameters) source,
+                    (AirConditionerParameters) target
+            );
+            case DOOR_LOCK -> doorLockParametersMapper.updateFromOther(
+                    (DoorLockParameters) source,
+                    (DoorLockParameters) target
+            );
+            case CURTAIN -> curtainParametersMapper.updateFromOther(
+                    (CurtainParameters) source,
+                    (CurtainParameters) target
+            );
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // Windows that are already open still close and flush
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,105 @@
+package nv.nadav.smart_home.controller;
+
+import nv.nadav.smart_home.serialization.PayloadFormat;
+import nv.nadav.smart_home.service.*;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.BDDMockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@WebMvcTest(DeadLetterController.class)
+class DeadLetterControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockitoBean
+    private DeadLetterStore deadLetterStore;
+
+    @MockitoBean
+    private MqttService mqttService;
+
+    @MockitoBean
+    private JwtService jwtService;
+
+    @MockitoBean
+    private HttpMetricsService httpMetricsService;
+
+    @Test
+    void getDeadLetters_Admin_ReturnsPage() throws Exception {
+        given(jwtService.getRoleFromToken(anyString())).willReturn("admin");
+        InboundMessage message = new InboundMessage(
+                "light1",
+                MqttService.Method.UPDATE,
+                "frontend",
+                "ui-1",
+                "{\"brightness\":}".getBytes(StandardCharsets.UTF_8),
+                PayloadFormat.JSON
+        );
+        given(deadLetterStore.page(0, 50)).willReturn(List.of(new DeadLetterStore.DeadLetter(
+                7, Instant.parse("2025-01-01T00:00:00Z"), DeadLetterStore.Reason.PARSE_ERROR, "Unexpected character", message)));
+        given(deadLetterStore.size()).willReturn(1);
+
+        mockMvc.perform(get("/api/admin/dead-letters")
+                        .header("Authorization", "Bearer token"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.items", hasSize(1)))
+                .andExpect(jsonPath("$.items[0].reason", is("parse_error")))
+                .andExpect(jsonPath("$.items[0].device_id", is("light1")))
+                .andExpect(jsonPath("$.items[0].method", is("update")))
+                .andExpect(jsonPath("$.items[0].sender_id", is("ui-1")))
+                .andExpect(jsonPath("$.items[0].content_type", is("application/json")))
+                .andExpect(jsonPath("$.next", is(7)))
+                .andExpect(jsonPath("$.total", is(1)));
+    }
+
+    @Test
+    void getDeadLetters_NonAdmin_Forbidden() throws Exception {
+        given(jwtService.getRoleFromToken(anyString())).willReturn("user");
+
+        mockMvc.perform(get("/api/admin/dead-letters")
+                        .header("Authorization", "Bearer token"))
+                .andExpect(status().isForbidden());
+
+        then(deadLetterStore).should(never()).page(anyLong(), anyInt());
+    }
+
+    @Test
+    void replayDeadLetters_Admin_ReinjectsSelected() throws Exception {
+        given(jwtService.getRoleFromToken(anyString())).willReturn("admin");
+        given(mqttService.replayDeadLetters(List.of(3L, 4L))).willReturn(1);
+
+        mockMvc.perform(post("/api/admin/dead-letters/replay")
+                        .header("Authorization", "Bearer token")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"ids\":[3,4]}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.replayed", is(1)))
+                .andExpect(jsonPath("$.missing", is(1)));
+    }
+
+    @Test
+    void replayDeadLetters_NoIds_BadRequest() throws Exception {
+        given(jwtService.getRoleFromToken(anyString())).willReturn("admin");
+
+        mockMvc.perform(post("/api/admin/dead-letters/replay")
+                        .header("Authorization", "Bearer token")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"ids\":[]}"))
+                .andExpect(status().isBadRequest());
+
+        then(mqttService).should(never()).replayDeadLetters(any());
+    }
+}
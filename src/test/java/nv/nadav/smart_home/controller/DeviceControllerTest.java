@@ -6,8 +6,10 @@ import nv.nadav.smart_home.dto.DeviceUpdateDto;
 import nv.nadav.smart_home.exception.DeviceExistsException;
 import nv.nadav.smart_home.exception.DeviceNotFoundException;
 import nv.nadav.smart_home.exception.DeviceValidationException;
+import nv.nadav.smart_home.exception.DeviceVersionConflictException;
 import nv.nadav.smart_home.model.DeviceType;
 import nv.nadav.smart_home.model.parameters.LightParameters;
+import nv.nadav.smart_home.repository.DeviceFilter;
 import nv.nadav.smart_home.service.*;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -19,10 +21,14 @@ import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import static nv.nadav.smart_home.constants.Constants.MIN_BRIGHTNESS;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.Matchers.*;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.BDDMockito.*;
@@ -69,6 +75,7 @@ class DevicesControllerTest {
         lightParameters.setColor("#123456");
         lightParameters.setBrightness(MIN_BRIGHTNESS);
         sampleDevice.setParameters(lightParameters);
+        sampleDevice.setVersion(3L);
     }
 
     @Test
@@ -93,12 +100,83 @@ class DevicesControllerTest {
         then(deviceMetricsService).should().addDevice(sampleDevice);
     }
 
+    @Test
+    void getAllDevices_WithLimit_ReturnsPageAndCursor() throws Exception {
+        given(deviceService.getDevicePage(null, 1)).willReturn(new DevicePage(List.of(sampleDevice), "next"));
+
+        mockMvc.perform(get("/api/devices").param("limit", "1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.devices[0].id", is("device123")))
+                .andExpect(jsonPath("$.next_cursor", is("next")));
+
+        then(deviceMetricsService).should().addDevice(sampleDevice);
+    }
+
+    @Test
+    void getAllDevices_LimitOutOfRange() throws Exception {
+        mockMvc.perform(get("/api/devices").param("limit", "0"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error", containsString("limit")));
+
+        then(deviceService).shouldHaveNoInteractions();
+    }
+
+    @Test
+    void getAllDevices_WithFilter_ReturnsMatchingDevices() throws Exception {
+        given(deviceService.getDevicesMatching(new DeviceFilter("test", DeviceType.LIGHT, "on"), 0))
+                .willReturn(List.of(sampleDevice));
+
+        mockMvc.perform(get("/api/devices").param("room", "test").param("type", "light").param("status", "on"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].id", is("device123")));
+
+        then(deviceMetricsService).should().addDevices(List.of(sampleDevice));
+        then(deviceService).should(never()).getAllDevices();
+    }
+
+    @Test
+    void getAllDevices_WithFilter_RejectsUnknownTypeAndPaging() throws Exception {
+        mockMvc.perform(get("/api/devices").param("type", "toaster"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error", containsString("toaster")));
+        mockMvc.perform(get("/api/devices").param("room", "test").param("limit", "10"))
+                .andExpect(status().isBadRequest());
+
+        then(deviceService).shouldHaveNoInteractions();
+    }
+
+    @Test
+    void getAllDevices_Ndjson_StreamsOneDevicePerLine() throws Exception {
+        DeviceDto second = new DeviceDto();
+        second.setId("device456");
+        willAnswer(invocation -> {
+            Consumer<DeviceDto> consumer = invocation.getArgument(0);
+            consumer.accept(sampleDevice);
+            consumer.accept(second);
+            return null;
+        }).given(deviceService).forEachDevice(any());
+
+        MvcResult result = mockMvc.perform(get("/api/devices").accept("application/x-ndjson"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        String body = mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-ndjson"))
+                .andReturn().getResponse().getContentAsString();
+        List<String> lines = body.lines().toList();
+        assertThat(lines).hasSize(2);
+        assertThat(lines.get(1)).contains("\"id\":\"device456\"");
+        then(deviceService).should(never()).getAllDevices();
+    }
+
     @Test
     void getDeviceById_Found() throws Exception {
         given(deviceService.getDeviceById("device123")).willReturn(sampleDevice);
 
         mockMvc.perform(get("/api/devices/device123"))
                 .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"3\""))
                 .andExpect(jsonPath("$.id", is("device123")));
 
         then(deviceMetricsService).should().addDevice(sampleDevice);
@@ -194,7 +272,7 @@ class DevicesControllerTest {
         String updateJson = "{\"status\":\"off\"}";
 
         given(deviceService.getDeviceById("device123")).willReturn(sampleDevice);
-        given(deviceService.updateDevice(anyString(), ArgumentMatchers.any(DeviceUpdateDto.class))).willReturn(null);
+        given(deviceService.updateDevice(anyString(), ArgumentMatchers.any(DeviceUpdateDto.class))).willReturn(sampleDevice);
 
         DeviceUpdateDto updateDto = new DeviceUpdateDto();
         updateDto.setStatus("off");
@@ -234,4 +312,112 @@ class DevicesControllerTest {
                 .andExpect(status().isBadRequest())
                 .andExpect(jsonPath("$.error", is("Invalid")));
     }
-}
\ No newline at end of file
+
+    @Test
+    void updateDevice_IfMatch_UsesConditionalUpdate() throws Exception {
+        given(deviceService.getDeviceById("device123")).willReturn(sampleDevice);
+        given(deviceService.updateDevice(eq("device123"), any(), eq(3L))).willReturn(sampleDevice);
+
+        mockMvc.perform(put("/api/devices/device123")
+                        .header("If-Match", "\"3\"")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"status\":\"off\"}"))
+                .andExpect(status().isOk());
+
+        then(deviceService).should(never()).updateDevice(anyString(), ArgumentMatchers.any(DeviceUpdateDto.class));
+    }
+
+    @Test
+    void updateDevice_VersionConflict() throws Exception {
+        given(deviceService.getDeviceById("device123")).willReturn(sampleDevice);
+        willThrow(new DeviceVersionConflictException("Device ID device123 is at version 4"))
+                .given(deviceService).updateDevice(eq("device123"), any(), eq(3L));
+
+        mockMvc.perform(put("/api/devices/device123")
+                        .header("If-Match", "\"3\"")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"status\":\"off\"}"))
+                .andExpect(status().isConflict())
+                .andExpect(jsonPath("$.error", containsString("version 4")));
+
+        then(mqttService).should(never()).publishMqtt(anyMap(), anyString(), anyString(), any());
+    }
+
+    @Test
+    void addDevices_PartialSuccess() throws Exception {
+        given(deviceService.addDevices(anyList())).willReturn(new DeviceImportResult(
+                List.of(sampleDevice),
+                List.of(new DeviceImportResult.Failure(1, "device456", "Name must be specified"))
+        ));
+
+        mockMvc.perform(post("/api/devices/bulk")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[" + objectMapper.writeValueAsString(sampleDevice) + ",{\"id\":\"device456\"}]"))
+                .andExpect(status().isMultiStatus())
+                .andExpect(jsonPath("$.added[0].id", is("device123")))
+                .andExpect(jsonPath("$.failed[0].index", is(1)))
+                .andExpect(jsonPath("$.failed[0].id", is("device456")))
+                .andExpect(jsonPath("$.failed[0].error", is("Name must be specified")));
+
+        then(deviceMetricsService).should().addDevices(List.of(sampleDevice));
+        then(mqttService).should(times(1)).publishMqtt(anyMap(), anyString(), eq("device123"), eq(MqttService.Method.POST));
+    }
+
+    @Test
+    void addDevices_EmptyRequest() throws Exception {
+        mockMvc.perform(post("/api/devices/bulk")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[]"))
+                .andExpect(status().isBadRequest());
+
+        then(deviceService).should(never()).addDevices(anyList());
+    }
+
+    @Test
+    void updateDevices_ByFilter_WritesOnceAndPublishesPerDevice() throws Exception {
+        DeviceDto updatedDevice = new DeviceDto();
+        updatedDevice.setId("device123");
+        updatedDevice.setType(DeviceType.LIGHT);
+        updatedDevice.setStatus("off");
+        given(deviceService.getDevicesMatching(eq(new DeviceFilter("test", DeviceType.LIGHT, null)), anyInt()))
+                .willReturn(List.of(sampleDevice));
+        given(deviceService.updateDevices(eq(List.of("device123")), any(DeviceUpdateDto.class)))
+                .willReturn(List.of(updatedDevice));
+
+        mockMvc.perform(put("/api/devices/bulk")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"filter\":{\"room\":\"test\",\"type\":\"light\"},\"update\":{\"status\":\"off\"}}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.updated", contains("device123")))
+                .andExpect(jsonPath("$.not_found", empty()));
+
+        then(deviceMetricsService).should().updateDevice(any(), any(), eq(DeviceType.LIGHT), eq("device123"));
+        then(mqttService).should().publishMqtt(anyMap(), eq(MqttService.TOPIC), eq("device123"), eq(MqttService.Method.UPDATE));
+    }
+
+    @Test
+    void updateDevices_ParametersAcrossTypes_BadRequest() throws Exception {
+        DeviceDto curtain = new DeviceDto();
+        curtain.setId("curtain1");
+        curtain.setType(DeviceType.CURTAIN);
+        given(deviceService.getDevicesByIds(anyList()))
+                .willReturn(Map.of("device123", sampleDevice, "curtain1", curtain));
+
+        mockMvc.perform(put("/api/devices/bulk")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"ids\":[\"device123\",\"curtain1\"],\"update\":{\"parameters\":{\"brightness\":0}}}"))
+                .andExpect(status().isBadRequest());
+
+        then(deviceService).should(never()).updateDevices(anyCollection(), any(DeviceUpdateDto.class));
+    }
+
+    @Test
+    void updateDevices_EmptyFilter_BadRequest() throws Exception {
+        mockMvc.perform(put("/api/devices/bulk")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"filter\":{},\"update\":{\"status\":\"off\"}}"))
+                .andExpect(status().isBadRequest());
+
+        then(deviceService).should(never()).getDevicesMatching(any(), anyInt());
+    }
+}
@@ -0,0 +1,130 @@
+package nv.nadav.smart_home.controller;
+
+import nv.nadav.smart_home.dto.DeviceDto;
+import nv.nadav.smart_home.exception.DeviceNotFoundException;
+import nv.nadav.smart_home.exception.DeviceVersionConflictException;
+import nv.nadav.smart_home.model.DeviceType;
+import nv.nadav.smart_home.model.parameters.LightParameters;
+import nv.nadav.smart_home.service.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static nv.nadav.smart_home.constants.Constants.MIN_BRIGHTNESS;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.BDDMockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@WebMvcTest(ReactiveDevicesController.class)
+@TestPropertySource(properties = "device.reactive.enabled=true")
+class ReactiveDevicesControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockitoBean
+    private ReactiveDeviceService deviceService;
+
+    @MockitoBean
+    private DeviceMetricsService deviceMetricsService;
+
+    @MockitoBean
+    private MqttService mqttService;
+
+    @MockitoBean
+    private JwtService jwtService;
+
+    @MockitoBean
+    private HttpMetricsService httpMetricsService;
+
+    private DeviceDto sampleDevice;
+
+    @BeforeEach
+    void setup() {
+        sampleDevice = new DeviceDto();
+        sampleDevice.setId("device123");
+        sampleDevice.setType(DeviceType.LIGHT);
+        sampleDevice.setName("test");
+        sampleDevice.setRoom("test");
+        sampleDevice.setStatus("on");
+        LightParameters lightParameters = new LightParameters();
+        lightParameters.setDynamicColor(true);
+        lightParameters.setDimmable(true);
+        lightParameters.setColor("#123456");
+        lightParameters.setBrightness(MIN_BRIGHTNESS);
+        sampleDevice.setParameters(lightParameters);
+        sampleDevice.setVersion(3L);
+    }
+
+    @Test
+    void getAllDevices_ReturnsArray() throws Exception {
+        given(deviceService.getAllDevices()).willReturn(Flux.just(sampleDevice));
+
+        MvcResult result = mockMvc.perform(get("/api/reactive/devices"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].id", is("device123")));
+        then(deviceMetricsService).should().addDevice(sampleDevice);
+    }
+
+    @Test
+    void getDeviceById_Found() throws Exception {
+        given(deviceService.getDeviceById("device123")).willReturn(Mono.just(sampleDevice));
+
+        MvcResult result = mockMvc.perform(get("/api/reactive/devices/device123"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"3\""))
+                .andExpect(jsonPath("$.id", is("device123")));
+    }
+
+    @Test
+    void getDeviceById_NotFound() throws Exception {
+        given(deviceService.getDeviceById("missing"))
+                .willReturn(Mono.error(new DeviceNotFoundException("Device ID missing not found")));
+
+        MvcResult result = mockMvc.perform(get("/api/reactive/devices/missing"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.error", is("Device ID missing not found")));
+    }
+
+    @Test
+    void updateDevice_VersionConflict() throws Exception {
+        given(deviceService.getDeviceById("device123")).willReturn(Mono.just(sampleDevice));
+        given(deviceService.updateDevice(eq("device123"), any(), eq(3L)))
+                .willReturn(Mono.error(new DeviceVersionConflictException("Device ID device123 is at version 4")));
+
+        MvcResult result = mockMvc.perform(put("/api/reactive/devices/device123")
+                        .header("If-Match", "\"3\"")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"status\":\"off\"}"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isConflict())
+                .andExpect(jsonPath("$.error", containsString("version 4")));
+        then(mqttService).should(never()).publishMqtt(anyMap(), anyString(), anyString(), any());
+    }
+}
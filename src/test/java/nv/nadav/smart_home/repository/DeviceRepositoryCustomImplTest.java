@@ -0,0 +1,138 @@
+package nv.nadav.smart_home.repository;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import nv.nadav.smart_home.model.Device;
+import nv.nadav.smart_home.model.DeviceType;
+import nv.nadav.smart_home.serialization.DeviceWriteConverter;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Index use can only be checked against a real server, so these run only where Docker is available
+@Testcontainers(disabledWithoutDocker = true)
+class DeviceRepositoryCustomImplTest {
+    private static final String[] ROOMS = {"Kitchen", "Bedroom", "Office"};
+
+    @Container
+    private static final MongoDBContainer mongo = new MongoDBContainer("mongo:7.0");
+
+    private MongoClient client;
+    private MongoCollection<Document> collection;
+    private DeviceRepositoryCustomImpl repository;
+    private final List<Device> devices = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        client = MongoClients.create(mongo.getConnectionString());
+        MongoTemplate mongoTemplate = new MongoTemplate(client, "smart_home_test");
+        mongoTemplate.dropCollection(Device.class);
+        collection = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Device.class));
+        repository = new DeviceRepositoryCustomImpl(mongoTemplate);
+        repository.ensureIndexes();
+
+        // Enough devices that a collection scan would be a real alternative for the planner
+        DeviceWriteConverter converter = new DeviceWriteConverter();
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            Device device = new Device();
+            device.setDeviceId("device" + i);
+            device.setType(DeviceType.values()[i % DeviceType.values().length]);
+            device.setName("Device " + i);
+            device.setRoom(ROOMS[i % ROOMS.length]);
+            device.setStatus(i % 2 == 0 ? "on" : "off");
+            device.setVersion(0L);
+            devices.add(device);
+            documents.add(converter.convert(device));
+        }
+        collection.insertMany(documents);
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+    }
+
+    static Stream<DeviceFilter> filters() {
+        return Stream.of(
+                new DeviceFilter("Kitchen", null, null),
+                new DeviceFilter(null, DeviceType.LIGHT, null),
+                new DeviceFilter(null, null, "on"),
+                new DeviceFilter("Kitchen", DeviceType.LIGHT, null),
+                new DeviceFilter("Kitchen", null, "on"),
+                new DeviceFilter(null, DeviceType.LIGHT, "on"),
+                new DeviceFilter("Kitchen", DeviceType.LIGHT, "on")
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("filters")
+    void findMatchingDeviceIds_shouldBeCoveredByAnIndex(DeviceFilter filter) {
+        Document explain = collection.find(DeviceRepositoryCustomImpl.matching(filter))
+                .projection(DeviceRepositoryCustomImpl.ID_ONLY)
+                .explain();
+
+        List<String> stages = new ArrayList<>();
+        collectStages(explain.get("queryPlanner", Document.class).get("winningPlan"), stages);
+        assertThat(stages).contains("IXSCAN").doesNotContain("COLLSCAN", "FETCH");
+    }
+
+    @ParameterizedTest
+    @MethodSource("filters")
+    void findMatchingDeviceIds_shouldReturnEveryMatchingDevice(DeviceFilter filter) {
+        List<String> expected = devices.stream()
+                .filter(device -> filter.room() == null || filter.room().equals(device.getRoom()))
+                .filter(device -> filter.type() == null || filter.type() == device.getType())
+                .filter(device -> filter.status() == null || filter.status().equals(device.getStatus()))
+                .map(Device::getDeviceId)
+                .toList();
+
+        assertThat(repository.findMatchingDeviceIds(filter, 0)).containsExactlyInAnyOrderElementsOf(expected);
+        assertThat(repository.findMatchingDeviceIds(filter, 3))
+                .containsExactlyElementsOf(expected.stream().sorted().limit(3).toList());
+    }
+
+    @Test
+    void ensureIndexes_shouldBeRepeatable() {
+        repository.ensureIndexes();
+
+        List<Document> keys = new ArrayList<>();
+        collection.listIndexes().forEach(index -> keys.add(index.get("key", Document.class)));
+        assertThat(keys).contains(
+                new Document("id", 1),
+                new Document(Map.of("room", 1, "type", 1, "status", 1, "id", 1)),
+                new Document(Map.of("type", 1, "status", 1, "id", 1)),
+                new Document(Map.of("status", 1, "room", 1, "id", 1))
+        );
+    }
+
+    // Plan shapes differ between query engines, so every stage name anywhere in the plan is collected
+    private static void collectStages(Object plan, List<String> stages) {
+        if (plan instanceof Document document) {
+            document.forEach((key, value) -> {
+                if ("stage".equals(key) && value instanceof String stage) {
+                    stages.add(stage);
+                } else {
+                    collectStages(value, stages);
+                }
+            });
+        } else if (plan instanceof List<?> list) {
+            list.forEach(element -> collectStages(element, stages));
+        }
+    }
+}
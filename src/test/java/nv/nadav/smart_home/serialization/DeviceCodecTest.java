@@ -0,0 +1,140 @@
+package nv.nadav.smart_home.serialization;
+
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import com.fasterxml.jackson.databind.exc.MismatchedInputException;
+import nv.nadav.smart_home.dto.DeviceDto;
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.model.DeviceType;
+import nv.nadav.smart_home.model.parameters.CurtainParameters;
+import nv.nadav.smart_home.model.parameters.LightParameters;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DeviceCodecTest {
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void readDevice_shouldReadParametersForDeclaredType() throws Exception {
+        DeviceDto device = DeviceCodec.readDevice(bytes("""
+                {"id":"light1","type":"light","name":"Lamp","room":"Office","status":"on",
+                 "parameters":{"brightness":40,"color":"#FFFFFF","is_dimmable":true,"dynamic_color":false}}
+                """));
+
+        assertThat(device.getId()).isEqualTo("light1");
+        assertThat(device.getType()).isEqualTo(DeviceType.LIGHT);
+        assertThat(device.getParameters()).isInstanceOf(LightParameters.class);
+        assertThat(((LightParameters) device.getParameters()).getBrightness()).isEqualTo(40);
+    }
+
+    @Test
+    void readDevice_shouldReadParametersBeforeType() throws Exception {
+        DeviceDto device = DeviceCodec.readDevice(bytes("""
+                {"parameters":{"position":30},"id":"curtain1","type":"curtain","name":"Blinds"}
+                """));
+
+        assertThat(device.getType()).isEqualTo(DeviceType.CURTAIN);
+        assertThat(device.getParameters()).isInstanceOf(CurtainParameters.class);
+        assertThat(((CurtainParameters) device.getParameters()).getPosition()).isEqualTo(30);
+    }
+
+    @Test
+    void readDevice_shouldRejectUnknownType() {
+        assertThatThrownBy(() -> DeviceCodec.readDevice(bytes("{\"id\":\"x\",\"type\":\"toaster\"}")))
+                .isInstanceOf(InvalidFormatException.class);
+    }
+
+    @Test
+    void readDevice_shouldRejectNonScalarStringFields() {
+        assertThatThrownBy(() -> DeviceCodec.readDevice(bytes("""
+                {"id":"light1","name":{"status":"off"},"type":"light","status":"on"}
+                """)))
+                .isInstanceOf(MismatchedInputException.class);
+        assertThatThrownBy(() -> DeviceCodec.readDevice(bytes("{\"id\":[\"light1\"],\"type\":\"light\"}")))
+                .isInstanceOf(MismatchedInputException.class);
+    }
+
+    @Test
+    void readUpdate_shouldUseTypeOfReader() throws Exception {
+        DeviceUpdateDto update = DeviceCodec.readUpdate(bytes("{\"parameters\":{\"brightness\":70}}"), DeviceType.LIGHT);
+
+        assertThat(update.getParameters()).isInstanceOf(LightParameters.class);
+        assertThat(((LightParameters) update.getParameters()).getBrightness()).isEqualTo(70);
+    }
+
+    @Test
+    void writePayload_shouldRoundTripThroughReader() throws Exception {
+        DeviceUpdateDto update = new DeviceUpdateDto();
+        update.setName("Desk Lamp");
+        Map<String, Object> payload = DeviceCodec.toPayload(update);
+
+        DeviceUpdateDto read = DeviceCodec.readUpdate(DeviceCodec.writePayload(payload), DeviceType.LIGHT);
+
+        assertThat(read).isEqualTo(update);
+    }
+
+    @Test
+    void readBulkUpdate_shouldSplitEntriesByDevice() throws Exception {
+        List<DeviceCodec.BulkUpdate> entries = DeviceCodec.readBulkUpdate(bytes("""
+                [{"id":"light1","parameters":{"brightness":10}},{"id":"curtain1","status":"off"}]
+                """), PayloadFormat.JSON);
+
+        assertThat(entries).extracting(DeviceCodec.BulkUpdate::deviceId).containsExactly("light1", "curtain1");
+        DeviceUpdateDto light = DeviceCodec.readUpdate(entries.getFirst().update(), DeviceType.LIGHT);
+        assertThat(((LightParameters) light.getParameters()).getBrightness()).isEqualTo(10);
+        assertThat(DeviceCodec.readUpdate(entries.get(1).update(), DeviceType.CURTAIN).getStatus()).isEqualTo("off");
+    }
+
+    @Test
+    void readBulkUpdate_shouldRejectEntryWithoutId() {
+        assertThatThrownBy(() -> DeviceCodec.readBulkUpdate(bytes("[{\"status\":\"on\"}]"), PayloadFormat.JSON))
+                .isInstanceOf(MismatchedInputException.class);
+        assertThatThrownBy(() -> DeviceCodec.readBulkUpdate(bytes("{\"id\":\"light1\"}"), PayloadFormat.JSON))
+                .isInstanceOf(MismatchedInputException.class);
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = PayloadFormat.class, names = {"CBOR", "SMILE"})
+    void binaryFormats_shouldRoundTripDevice(PayloadFormat format) throws Exception {
+        DeviceDto device = DeviceCodec.readDevice(bytes("""
+                {"id":"light1","type":"light","name":"Lamp","room":"Office","status":"on",
+                 "parameters":{"brightness":40,"color":"#FFFFFF","is_dimmable":true,"dynamic_color":false}}
+                """));
+        byte[] json = DeviceCodec.writePayload(DeviceCodec.toPayload(device));
+
+        byte[] encoded = DeviceCodec.writePayload(DeviceCodec.toPayload(device), format);
+
+        assertThat(encoded.length).isLessThan(json.length);
+        assertThat(DeviceCodec.readDevice(encoded, format)).isEqualTo(device);
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = PayloadFormat.class, names = {"CBOR", "SMILE"})
+    void binaryFormats_shouldReadUpdateParametersForType(PayloadFormat format) throws Exception {
+        byte[] encoded = DeviceCodec.writePayload(Map.of("parameters", Map.of("position", 55)), format);
+
+        DeviceUpdateDto update = DeviceCodec.readUpdate(encoded, DeviceType.CURTAIN, format);
+
+        assertThat(update.getParameters()).isInstanceOf(CurtainParameters.class);
+        assertThat(((CurtainParameters) update.getParameters()).getPosition()).isEqualTo(55);
+    }
+
+    @Test
+    void fromContentType_shouldDefaultToJsonAndIgnoreParameters() {
+        assertThat(PayloadFormat.fromContentType(null)).isEqualTo(PayloadFormat.JSON);
+        assertThat(PayloadFormat.fromContentType("application/json; charset=utf-8")).isEqualTo(PayloadFormat.JSON);
+        assertThat(PayloadFormat.fromContentType("application/CBOR")).isEqualTo(PayloadFormat.CBOR);
+        assertThatThrownBy(() -> PayloadFormat.fromContentType("text/plain"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
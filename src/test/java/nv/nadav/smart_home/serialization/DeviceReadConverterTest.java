@@ -143,4 +143,15 @@ class DeviceReadConverterTest {
         assertThat(params.isDimmable()).isTrue();
         assertThat(params.isDynamicColor()).isFalse();
     }
+
+    @Test
+    void convert_shouldReadVersionAndDefaultMissingToZero() {
+        Document doc = new Document()
+                .append("id", "curtain1")
+                .append("type", "curtain")
+                .append("parameters", new Document("position", 10));
+
+        assertThat(converter.convert(doc).getVersion()).isZero();
+        assertThat(converter.convert(doc.append("version", 3)).getVersion()).isEqualTo(3L);
+    }
 }
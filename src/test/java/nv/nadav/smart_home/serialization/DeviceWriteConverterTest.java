@@ -1,5 +1,6 @@
 package nv.nadav.smart_home.serialization;
 
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
 import nv.nadav.smart_home.model.Device;
 import nv.nadav.smart_home.model.DeviceType;
 import nv.nadav.smart_home.model.parameters.*;
@@ -8,6 +9,8 @@ import org.bson.types.ObjectId;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.Map;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 class DeviceWriteConverterTest {
@@ -153,4 +156,20 @@ class DeviceWriteConverterTest {
         Document parameters = (Document) doc.get("parameters");
         assertThat(parameters).isEmpty();
     }
+
+    @Test
+    void updateFields_shouldSetOnlyGivenFieldsWithParameterPaths() {
+        DeviceUpdateDto update = new DeviceUpdateDto();
+        update.setStatus("off");
+        AirConditionerParameters params = new AirConditionerParameters();
+        params.setMode(AirConditionerParameters.Mode.HEAT);
+        update.setParameters(params);
+
+        Map<String, Object> fields = DeviceWriteConverter.updateFields(update);
+
+        assertThat(fields).containsExactly(
+                Map.entry("status", "off"),
+                Map.entry("parameters.mode", "heat")
+        );
+    }
 }
@@ -0,0 +1,112 @@
+package nv.nadav.smart_home.service.impl;
+
+import nv.nadav.smart_home.config.MqttDeadLetterProperties;
+import nv.nadav.smart_home.serialization.PayloadFormat;
+import nv.nadav.smart_home.service.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class DeadLetterStoreImplTest {
+
+    private CounterManager counterManager;
+    private MqttDeadLetterProperties properties;
+
+    @BeforeEach
+    void setUp() {
+        counterManager = mock(CounterManager.class);
+        properties = new MqttDeadLetterProperties();
+    }
+
+    private DeadLetterStoreImpl store() {
+        return new DeadLetterStoreImpl(properties, mock(GaugeManager.class), counterManager);
+    }
+
+    @Test
+    void add_roundTripsThroughEncoding() {
+        DeadLetterStoreImpl store = store();
+
+        store.add(message("light1", "{\"status\":\"on\"}"), DeadLetterStore.Reason.DEVICE_NOT_FOUND, "Device ID light1 not found");
+
+        List<DeadLetterStore.DeadLetter> page = store.page(0, 10);
+        assertThat(page).hasSize(1);
+        DeadLetterStore.DeadLetter deadLetter = page.getFirst();
+        assertThat(deadLetter.reason()).isEqualTo(DeadLetterStore.Reason.DEVICE_NOT_FOUND);
+        assertThat(deadLetter.detail()).isEqualTo("Device ID light1 not found");
+        assertThat(deadLetter.message().deviceId()).isEqualTo("light1");
+        assertThat(deadLetter.message().method()).isEqualTo(MqttService.Method.UPDATE);
+        assertThat(deadLetter.message().senderGroup()).isEqualTo("frontend");
+        assertThat(deadLetter.message().senderId()).isEqualTo("ui-1");
+        assertThat(new String(deadLetter.message().payload(), StandardCharsets.UTF_8)).isEqualTo("{\"status\":\"on\"}");
+        verify(counterManager).increment(eq("mqtt_dead_letters_total"), anyString(), eq(Map.of("reason", "device_not_found")));
+    }
+
+    @Test
+    void page_continuesAfterGivenId() {
+        DeadLetterStoreImpl store = store();
+        for (int i = 0; i < 5; i++) {
+            store.add(message("light" + i, "{}"), DeadLetterStore.Reason.PARSE_ERROR, null);
+        }
+
+        List<DeadLetterStore.DeadLetter> first = store.page(0, 2);
+        List<DeadLetterStore.DeadLetter> second = store.page(first.getLast().id(), 2);
+
+        assertThat(first).extracting(d -> d.message().deviceId()).containsExactly("light0", "light1");
+        assertThat(second).extracting(d -> d.message().deviceId()).containsExactly("light2", "light3");
+    }
+
+    @Test
+    void add_evictsOldestWhenFull() {
+        properties.setMaxEntries(2);
+        DeadLetterStoreImpl store = store();
+
+        store.add(message("light1", "{}"), DeadLetterStore.Reason.PARSE_ERROR, null);
+        store.add(message("light2", "{}"), DeadLetterStore.Reason.PARSE_ERROR, null);
+        store.add(message("light3", "{}"), DeadLetterStore.Reason.PARSE_ERROR, null);
+
+        assertThat(store.size()).isEqualTo(2);
+        assertThat(store.page(0, 10)).extracting(d -> d.message().deviceId()).containsExactly("light2", "light3");
+    }
+
+    @Test
+    void add_evictsOldestWhenOverByteBudget() {
+        properties.setMaxBytes(200);
+        DeadLetterStoreImpl store = store();
+
+        store.add(message("light1", "x".repeat(100)), DeadLetterStore.Reason.PARSE_ERROR, null);
+        store.add(message("light2", "x".repeat(100)), DeadLetterStore.Reason.PARSE_ERROR, null);
+
+        assertThat(store.page(0, 10)).extracting(d -> d.message().deviceId()).containsExactly("light2");
+    }
+
+    @Test
+    void take_removesSelectedEntries() {
+        DeadLetterStoreImpl store = store();
+        store.add(message("light1", "{}"), DeadLetterStore.Reason.PARSE_ERROR, null);
+        store.add(message("light2", "{}"), DeadLetterStore.Reason.PARSE_ERROR, null);
+        long firstId = store.page(0, 1).getFirst().id();
+
+        List<DeadLetterStore.DeadLetter> taken = store.take(List.of(firstId, 999L));
+
+        assertThat(taken).extracting(d -> d.message().deviceId()).containsExactly("light1");
+        assertThat(store.size()).isEqualTo(1);
+    }
+
+    private static InboundMessage message(String deviceId, String payload) {
+        return new InboundMessage(
+                deviceId,
+                MqttService.Method.UPDATE,
+                "frontend",
+                "ui-1",
+                payload.getBytes(StandardCharsets.UTF_8),
+                PayloadFormat.JSON
+        );
+    }
+}
@@ -2,9 +2,11 @@ package nv.nadav.smart_home.service.impl;
 
 import nv.nadav.smart_home.dto.DeviceDto;
 import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.model.Device;
 import nv.nadav.smart_home.model.DeviceType;
 import nv.nadav.smart_home.model.parameters.*;
 import nv.nadav.smart_home.service.CounterManager;
+import nv.nadav.smart_home.service.DeviceStoreChangedEvent;
 import nv.nadav.smart_home.service.DeviceTrackingService;
 import nv.nadav.smart_home.service.GaugeManager;
 import org.junit.jupiter.api.AfterEach;
@@ -15,6 +17,7 @@ import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -682,4 +685,68 @@ public class DeviceMetricsServiceImplTest {
     void testDeleteDevice_doesNotThrow() {
         assertDoesNotThrow(() -> service.deleteDevice("test"));
     }
+
+    @Test
+    void testStoreChanged_setsGaugesOnly() {
+        Device device = new Device();
+        device.setDeviceId("test");
+        device.setType(DeviceType.CURTAIN);
+        device.setStatus("closed");
+        CurtainParameters parameters = new CurtainParameters();
+        parameters.setPosition(MIN_POSITION);
+        device.setParameters(parameters);
+
+        service.onStoreChanged(new DeviceStoreChangedEvent(null, "test", device));
+
+        verify(mockGauges).setNumericGauge(
+                eq("curtain_status"),
+                anyString(),
+                eq(1.0),
+                eq(Map.of("device_id", "test"))
+        );
+        verify(mockGauges).setNumericGauge(
+                eq("curtain_position"),
+                anyString(),
+                eq((double) MIN_POSITION),
+                eq(Map.of("device_id", "test"))
+        );
+        verifyNoInteractions(mockCounters, mockDeviceTracking);
+    }
+
+    @Test
+    void testOnStoreChanged_delete_removesDeviceGauges() {
+        service.onStoreChanged(new DeviceStoreChangedEvent(null, "test", null));
+
+        verify(mockGauges).removeDeviceGauges("test");
+        verifyNoMoreInteractions(mockGauges);
+        verifyNoInteractions(mockCounters, mockDeviceTracking);
+    }
+
+    @Test
+    void testAddDevices_checksAndMarksSeenInOneBatch() {
+        DeviceDto seen = new DeviceDto();
+        seen.setId("seen");
+        seen.setType(DeviceType.CURTAIN);
+        DeviceDto unseen = new DeviceDto();
+        unseen.setId("unseen");
+        unseen.setType(DeviceType.CURTAIN);
+        when(mockDeviceTracking.areDevicesNew(List.of("seen", "unseen"))).thenReturn(List.of(true, false));
+
+        service.addDevices(List.of(seen, unseen));
+
+        verify(mockDeviceTracking).markDevicesSeen(List.of("seen"));
+        verify(mockDeviceTracking, never()).markDeviceSeen(anyString());
+        verify(mockCounters).incrementBy(
+                eq("device_on_events_total"),
+                anyString(),
+                eq(Map.of("device_id", "seen", "device_type", DeviceType.CURTAIN.getValue())),
+                eq(0.0)
+        );
+        verify(mockCounters, never()).incrementBy(
+                anyString(),
+                anyString(),
+                eq(Map.of("device_id", "unseen", "device_type", DeviceType.CURTAIN.getValue())),
+                anyDouble()
+        );
+    }
 }
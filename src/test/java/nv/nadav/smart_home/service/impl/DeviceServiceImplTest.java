@@ -1,26 +1,41 @@
 package nv.nadav.smart_home.service.impl;
 
 
+import nv.nadav.smart_home.config.DeviceCacheProperties;
+import nv.nadav.smart_home.config.DeviceUpdateProperties;
 import nv.nadav.smart_home.dto.DeviceDto;
 import nv.nadav.smart_home.dto.DeviceUpdateDto;
 import nv.nadav.smart_home.exception.DeviceExistsException;
 import nv.nadav.smart_home.exception.DeviceNotFoundException;
 import nv.nadav.smart_home.exception.DeviceValidationException;
+import nv.nadav.smart_home.exception.DeviceVersionConflictException;
 import nv.nadav.smart_home.model.Device;
 import nv.nadav.smart_home.model.DeviceType;
 import nv.nadav.smart_home.model.parameters.CurtainParameters;
 import nv.nadav.smart_home.model.parameters.LightParameters;
+import nv.nadav.smart_home.model.parameters.WaterHeaterParameters;
+import nv.nadav.smart_home.repository.DeviceFilter;
 import nv.nadav.smart_home.repository.DeviceRepository;
 import nv.nadav.smart_home.service.*;
+import com.mongodb.bulk.BulkWriteError;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.validation.Validation;
+import jakarta.validation.ValidatorFactory;
+import org.bson.BsonDocument;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mapstruct.factory.Mappers;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.context.ApplicationEventPublisher;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 import static nv.nadav.smart_home.constants.Constants.*;
 import static org.assertj.core.api.Assertions.*;
@@ -30,6 +45,15 @@ public class DeviceServiceImplTest {
     @Mock
     private DeviceRepository repo;
 
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
+    @Mock
+    private CounterManager counterManager;
+
+    @Mock
+    private DeviceWriteBehind writeBehind;
+
     private final DeviceMapper deviceMapper = Mappers.getMapper(DeviceMapper.class);
     private final AirConditionerParametersMapper airConditionerParametersMapper =
             Mappers.getMapper(AirConditionerParametersMapper.class);
@@ -42,6 +66,8 @@ public class DeviceServiceImplTest {
     private final WaterHeaterParametersMapper waterHeaterParametersMapper =
             Mappers.getMapper(WaterHeaterParametersMapper.class);
 
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ValidatorFactory validatorFactory = Validation.buildDefaultValidatorFactory();
     private DeviceServiceImpl service;
     private AutoCloseable mocks;
 
@@ -55,7 +81,14 @@ public class DeviceServiceImplTest {
                 curtainParametersMapper,
                 doorLockParametersMapper,
                 lightParametersMapper,
-                waterHeaterParametersMapper
+                waterHeaterParametersMapper,
+                eventPublisher,
+                new DeviceCacheProperties(),
+                new DeviceUpdateProperties(),
+                meterRegistry,
+                counterManager,
+                writeBehind,
+                validatorFactory.getValidator()
         );
     }
 
@@ -64,6 +97,7 @@ public class DeviceServiceImplTest {
         if (mocks != null) {
             mocks.close();
         }
+        validatorFactory.close();
     }
 
     @Test
@@ -118,6 +152,18 @@ public class DeviceServiceImplTest {
         DeviceDto returned = service.addDevice(deviceDto);
         verify(repo).insert(eq(device));
         assertThat(returned).isEqualTo(deviceDto);
+        verify(eventPublisher).publishEvent(new DeviceChangedEvent("test", returned));
+    }
+
+    @Test
+    void testDeleteDevice_publishesDeletion() {
+        Device device = getValidLightDevice();
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(device));
+
+        service.deleteDeviceById("test");
+
+        verify(repo).delete(device);
+        verify(eventPublisher).publishEvent(new DeviceChangedEvent("test", null));
     }
 
     @Test
@@ -141,7 +187,7 @@ public class DeviceServiceImplTest {
         assertThatExceptionOfType(DeviceValidationException.class)
                 .isThrownBy(() -> service.updateDevice("test", updateDto))
                 .withMessage(String.format("Incorrect parameters for device type %s", device.getType()));
-        verify(repo, never()).save(any());
+        verify(repo, never()).updateFields(any(), anyLong(), any());
     }
     
     @Test
@@ -155,9 +201,11 @@ public class DeviceServiceImplTest {
         DeviceUpdateDto updateDto = new DeviceUpdateDto();
         updateDto.setParameters(updateParameters);
         when(repo.findByDeviceId("test")).thenReturn(Optional.of(original));
-        when(repo.save(original)).thenReturn(updated);
+        when(repo.updateFields(eq("test"), anyLong(), any())).thenReturn(Optional.of(updated));
         DeviceDto result = getValidLightDeviceDto();
         assertThat(service.updateDevice("test", updateDto)).isEqualTo(result);
+        verify(repo).updateFields("test", 0L, Map.of("parameters.brightness", MIN_BRIGHTNESS));
+        verify(repo, never()).save(any());
     }
 
     @Test
@@ -173,10 +221,274 @@ public class DeviceServiceImplTest {
         updateDto.setParameters(updateParameters);
         updateDto.setStatus("off");
         when(repo.findByDeviceId("test")).thenReturn(Optional.of(original));
-        when(repo.save(original)).thenReturn(updated);
+        when(repo.updateFields(eq("test"), anyLong(), any())).thenReturn(Optional.of(updated));
         DeviceDto result = getValidLightDeviceDto();
         result.setStatus("off");
         assertThat(service.updateDevice("test", updateDto)).isEqualTo(result);
+        verify(repo).updateFields("test", 0L, Map.of("status", "off", "parameters.brightness", MIN_BRIGHTNESS));
+    }
+
+    @Test
+    void testUpdateDevice_deletedConcurrently() {
+        DeviceUpdateDto updateDto = new DeviceUpdateDto();
+        updateDto.setStatus("off");
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(getValidLightDevice()), Optional.empty());
+        when(repo.updateFields(eq("test"), anyLong(), any())).thenReturn(Optional.empty());
+
+        assertThatExceptionOfType(DeviceNotFoundException.class)
+                .isThrownBy(() -> service.updateDevice("test", updateDto));
+        verifyNoInteractions(eventPublisher);
+    }
+
+    @Test
+    void testUpdateDevice_conflictRetriedWithFreshVersion() {
+        Device stale = getValidLightDevice();
+        Device fresh = getValidLightDevice();
+        fresh.setVersion(2L);
+        Device updated = getValidLightDevice();
+        updated.setStatus("off");
+        updated.setVersion(3L);
+        DeviceUpdateDto updateDto = new DeviceUpdateDto();
+        updateDto.setStatus("off");
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(stale), Optional.of(fresh));
+        when(repo.updateFields(eq("test"), eq(0L), any())).thenReturn(Optional.empty());
+        when(repo.updateFields(eq("test"), eq(2L), any())).thenReturn(Optional.of(updated));
+
+        DeviceDto result = service.updateDevice("test", updateDto);
+
+        assertThat(result.getVersion()).isEqualTo(3L);
+        verify(counterManager).increment(eq("device_update_conflicts_total"), anyString(), eq(Map.of("outcome", "retried")));
+    }
+
+    @Test
+    void testUpdateDevice_expectedVersionConflictNotRetried() {
+        Device current = getValidLightDevice();
+        current.setVersion(5L);
+        DeviceUpdateDto updateDto = new DeviceUpdateDto();
+        updateDto.setStatus("off");
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(current));
+        when(repo.updateFields(eq("test"), eq(4L), any())).thenReturn(Optional.empty());
+
+        assertThatExceptionOfType(DeviceVersionConflictException.class)
+                .isThrownBy(() -> service.updateDevice("test", updateDto, 4L))
+                .withMessage("Device ID test is at version 5");
+        verify(repo, times(1)).updateFields(any(), anyLong(), any());
+        verifyNoInteractions(eventPublisher);
+    }
+
+    @Test
+    void testUpdateDevice_telemetryBufferedInsteadOfWritten() {
+        Device light = getValidLightDevice();
+        LightParameters brightness = new LightParameters();
+        brightness.setBrightness(MIN_BRIGHTNESS);
+        DeviceUpdateDto updateDto = new DeviceUpdateDto();
+        updateDto.setParameters(brightness);
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(light));
+        when(writeBehind.accepts(DeviceType.LIGHT, updateDto)).thenReturn(true);
+
+        DeviceDto result = service.updateDevice("test", updateDto);
+
+        assertThat(((LightParameters) result.getParameters()).getBrightness()).isEqualTo(MIN_BRIGHTNESS);
+        verify(writeBehind).buffer("test", DeviceType.LIGHT, updateDto);
+        verify(repo, never()).updateFields(any(), anyLong(), any());
+        assertThat(((LightParameters) service.getDeviceById("test").getParameters()).getBrightness())
+                .isEqualTo(MIN_BRIGHTNESS);
+    }
+
+    @Test
+    void testGetDevice_overlaysBufferedTelemetry() {
+        LightParameters brightness = new LightParameters();
+        brightness.setBrightness(MIN_BRIGHTNESS);
+        DeviceUpdateDto buffered = new DeviceUpdateDto();
+        buffered.setParameters(brightness);
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(getValidLightDevice()));
+        when(writeBehind.peek("test")).thenReturn(buffered);
+
+        DeviceDto result = service.getDeviceById("test");
+
+        assertThat(((LightParameters) result.getParameters()).getBrightness()).isEqualTo(MIN_BRIGHTNESS);
+        assertThat(result.getVersion()).isEqualTo(1L);
+    }
+
+    @Test
+    void testUpdateDevice_afterBufferedTelemetry_flushesItBeforeWriting() {
+        when(repo.findByDeviceId("heater")).thenReturn(Optional.of(getValidWaterHeaterDevice(40)));
+        DeviceUpdateDto telemetry = new DeviceUpdateDto();
+        telemetry.setParameters(temperature(50));
+        when(writeBehind.accepts(DeviceType.WATER_HEATER, telemetry)).thenReturn(true);
+        when(writeBehind.buffer("heater", DeviceType.WATER_HEATER, telemetry)).thenReturn(true);
+        DeviceUpdateDto mixed = new DeviceUpdateDto();
+        mixed.setParameters(temperature(55));
+        mixed.setStatus("on");
+        Device stored = getValidWaterHeaterDevice(55);
+        stored.setStatus("on");
+        stored.setVersion(2L);
+        when(repo.updateFields(eq("heater"), eq(1L), anyMap())).thenReturn(Optional.of(stored));
+
+        DeviceDto buffered = service.updateDevice("heater", telemetry);
+        DeviceDto result = service.updateDevice("heater", mixed, buffered.getVersion());
+
+        // The version handed out with buffered telemetry is the one its flush stores, so it doesn't conflict
+        assertThat(buffered.getVersion()).isEqualTo(1L);
+        InOrder inOrder = inOrder(writeBehind, repo);
+        inOrder.verify(writeBehind).flush(List.of("heater"));
+        inOrder.verify(repo).updateFields("heater", 1L, Map.of("parameters.temperature", 55, "status", "on"));
+        assertThat(((WaterHeaterParameters) result.getParameters()).getTemperature()).isEqualTo(55);
+        assertThat(result.getVersion()).isEqualTo(2L);
+    }
+
+    @Test
+    void testUpdateDevices_writesFoundDevicesInOneBulkThenRereadsThem() {
+        Device light = getValidLightDevice();
+        DeviceUpdateDto updateDto = new DeviceUpdateDto();
+        updateDto.setStatus("off");
+        Map<String, DeviceUpdateDto> updates = Map.of("test", updateDto, "missing", new DeviceUpdateDto());
+        when(repo.findByDeviceIdIn(updates.keySet())).thenReturn(List.of(light));
+        // Another writer moved the device since it was read
+        Device stored = getValidLightDevice();
+        stored.setStatus("off");
+        stored.setRoom("moved");
+        stored.setVersion(2L);
+        when(repo.findByDeviceIdIn(Set.of("test"))).thenReturn(List.of(stored));
+
+        List<DeviceDto> result = service.updateDevices(updates);
+
+        assertThat(result).singleElement().satisfies(device -> {
+            assertThat(device.getStatus()).isEqualTo("off");
+            assertThat(device.getRoom()).isEqualTo("moved");
+            assertThat(device.getVersion()).isEqualTo(2L);
+        });
+        verify(repo).updateFieldsAll(Map.of("test", Map.of("status", "off")));
+        verify(repo, never()).save(any());
+        verify(eventPublisher).publishEvent(new DeviceChangedEvent("test", result.getFirst()));
+        assertThat(service.getDeviceById("test").getRoom()).isEqualTo("moved");
+    }
+
+    @Test
+    void testUpdateDevices_invalidUpdate_writesNothing() {
+        LightParameters tooBright = new LightParameters();
+        tooBright.setBrightness(MAX_BRIGHTNESS + 1);
+        DeviceUpdateDto invalid = new DeviceUpdateDto();
+        invalid.setParameters(tooBright);
+        when(repo.findByDeviceIdIn(any())).thenReturn(List.of(getValidLightDevice()));
+
+        assertThatExceptionOfType(DeviceValidationException.class)
+                .isThrownBy(() -> service.updateDevices(Map.of("test", invalid)));
+        verify(repo, never()).updateFieldsAll(any());
+        verifyNoInteractions(eventPublisher);
+    }
+
+    @Test
+    void testUpdateDevices_sharedUpdate_writesOnceForAllDevices() {
+        Device first = getValidLightDevice();
+        Device second = getValidLightDevice();
+        second.setDeviceId("test2");
+        DeviceUpdateDto updateDto = new DeviceUpdateDto();
+        updateDto.setStatus("off");
+        when(repo.findByDeviceIdIn(any())).thenReturn(List.of(first, second));
+        Device firstStored = getValidLightDevice();
+        firstStored.setStatus("off");
+        firstStored.setVersion(1L);
+        Device secondStored = getValidLightDevice();
+        secondStored.setDeviceId("test2");
+        secondStored.setStatus("off");
+        secondStored.setVersion(4L);
+        when(repo.findByDeviceIdIn(List.of("test", "test2"))).thenReturn(List.of(firstStored, secondStored));
+
+        List<DeviceDto> result = service.updateDevices(List.of("test", "test2", "missing"), updateDto);
+
+        // The versions are the stored ones, not one past whatever copy was read before the write
+        assertThat(result).extracting(DeviceDto::getStatus).containsExactly("off", "off");
+        assertThat(result).extracting(DeviceDto::getVersion).containsExactly(1L, 4L);
+        verify(repo).updateFieldsMany(List.of("test", "test2"), Map.of("status", "off"));
+        verify(repo, never()).updateFieldsAll(any());
+        assertThat(service.getDeviceById("test2").getStatus()).isEqualTo("off");
+    }
+
+    @Test
+    void testGetDevicesMatching_readsIdsFromIndexThenDevicesFromCache() {
+        Device cached = getValidLightDevice();
+        cached.setDeviceId("b");
+        Device stored = getValidLightDevice();
+        stored.setDeviceId("a");
+        DeviceFilter filter = new DeviceFilter("test", DeviceType.LIGHT, null);
+        when(repo.findByDeviceId("b")).thenReturn(Optional.of(cached));
+        service.getDeviceById("b");
+        when(repo.findMatchingDeviceIds(filter, 0)).thenReturn(List.of("b", "a"));
+        when(repo.findByDeviceIdIn(Set.of("a"))).thenReturn(List.of(stored));
+
+        List<DeviceDto> result = service.getDevicesMatching(filter, 0);
+
+        assertThat(result).extracting(DeviceDto::getId).containsExactly("a", "b");
+        verify(repo, never()).findAll();
+    }
+
+    @Test
+    void testGetDevicesMatching_rereadsCachedCopyThatNoLongerMatches() {
+        Device cached = getValidLightDevice();
+        cached.setDeviceId("a");
+        cached.setStatus("on");
+        Device storedOff = getValidLightDevice();
+        storedOff.setDeviceId("a");
+        storedOff.setStatus("off");
+        storedOff.setVersion(1L);
+        Device movedOn = getValidLightDevice();
+        movedOn.setDeviceId("b");
+        movedOn.setStatus("on");
+        DeviceFilter filter = new DeviceFilter(null, null, "off");
+        when(repo.findByDeviceId("a")).thenReturn(Optional.of(cached));
+        service.getDeviceById("a");
+        when(repo.findMatchingDeviceIds(filter, 0)).thenReturn(List.of("a", "b"));
+        when(repo.findByDeviceIdIn(Set.of("b"))).thenReturn(List.of(movedOn));
+        when(repo.findByDeviceIdIn(List.of("a", "b"))).thenReturn(List.of(storedOff, movedOn));
+
+        List<DeviceDto> result = service.getDevicesMatching(filter, 0);
+
+        // a's cached copy was stale and is read again; b changed after the index scan and is left out
+        assertThat(result).extracting(DeviceDto::getId).containsExactly("a");
+        assertThat(result).extracting(DeviceDto::getStatus).containsExactly("off");
+    }
+
+    @Test
+    void testGetDevice_servedFromCacheAfterFirstRead() {
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(getValidLightDevice()));
+
+        DeviceDto first = service.getDeviceById("test");
+        ((LightParameters) first.getParameters()).setBrightness(MIN_BRIGHTNESS);
+        DeviceDto second = service.getDeviceById("test");
+
+        verify(repo, times(1)).findByDeviceId("test");
+        assertThat(((LightParameters) second.getParameters()).getBrightness())
+                .isEqualTo((MIN_BRIGHTNESS + MAX_BRIGHTNESS) / 2);
+        assertThat(meterRegistry.get("cache.gets").tag("cache", "devices").tag("result", "hit")
+                .functionCounter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void testUpdateDevice_writesThroughToCache() {
+        Device original = getValidLightDevice();
+        DeviceUpdateDto updateDto = new DeviceUpdateDto();
+        updateDto.setStatus("off");
+        Device updated = getValidLightDevice();
+        updated.setStatus("off");
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(original));
+        when(repo.updateFields(eq("test"), anyLong(), any())).thenReturn(Optional.of(updated));
+
+        service.updateDevice("test", updateDto);
+
+        assertThat(service.getDeviceById("test").getStatus()).isEqualTo("off");
+        verify(repo, times(1)).findByDeviceId("test");
+    }
+
+    @Test
+    void testDeleteDevice_invalidatesCache() {
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(getValidLightDevice()));
+        service.getDeviceById("test");
+
+        service.deleteDeviceById("test");
+
+        when(repo.findByDeviceId("test")).thenReturn(Optional.empty());
+        assertThatExceptionOfType(DeviceNotFoundException.class).isThrownBy(() -> service.getDeviceById("test"));
     }
 
     private static DeviceDto getValidLightDeviceDto() {
@@ -195,6 +507,239 @@ public class DeviceServiceImplTest {
         return result;
     }
 
+    @Test
+    void testGetDevicePage_cursorContinuesAfterLastDevice() {
+        Device first = getValidLightDevice();
+        Device second = getValidLightDevice();
+        second.setDeviceId("test2");
+        when(repo.findPage(null, 2)).thenReturn(List.of(first, second));
+        when(repo.findPage(first.get_id(), 2)).thenReturn(List.of(second));
+
+        DevicePage page = service.getDevicePage(null, 1);
+        DevicePage last = service.getDevicePage(page.nextCursor(), 1);
+
+        assertThat(page.devices()).extracting(DeviceDto::getId).containsExactly("test");
+        assertThat(last.devices()).extracting(DeviceDto::getId).containsExactly("test2");
+        assertThat(last.nextCursor()).isNull();
+    }
+
+    @Test
+    void testGetDevicePage_invalidCursor() {
+        assertThatExceptionOfType(DeviceValidationException.class)
+                .isThrownBy(() -> service.getDevicePage("not-a-cursor", 10));
+        verify(repo, never()).findPage(any(), anyInt());
+    }
+
+    @Test
+    void testGetDeviceIds_loadedOnceAndKeptCurrentByWrites() {
+        when(repo.findAllDeviceIds()).thenReturn(List.of("a", "test"));
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(getValidLightDevice()));
+        DeviceDto newDevice = getValidLightDeviceDto();
+        newDevice.setId("b");
+        when(repo.insert(any(Device.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        assertThat(service.getDeviceIds()).containsExactly("a", "test");
+        service.addDevice(newDevice);
+        service.deleteDeviceById("test");
+
+        assertThat(service.getDeviceIds()).containsExactly("a", "b");
+        verify(repo, times(1)).findAllDeviceIds();
+    }
+
+    @Test
+    void testDeviceChanged_elsewhere_dropsStaleCachedCopy() {
+        Device cached = getValidLightDevice();
+        Device written = getValidLightDevice();
+        written.setStatus("off");
+        written.setVersion(1L);
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(cached), Optional.of(written));
+        service.getDeviceById("test");
+
+        service.onDeviceChanged(new DeviceChangedEvent("test", DeviceServiceImpl.mapToDto(written)));
+
+        assertThat(service.getDeviceById("test").getStatus()).isEqualTo("off");
+        verify(repo, times(2)).findByDeviceId("test");
+    }
+
+    @Test
+    void testDeviceChanged_ownWriteKeepsCachedCopy() {
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(getValidLightDevice()));
+        DeviceDto device = service.getDeviceById("test");
+
+        service.onDeviceChanged(new DeviceChangedEvent("test", device));
+        service.getDeviceById("test");
+
+        verify(repo, times(1)).findByDeviceId("test");
+    }
+
+    @Test
+    void testDeviceChanged_deletedElsewhere_dropsDevice() {
+        Device device = getValidLightDevice();
+        when(repo.findAllDeviceIds()).thenReturn(List.of("test"));
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(device), Optional.empty());
+        service.getDeviceIds();
+        service.getDeviceById("test");
+
+        service.onDeviceChanged(new DeviceChangedEvent("test", null));
+
+        assertThatExceptionOfType(DeviceNotFoundException.class).isThrownBy(() -> service.getDeviceById("test"));
+        assertThat(service.getDeviceIds()).isEmpty();
+    }
+
+    @Test
+    void testStoreChanged_newerVersionRefreshesCache() {
+        Device cached = getValidLightDevice();
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(cached));
+        service.getDeviceById("test");
+        Device stored = getValidLightDevice();
+        stored.set_id(cached.get_id());
+        stored.setStatus("off");
+        stored.setVersion(1L);
+
+        service.onStoreChanged(new DeviceStoreChangedEvent(stored.get_id(), "test", stored));
+
+        assertThat(service.getDeviceById("test").getStatus()).isEqualTo("off");
+        verify(repo, times(1)).findByDeviceId("test");
+    }
+
+    @Test
+    void testStoreChanged_leavesEventDeviceUntouched() {
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(getValidLightDevice()));
+        service.getDeviceById("test");
+        LightParameters brightness = new LightParameters();
+        brightness.setBrightness(MIN_BRIGHTNESS);
+        DeviceUpdateDto buffered = new DeviceUpdateDto();
+        buffered.setParameters(brightness);
+        when(writeBehind.peek("test")).thenReturn(buffered);
+        Device stored = getValidLightDevice();
+        stored.setVersion(1L);
+        Integer storedBrightness = ((LightParameters) stored.getParameters()).getBrightness();
+
+        service.onStoreChanged(new DeviceStoreChangedEvent(stored.get_id(), "test", stored));
+
+        // Other listeners get the same event, so buffered telemetry only goes into this service's copy
+        assertThat(((LightParameters) stored.getParameters()).getBrightness()).isEqualTo(storedBrightness);
+        assertThat(stored.getVersion()).isEqualTo(1L);
+        assertThat(((LightParameters) service.getDeviceById("test").getParameters()).getBrightness())
+                .isEqualTo(MIN_BRIGHTNESS);
+    }
+
+    @Test
+    void testStoreChanged_sameVersionKeepsCachedCopy() {
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(getValidLightDevice()));
+        service.getDeviceById("test");
+        Device echoed = getValidLightDevice();
+        echoed.setStatus("off");
+
+        service.onStoreChanged(new DeviceStoreChangedEvent(echoed.get_id(), "test", echoed));
+
+        assertThat(service.getDeviceById("test").getStatus()).isEqualTo("on");
+    }
+
+    @Test
+    void testStoreChanged_deleteWithoutPreImageFoundByStoredId() {
+        Device device = getValidLightDevice();
+        when(repo.findAllDeviceIds()).thenReturn(List.of("test"));
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(device));
+        service.getDeviceIds();
+        service.getDeviceById("test");
+
+        service.onStoreChanged(new DeviceStoreChangedEvent(device.get_id(), null, null));
+
+        when(repo.findByDeviceId("test")).thenReturn(Optional.empty());
+        assertThatExceptionOfType(DeviceNotFoundException.class).isThrownBy(() -> service.getDeviceById("test"));
+        assertThat(service.getDeviceIds()).isEmpty();
+        verify(writeBehind).discard("test");
+        verify(repo, times(1)).findAllDeviceIds();
+    }
+
+    @Test
+    void testStoreChanged_unknownDeleteReloadsDeviceIds() {
+        when(repo.findAllDeviceIds()).thenReturn(List.of("a", "b"), List.of("a"));
+        service.getDeviceIds();
+
+        service.onStoreChanged(new DeviceStoreChangedEvent(new ObjectId(), null, null));
+
+        assertThat(service.getDeviceIds()).containsExactly("a");
+        verify(repo, times(2)).findAllDeviceIds();
+    }
+
+    @Test
+    void testStoreChanged_insertAddsDeviceId() {
+        when(repo.findAllDeviceIds()).thenReturn(List.of("a"));
+        service.getDeviceIds();
+        Device inserted = getValidLightDevice();
+
+        service.onStoreChanged(new DeviceStoreChangedEvent(inserted.get_id(), "test", inserted));
+
+        assertThat(service.getDeviceIds()).containsExactly("a", "test");
+    }
+
+    @Test
+    void testStoreReset_dropsCachedDevices() {
+        when(repo.findByDeviceId("test")).thenReturn(Optional.of(getValidLightDevice()));
+        service.getDeviceById("test");
+
+        service.onStoreReset(new DeviceStoreResetEvent());
+        service.getDeviceById("test");
+
+        verify(repo, times(2)).findByDeviceId("test");
+    }
+
+    @Test
+    void testAddDevices_reportsFailuresByPositionAndInsertsTheRest() {
+        DeviceDto added = getValidLightDeviceDto();
+        added.setId("new");
+        DeviceDto invalid = getValidLightDeviceDto();
+        invalid.setId("invalid");
+        invalid.setName(null);
+        DeviceDto repeated = getValidLightDeviceDto();
+        repeated.setId("new");
+        DeviceDto existing = getValidLightDeviceDto();
+        existing.setId("existing");
+        DeviceDto raced = getValidLightDeviceDto();
+        raced.setId("raced");
+        when(repo.findExistingDeviceIds(any())).thenReturn(List.of("existing"));
+        // "raced" is the second device left to insert
+        when(repo.insertUnordered(anyList())).thenReturn(Map.of(1, new BulkWriteError(11000, "E11000", new BsonDocument(), 1)));
+
+        DeviceImportResult result = service.addDevices(List.of(added, invalid, repeated, existing, raced));
+
+        assertThat(result.added()).extracting(DeviceDto::getId).containsExactly("new");
+        assertThat(result.added().getFirst().getVersion()).isZero();
+        assertThat(result.failed()).extracting(DeviceImportResult.Failure::index).containsExactly(1, 2, 3, 4);
+        assertThat(result.failed()).extracting(DeviceImportResult.Failure::error).containsExactly(
+                "Name must be specified",
+                "Device ID new appears more than once",
+                "Device ID existing already exists",
+                "Device ID raced already exists"
+        );
+        verify(repo, never()).existsByDeviceId(anyString());
+        verify(eventPublisher, times(1)).publishEvent(any(DeviceChangedEvent.class));
+        assertThat(service.existsByDeviceId("new")).isTrue();
+    }
+
+    private static WaterHeaterParameters temperature(int value) {
+        WaterHeaterParameters parameters = new WaterHeaterParameters();
+        parameters.setTemperature(value);
+        return parameters;
+    }
+
+    private static Device getValidWaterHeaterDevice(int temperature) {
+        Device device = new Device();
+        device.set_id(new ObjectId());
+        device.setDeviceId("heater");
+        device.setType(DeviceType.WATER_HEATER);
+        device.setName("heater");
+        device.setRoom("test");
+        device.setStatus("off");
+        WaterHeaterParameters parameters = temperature(temperature);
+        parameters.setTargetTemperature(MAX_WATER_TEMP);
+        device.setParameters(parameters);
+        device.setVersion(0L);
+        return device;
+    }
+
     private static Device getValidLightDevice() {
         Device device = new Device();
         device.set_id(new ObjectId());
@@ -209,6 +754,7 @@ public class DeviceServiceImplTest {
         lightParameters.setColor("#123456");
         lightParameters.setBrightness((MIN_BRIGHTNESS + MAX_BRIGHTNESS) / 2);
         device.setParameters(lightParameters);
+        device.setVersion(0L);
         return device;
     }
 }
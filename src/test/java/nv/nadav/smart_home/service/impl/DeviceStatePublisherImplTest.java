@@ -0,0 +1,119 @@
+package nv.nadav.smart_home.service.impl;
+
+import nv.nadav.smart_home.config.MqttStateProperties;
+import nv.nadav.smart_home.dto.DeviceDto;
+import nv.nadav.smart_home.exception.DeviceNotFoundException;
+import nv.nadav.smart_home.model.DeviceType;
+import nv.nadav.smart_home.service.DeviceChangedEvent;
+import nv.nadav.smart_home.service.DeviceService;
+import nv.nadav.smart_home.service.MqttService;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class DeviceStatePublisherImplTest {
+
+    private final MqttService mqttService = mock(MqttService.class);
+    private final DeviceService deviceService = mock(DeviceService.class);
+    private final MqttStateProperties properties = new MqttStateProperties();
+    private final DeviceStatePublisherImpl publisher =
+            new DeviceStatePublisherImpl(mqttService, deviceService, properties);
+
+    @Test
+    void onDeviceChanged_publishesStateWithoutUnsetFields() {
+        DeviceDto device = new DeviceDto();
+        device.setId("light1");
+        device.setStatus("on");
+
+        publisher.onDeviceChanged(new DeviceChangedEvent("light1", device));
+
+        verify(mqttService).publishState("light1", Map.of("id", "light1", "status", "on"));
+    }
+
+    @Test
+    void onDeviceChanged_deletedDevice_clearsState() {
+        publisher.onDeviceChanged(new DeviceChangedEvent("light1", null));
+
+        verify(mqttService).clearState("light1");
+        verify(mqttService, never()).publishState(anyString(), any());
+    }
+
+    @Test
+    void onDeviceChanged_olderSnapshotAfterNewer_isSkipped() {
+        DeviceDto newer = light("light1");
+        newer.setStatus("off");
+        newer.setVersion(6L);
+        DeviceDto older = light("light1");
+        older.setVersion(5L);
+
+        publisher.onDeviceChanged(new DeviceChangedEvent("light1", newer));
+        publisher.onDeviceChanged(new DeviceChangedEvent("light1", older));
+
+        verify(mqttService).publishState(eq("light1"), argThat(state -> "off".equals(state.get("status"))));
+        verify(mqttService, times(1)).publishState(anyString(), anyMap());
+    }
+
+    @Test
+    void onDeviceChanged_snapshotAfterDelete_isSkipped() {
+        DeviceDto stale = light("light1");
+        stale.setVersion(3L);
+        when(deviceService.getDeviceById("light1")).thenThrow(new DeviceNotFoundException("Device ID light1 not found"));
+
+        publisher.onDeviceChanged(new DeviceChangedEvent("light1", null));
+        publisher.onDeviceChanged(new DeviceChangedEvent("light1", stale));
+
+        verify(mqttService).clearState("light1");
+        verify(mqttService, never()).publishState(anyString(), anyMap());
+    }
+
+    @Test
+    void onDeviceChanged_addedAgainAfterDelete_publishesStoredState() {
+        DeviceDto old = light("light1");
+        old.setVersion(7L);
+        DeviceDto added = light("light1");
+        added.setStatus("off");
+        added.setVersion(0L);
+        when(deviceService.getDeviceById("light1")).thenReturn(added);
+
+        publisher.onDeviceChanged(new DeviceChangedEvent("light1", old));
+        publisher.onDeviceChanged(new DeviceChangedEvent("light1", null));
+        publisher.onDeviceChanged(new DeviceChangedEvent("light1", added));
+
+        InOrder order = inOrder(mqttService);
+        order.verify(mqttService).publishState(eq("light1"), argThat(state -> "on".equals(state.get("status"))));
+        order.verify(mqttService).clearState("light1");
+        order.verify(mqttService).publishState(eq("light1"), argThat(state -> "off".equals(state.get("status"))));
+    }
+
+    @Test
+    void onDeviceChanged_disabled_publishesNothing() {
+        properties.setEnabled(false);
+
+        publisher.onDeviceChanged(new DeviceChangedEvent("light1", light("light1")));
+
+        verifyNoInteractions(mqttService);
+    }
+
+    @Test
+    void publishOnStartup_publishesEveryDevice() {
+        when(deviceService.getAllDevices()).thenReturn(List.of(light("a"), light("b")));
+
+        publisher.publishOnStartup();
+
+        verify(mqttService).publishState(eq("a"), anyMap());
+        verify(mqttService).publishState(eq("b"), anyMap());
+    }
+
+    private static DeviceDto light(String id) {
+        DeviceDto device = new DeviceDto();
+        device.setId(id);
+        device.setType(DeviceType.LIGHT);
+        device.setStatus("on");
+        return device;
+    }
+}
@@ -131,4 +131,19 @@ public class DeviceTrackingServiceImplTest {
         Exception exception = assertThrows(IllegalStateException.class, () -> service.closeLastInterval(deviceId, Instant.now()));
         assertEquals("Last interval already closed for device " + deviceId, exception.getMessage());
     }
+
+    @Test
+    void testAreDevicesNew_singleRoundTrip() {
+        when(mockRedis.smismember("seen_devices", "a", "b")).thenReturn(List.of(true, false));
+
+        assertIterableEquals(List.of(true, false), service.areDevicesNew(List.of("a", "b")));
+        verify(mockRedis, never()).sismember(anyString(), anyString());
+    }
+
+    @Test
+    void testMarkDevicesSeen_empty() {
+        service.markDevicesSeen(List.of());
+
+        verify(mockRedis, never()).sadd(anyString(), any(String[].class));
+    }
 }
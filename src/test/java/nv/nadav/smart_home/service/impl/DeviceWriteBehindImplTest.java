@@ -0,0 +1,134 @@
+package nv.nadav.smart_home.service.impl;
+
+import nv.nadav.smart_home.config.DeviceWriteBehindProperties;
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.model.DeviceType;
+import nv.nadav.smart_home.model.parameters.DoorLockParameters;
+import nv.nadav.smart_home.model.parameters.WaterHeaterParameters;
+import nv.nadav.smart_home.repository.DeviceRepository;
+import nv.nadav.smart_home.service.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mapstruct.factory.Mappers;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class DeviceWriteBehindImplTest {
+
+    private DeviceRepository repo;
+    private TimerManager timerManager;
+    private DeviceWriteBehindImpl writeBehind;
+
+    @BeforeEach
+    void setUp() {
+        repo = mock(DeviceRepository.class);
+        timerManager = mock(TimerManager.class);
+        DeviceWriteBehindProperties properties = new DeviceWriteBehindProperties();
+        properties.setEnabled(true);
+        // Long enough that only the tests trigger flushes
+        properties.setFlushInterval(Duration.ofHours(1));
+        writeBehind = new DeviceWriteBehindImpl(
+                properties,
+                repo,
+                mock(CounterManager.class),
+                mock(GaugeManager.class),
+                timerManager,
+                Mappers.getMapper(WaterHeaterParametersMapper.class),
+                Mappers.getMapper(DoorLockParametersMapper.class)
+        );
+    }
+
+    @AfterEach
+    void tearDown() {
+        writeBehind.shutdown();
+    }
+
+    private static DeviceUpdateDto temperature(int value) {
+        WaterHeaterParameters parameters = new WaterHeaterParameters();
+        parameters.setTemperature(value);
+        DeviceUpdateDto update = new DeviceUpdateDto();
+        update.setParameters(parameters);
+        return update;
+    }
+
+    @Test
+    void testAccepts_onlyTelemetryFields() {
+        DeviceUpdateDto withStatus = temperature(40);
+        withStatus.setStatus("off");
+        WaterHeaterParameters target = new WaterHeaterParameters();
+        target.setTargetTemperature(55);
+        DeviceUpdateDto targetUpdate = new DeviceUpdateDto();
+        targetUpdate.setParameters(target);
+
+        assertThat(writeBehind.accepts(DeviceType.WATER_HEATER, temperature(40))).isTrue();
+        assertThat(writeBehind.accepts(DeviceType.WATER_HEATER, withStatus)).isFalse();
+        assertThat(writeBehind.accepts(DeviceType.WATER_HEATER, targetUpdate)).isFalse();
+        assertThat(writeBehind.accepts(DeviceType.WATER_HEATER, new DeviceUpdateDto())).isFalse();
+    }
+
+    @Test
+    void testFlush_writesLatestValuesInOneBulk() {
+        DoorLockParameters battery = new DoorLockParameters();
+        battery.setBatteryLevel(80);
+        DeviceUpdateDto lockUpdate = new DeviceUpdateDto();
+        lockUpdate.setParameters(battery);
+
+        assertThat(writeBehind.buffer("heater", DeviceType.WATER_HEATER, temperature(40))).isTrue();
+        assertThat(writeBehind.buffer("heater", DeviceType.WATER_HEATER, temperature(42))).isFalse();
+        assertThat(writeBehind.buffer("lock", DeviceType.DOOR_LOCK, lockUpdate)).isTrue();
+        assertThat(((WaterHeaterParameters) writeBehind.peek("heater").getParameters()).getTemperature())
+                .isEqualTo(42);
+
+        writeBehind.flush();
+
+        verify(repo).updateFieldsAll(Map.of(
+                "heater", Map.of("parameters.temperature", 42),
+                "lock", Map.of("parameters.battery_level", 80)
+        ));
+        assertThat(writeBehind.peek("heater")).isNull();
+        verify(timerManager, times(2)).record(eq("device_write_behind_lag_seconds"), anyString(), anyMap(),
+                anyLong(), any());
+    }
+
+    @Test
+    void testFlush_failureKeepsUpdatesBuffered() {
+        doThrow(new RuntimeException("down")).doNothing().when(repo).updateFieldsAll(anyMap());
+        writeBehind.buffer("heater", DeviceType.WATER_HEATER, temperature(40));
+
+        writeBehind.flush();
+        writeBehind.buffer("heater", DeviceType.WATER_HEATER, temperature(45));
+        writeBehind.flush();
+
+        verify(repo).updateFieldsAll(Map.of("heater", Map.of("parameters.temperature", 40)));
+        verify(repo).updateFieldsAll(Map.of("heater", Map.of("parameters.temperature", 45)));
+    }
+
+    @Test
+    void testFlushDevices_writesOnlyThoseDevices() {
+        writeBehind.buffer("heater", DeviceType.WATER_HEATER, temperature(40));
+        writeBehind.buffer("other", DeviceType.WATER_HEATER, temperature(50));
+
+        writeBehind.flush(List.of("heater", "unbuffered"));
+
+        verify(repo).updateFieldsAll(Map.of("heater", Map.of("parameters.temperature", 40)));
+        assertThat(writeBehind.peek("heater")).isNull();
+        assertThat(writeBehind.peek("other")).isNotNull();
+    }
+
+    @Test
+    void testDiscard_dropsBufferedUpdate() {
+        writeBehind.buffer("heater", DeviceType.WATER_HEATER, temperature(40));
+
+        writeBehind.discard("heater");
+        writeBehind.flush();
+
+        verify(repo, never()).updateFieldsAll(anyMap());
+    }
+}
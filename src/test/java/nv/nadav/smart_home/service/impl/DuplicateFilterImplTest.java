@@ -0,0 +1,87 @@
+package nv.nadav.smart_home.service.impl;
+
+import nv.nadav.smart_home.config.MqttDedupProperties;
+import nv.nadav.smart_home.service.CounterManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class DuplicateFilterImplTest {
+
+    private CounterManager counterManager;
+    private MqttDedupProperties properties;
+
+    @BeforeEach
+    void setUp() {
+        counterManager = mock(CounterManager.class);
+        properties = new MqttDedupProperties();
+    }
+
+    @Test
+    void isDuplicate_secondDeliveryIsHit() {
+        DuplicateFilterImpl filter = new DuplicateFilterImpl(properties, counterManager);
+
+        assertFalse(filter.isDuplicate("frontend", "ui-1", "42"));
+        assertTrue(filter.isDuplicate("frontend", "ui-1", "42"));
+
+        verify(counterManager).increment(eq("mqtt_dedup_checks_total"), anyString(), eq(Map.of("result", "miss")));
+        verify(counterManager).increment(eq("mqtt_dedup_checks_total"), anyString(), eq(Map.of("result", "hit")));
+    }
+
+    @Test
+    void isDuplicate_sameIdFromOtherSenderIsNew() {
+        DuplicateFilterImpl filter = new DuplicateFilterImpl(properties, counterManager);
+
+        assertFalse(filter.isDuplicate("frontend", "ui-1", "42"));
+        assertFalse(filter.isDuplicate("frontend", "ui-2", "42"));
+    }
+
+    @Test
+    void isDuplicate_withoutIdNeverDuplicate() {
+        DuplicateFilterImpl filter = new DuplicateFilterImpl(properties, counterManager);
+
+        assertFalse(filter.isDuplicate("frontend", "ui-1", null));
+        assertFalse(filter.isDuplicate("frontend", "ui-1", null));
+
+        verify(counterManager, times(2)).increment(eq("mqtt_dedup_checks_total"), anyString(), eq(Map.of("result", "untracked")));
+    }
+
+    @Test
+    void isDuplicate_forgetsIdsAfterWindow() throws InterruptedException {
+        properties.setWindow(Duration.ofMillis(50));
+        DuplicateFilterImpl filter = new DuplicateFilterImpl(properties, counterManager);
+
+        assertFalse(filter.isDuplicate("frontend", "ui-1", "42"));
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        assertFalse(filter.isDuplicate("frontend", "ui-1", "42"));
+    }
+
+    @Test
+    void forget_nextDeliveryIsNew() {
+        DuplicateFilterImpl filter = new DuplicateFilterImpl(properties, counterManager);
+
+        assertFalse(filter.isDuplicate("frontend", "ui-1", "42"));
+        filter.forget("frontend", "ui-1", "42");
+
+        assertFalse(filter.isDuplicate("frontend", "ui-1", "42"));
+        assertTrue(filter.isDuplicate("frontend", "ui-1", "42"));
+    }
+
+    @Test
+    void isDuplicate_disabled() {
+        properties.setEnabled(false);
+        DuplicateFilterImpl filter = new DuplicateFilterImpl(properties, counterManager);
+
+        assertFalse(filter.isDuplicate("frontend", "ui-1", "42"));
+        assertFalse(filter.isDuplicate("frontend", "ui-1", "42"));
+        verifyNoInteractions(counterManager);
+    }
+}
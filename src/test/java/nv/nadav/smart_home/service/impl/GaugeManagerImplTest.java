@@ -2,12 +2,15 @@ package nv.nadav.smart_home.service.impl;
 
 import com.google.common.util.concurrent.AtomicDouble;
 import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.MockedStatic;
 
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -163,5 +166,36 @@ class GaugeManagerImplTest {
         assertEquals(0.0, initial[0].get()); // old one reset
         assertEquals(1.0, updated[0].get()); // new one set
     }
-}
 
+    @Test
+    void testRemoveDeviceGauges_removesOnlyThatDevicesGauges() {
+        @SuppressWarnings("unchecked")
+        Gauge.Builder<AtomicDouble> builder = mock(Gauge.Builder.class);
+        when(builder.description(any())).thenReturn(builder);
+        when(builder.tag(anyString(), anyString())).thenReturn(builder);
+        when(builder.strongReference(true)).thenReturn(builder);
+        when(builder.register(any())).thenReturn(mock(Gauge.class));
+        AtomicInteger registered = new AtomicInteger();
+        mockedGauge.when(() -> Gauge.builder(anyString(), any(AtomicDouble.class), any()))
+                .thenAnswer(_ -> {
+                    registered.incrementAndGet();
+                    return builder;
+                });
+        Gauge removed = mock(Gauge.class);
+        when(removed.getId()).thenReturn(new Meter.Id("ac_temperature", Tags.of("device_id", "ac1"), null, null, Meter.Type.GAUGE));
+        Gauge kept = mock(Gauge.class);
+        when(kept.getId()).thenReturn(new Meter.Id("ac_temperature", Tags.of("device_id", "ac10"), null, null, Meter.Type.GAUGE));
+        when(registry.getMeters()).thenReturn(List.of(removed, kept));
+
+        gaugeManager.setNumericGauge("ac_temperature", "desc", 21, Map.of("device_id", "ac1"));
+        gaugeManager.setNumericGauge("ac_temperature", "desc", 22, Map.of("device_id", "ac10"));
+        gaugeManager.removeDeviceGauges("ac1");
+        gaugeManager.setNumericGauge("ac_temperature", "desc", 23, Map.of("device_id", "ac1"));
+        gaugeManager.setNumericGauge("ac_temperature", "desc", 24, Map.of("device_id", "ac10"));
+
+        verify(registry).remove(removed);
+        verify(registry, never()).remove(kept);
+        // Only the removed device's gauge is registered again
+        assertEquals(3, registered.get());
+    }
+}
@@ -0,0 +1,168 @@
+package nv.nadav.smart_home.service.impl;
+
+import nv.nadav.smart_home.config.MqttIngestProperties;
+import nv.nadav.smart_home.service.GaugeManager;
+import nv.nadav.smart_home.service.TimerManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class IngestDispatcherImplTest {
+
+    private GaugeManager gaugeManager;
+    private TimerManager timerManager;
+    private IngestDispatcherImpl dispatcher;
+
+    @BeforeEach
+    void setUp() {
+        gaugeManager = mock(GaugeManager.class);
+        timerManager = mock(TimerManager.class);
+        MqttIngestProperties properties = new MqttIngestProperties();
+        properties.setLanes(4);
+        dispatcher = new IngestDispatcherImpl(properties, gaugeManager, timerManager);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    void testDispatch_sameKeyRunsInOrder() throws InterruptedException {
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            int n = i;
+            dispatcher.dispatch("device-1", () -> {
+                seen.add(n);
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, seen.get(i));
+        }
+    }
+
+    @Test
+    void testDispatch_blockedKeyDoesNotStallOtherLanes() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch otherDone = new CountDownLatch(1);
+        String blockedKey = "device-1";
+        String otherKey = keyOnDifferentLane(blockedKey);
+
+        dispatcher.dispatch(blockedKey, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        dispatcher.dispatch(otherKey, otherDone::countDown);
+
+        assertTrue(otherDone.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    void testDispatch_taskFailureKeepsLaneAlive() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher.dispatch("device-1", () -> {
+            throw new IllegalStateException("boom");
+        });
+        dispatcher.dispatch("device-1", done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testDispatch_reportsDepthAndWaitTime() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher.dispatch("device-1", done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        verify(gaugeManager, timeout(1000).atLeast(2))
+                .setNumericGauge(eq("mqtt_ingest_queue_depth"), anyString(), anyDouble(), anyMap());
+        verify(timerManager, timeout(1000)).record(
+                eq("mqtt_ingest_lane_wait_seconds"),
+                anyString(),
+                argThat((Map<String, String> tags) -> tags.containsKey("lane")),
+                anyLong(),
+                eq(TimeUnit.NANOSECONDS)
+        );
+    }
+
+    @Test
+    void testDispatchAll_holdsEachLaneUntilTaskRuns() throws InterruptedException {
+        List<String> seen = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        String first = "device-1";
+        String second = keyOnDifferentLane(first);
+
+        dispatcher.dispatch(first, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            seen.add("before");
+        });
+        dispatcher.dispatchAll(List.of(first, second), () -> seen.add("all"));
+        dispatcher.dispatch(second, () -> {
+            seen.add("after");
+            done.countDown();
+        });
+        // The second lane is free, but its later task waits behind the held one
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("before", "all", "after"), seen);
+    }
+
+    @Test
+    void testDispatchAll_keysSharingLaneRunTaskOnce() throws InterruptedException {
+        List<String> seen = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        String first = "device-1";
+
+        dispatcher.dispatchAll(List.of(first, keyOnSameLane(first)), () -> seen.add("all"));
+        dispatcher.dispatch(first, done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("all"), seen);
+    }
+
+    private static String keyOnSameLane(String key) {
+        int lane = Math.floorMod(key.hashCode(), 4);
+        for (int i = 0; ; i++) {
+            String candidate = "device-" + i;
+            if (!candidate.equals(key) && Math.floorMod(candidate.hashCode(), 4) == lane) {
+                return candidate;
+            }
+        }
+    }
+
+    private static String keyOnDifferentLane(String key) {
+        int lane = Math.floorMod(key.hashCode(), 4);
+        for (int i = 0; ; i++) {
+            String candidate = "device-" + i;
+            if (Math.floorMod(candidate.hashCode(), 4) != lane) {
+                return candidate;
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package nv.nadav.smart_home.service.impl;
+
+import nv.nadav.smart_home.config.MqttRateLimitProperties;
+import nv.nadav.smart_home.service.CounterManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class IngressLimiterImplTest {
+
+    private CounterManager counterManager;
+    private MqttRateLimitProperties properties;
+    private IngressLimiterImpl limiter;
+
+    @BeforeEach
+    void setUp() {
+        counterManager = mock(CounterManager.class);
+        properties = new MqttRateLimitProperties();
+        properties.setEnabled(true);
+        properties.setSenderRate(1);
+        properties.setSenderBurst(2);
+        properties.setDeviceRate(100);
+        properties.setDeviceBurst(100);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (limiter != null) {
+            limiter.shutdown();
+        }
+    }
+
+    @Test
+    void submit_disabled_runsEverything() {
+        properties.setEnabled(false);
+        limiter = new IngressLimiterImpl(properties, counterManager);
+        AtomicInteger ran = new AtomicInteger();
+
+        for (int i = 0; i < 10; i++) {
+            limiter.submit("frontend", "ui-1", "light1", ran::incrementAndGet);
+        }
+
+        assertThat(ran).hasValue(10);
+        verifyNoInteractions(counterManager);
+    }
+
+    @Test
+    void submit_dropPolicy_dropsOverSenderLimit() {
+        limiter = new IngressLimiterImpl(properties, counterManager);
+        AtomicInteger ran = new AtomicInteger();
+
+        List<Boolean> accepted = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            accepted.add(limiter.submit("frontend", "ui-1", "light1", ran::incrementAndGet));
+        }
+
+        assertThat(ran).hasValue(2);
+        assertThat(accepted).containsExactly(true, true, false, false, false);
+        verify(counterManager, times(3)).increment(
+                eq("mqtt_ingress_limited_total"),
+                anyString(),
+                eq(Map.of("sender", "frontend:ui-1", "limit", "sender", "action", "dropped"))
+        );
+    }
+
+    @Test
+    void submit_noisySender_doesNotStarveOthers() {
+        limiter = new IngressLimiterImpl(properties, counterManager);
+        AtomicInteger quiet = new AtomicInteger();
+
+        for (int i = 0; i < 10; i++) {
+            limiter.submit("frontend", "noisy", "light1", () -> {
+            });
+        }
+        limiter.submit("frontend", "quiet", "light1", quiet::incrementAndGet);
+
+        assertThat(quiet).hasValue(1);
+    }
+
+    @Test
+    void submit_deviceLimit_appliesAcrossSenders() {
+        properties.setSenderRate(100);
+        properties.setSenderBurst(100);
+        properties.setDeviceRate(1);
+        properties.setDeviceBurst(1);
+        limiter = new IngressLimiterImpl(properties, counterManager);
+        AtomicInteger ran = new AtomicInteger();
+
+        limiter.submit("frontend", "ui-1", "light1", ran::incrementAndGet);
+        limiter.submit("frontend", "ui-2", "light1", ran::incrementAndGet);
+
+        assertThat(ran).hasValue(1);
+        verify(counterManager).increment(
+                eq("mqtt_ingress_limited_total"),
+                anyString(),
+                eq(Map.of("sender", "frontend:ui-2", "limit", "device", "action", "dropped"))
+        );
+    }
+
+    @Test
+    void submit_delayPolicy_runsLater() throws InterruptedException {
+        properties.setSenderRate(20);
+        properties.setSenderBurst(1);
+        properties.setOverLimitAction(MqttRateLimitProperties.OverLimitAction.DELAY);
+        properties.setMaxDelay(Duration.ofSeconds(1));
+        limiter = new IngressLimiterImpl(properties, counterManager);
+        CountDownLatch done = new CountDownLatch(3);
+
+        for (int i = 0; i < 3; i++) {
+            limiter.submit("frontend", "ui-1", "light1", done::countDown);
+        }
+
+        assertThat(done.getCount()).isEqualTo(2);
+        assertThat(done.await(1, TimeUnit.SECONDS)).isTrue();
+        verify(counterManager, times(2)).increment(
+                eq("mqtt_ingress_limited_total"),
+                anyString(),
+                eq(Map.of("sender", "frontend:ui-1", "limit", "sender", "action", "delayed"))
+        );
+    }
+
+    @Test
+    void submit_delayPolicy_laterMessageForDeviceWaitsBehindDelayedOne() throws InterruptedException {
+        properties.setSenderRate(20);
+        properties.setSenderBurst(1);
+        properties.setOverLimitAction(MqttRateLimitProperties.OverLimitAction.DELAY);
+        properties.setMaxDelay(Duration.ofSeconds(1));
+        limiter = new IngressLimiterImpl(properties, counterManager);
+        List<String> ran = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+
+        limiter.submit("frontend", "noisy", "light1", () -> ran.add("noisy-1"));
+        limiter.submit("frontend", "noisy", "light1", () -> {
+            ran.add("noisy-2");
+            done.countDown();
+        });
+        // Within its own limit, but sent after the delayed message for the same device
+        limiter.submit("frontend", "quiet", "light1", () -> {
+            ran.add("quiet");
+            done.countDown();
+        });
+        limiter.submit("frontend", "other", "light2", () -> {
+            ran.add("other-device");
+            done.countDown();
+        });
+
+        assertThat(ran).containsExactly("noisy-1", "other-device");
+        assertThat(done.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(ran).containsExactly("noisy-1", "other-device", "noisy-2", "quiet");
+    }
+}
@@ -2,15 +2,34 @@ package nv.nadav.smart_home.service.impl;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.validation.Validator;
+import nv.nadav.smart_home.config.MqttDeadLetterProperties;
+import nv.nadav.smart_home.config.MqttDedupProperties;
+import nv.nadav.smart_home.config.MqttIngestProperties;
+import nv.nadav.smart_home.config.MqttOutboxProperties;
+import nv.nadav.smart_home.config.MqttPublishProperties;
 import nv.nadav.smart_home.dto.DeviceDto;
 import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.exception.DeviceNotFoundException;
 import nv.nadav.smart_home.model.DeviceType;
 import nv.nadav.smart_home.model.parameters.WaterHeaterParameters;
+import nv.nadav.smart_home.serialization.DeviceCodec;
+import nv.nadav.smart_home.serialization.PayloadFormat;
+import nv.nadav.smart_home.service.CounterManager;
+import nv.nadav.smart_home.service.DeadLetterStore;
 import nv.nadav.smart_home.service.DeviceMetricsService;
 import nv.nadav.smart_home.service.DeviceService;
+import nv.nadav.smart_home.service.DuplicateFilter;
+import nv.nadav.smart_home.service.InboundMessage;
+import nv.nadav.smart_home.service.IngestDispatcher;
+import nv.nadav.smart_home.service.IngressLimiter;
 import nv.nadav.smart_home.service.MqttService;
+import nv.nadav.smart_home.service.PublishJournal;
+import nv.nadav.smart_home.service.UpdateCoalescer;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
 import org.eclipse.paho.mqttv5.client.MqttCallback;
-import org.eclipse.paho.mqttv5.client.MqttClient;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
 import org.eclipse.paho.mqttv5.common.MqttException;
 import org.eclipse.paho.mqttv5.common.MqttMessage;
 import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
@@ -21,7 +40,11 @@ import org.junit.jupiter.api.Test;
 import org.mockito.*;
 
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -29,7 +52,10 @@ import static org.mockito.Mockito.*;
 class MqttServiceImplTest {
 
     @Mock
-    private MqttClient mockClient;
+    private MqttAsyncClient mockClient;
+
+    @Mock
+    private IMqttToken mockToken;
 
     @Mock
     private DeviceService mockDeviceService;
@@ -40,23 +66,87 @@ class MqttServiceImplTest {
     @Mock
     private Validator mockValidator;
 
-    @InjectMocks
+    @Mock
+    private PublishJournal mockJournal;
+
+    @Mock
+    private UpdateCoalescer mockCoalescer;
+
+    @Mock
+    private DeadLetterStore mockDeadLetters;
+
+    @Mock
+    private DuplicateFilter mockDuplicateFilter;
+
+    @Mock
+    private CounterManager mockCounters;
+
+    @Mock
+    private MqttAsyncClient mockConsumer;
+
     private MqttServiceImpl mqttService;
 
     @Captor
     private ArgumentCaptor<MqttCallback> callbackCaptor;
 
+    @Captor
+    private ArgumentCaptor<Object> contextCaptor;
+
+    @Captor
+    private ArgumentCaptor<MqttActionListener> listenerCaptor;
+
     private final ObjectMapper objectMapper = new ObjectMapper();
+    private final MqttPublishProperties publishProperties = new MqttPublishProperties();
+    private final MqttIngestProperties ingestProperties = new MqttIngestProperties();
     private AutoCloseable mocks;
 
     @BeforeEach
-    void setUp() {
+    void setUp() throws MqttException {
         mocks = MockitoAnnotations.openMocks(this);
         when(mockClient.getClientId()).thenReturn("test-client");
+        when(mockClient.connect(any())).thenReturn(mockToken);
+        when(mockClient.subscribe(anyString(), anyInt())).thenReturn(mockToken);
+        when(mockClient.publish(anyString(), any(MqttMessage.class), any(), any())).thenReturn(mockToken);
+        createService();
+    }
+
+    private void createService() {
+        // Run ingest work inline so verifications see its effects immediately
+        createService(dispatcher((key, task) -> task.run()));
+    }
+
+    private void createService(IngestDispatcher dispatcher) {
+        IngressLimiter unlimited = (group, sender, device, task) -> {
+            task.run();
+            return true;
+        };
+        createService(dispatcher, unlimited, mockDuplicateFilter);
+    }
+
+    private void createService(IngestDispatcher dispatcher, IngressLimiter limiter, DuplicateFilter duplicateFilter) {
+        mqttService = new MqttServiceImpl(
+                mockClient,
+                _ -> mockConsumer,
+                mockDeviceService,
+                mockValidator,
+                mockMetricsService,
+                dispatcher,
+                limiter,
+                duplicateFilter,
+                mockCoalescer,
+                mockJournal,
+                mockDeadLetters,
+                new MqttOutboxProperties(),
+                publishProperties,
+                ingestProperties,
+                new MqttDeadLetterProperties(),
+                mockCounters
+        );
     }
 
     @AfterEach
     void tearDown() throws Exception {
+        mqttService.shutdown();
         if (mocks != null) {
             mocks.close();
         }
@@ -67,10 +157,33 @@ class MqttServiceImplTest {
         mqttService.mqttInit();
 
         verify(mockClient).setCallback(any());
-        verify(mockClient).connect(any());
+        ArgumentCaptor<MqttConnectionOptions> options = ArgumentCaptor.forClass(MqttConnectionOptions.class);
+        verify(mockClient).connect(options.capture());
+        assertEquals(64, options.getValue().getTopicAliasMaximum());
         verify(mockClient).subscribe(eq("$share/backend/nadavnv-smart-home/devices/#"), eq(2));
     }
 
+    @Test
+    void testMqttInit_extraConsumersJoinSharedSubscription() throws Exception {
+        when(mockConsumer.connect(any())).thenReturn(mockToken);
+        when(mockConsumer.subscribe(anyString(), anyInt())).thenReturn(mockToken);
+        ingestProperties.setConsumers(2);
+        mqttService.shutdown();
+        createService();
+
+        mqttService.mqttInit();
+
+        verify(mockConsumer).subscribe(eq("$share/backend/nadavnv-smart-home/devices/#"), eq(2));
+        ArgumentCaptor<MqttCallback> consumerCallback = ArgumentCaptor.forClass(MqttCallback.class);
+        verify(mockConsumer).setCallback(consumerCallback.capture());
+        MqttMessage message = new MqttMessage("{}".getBytes(StandardCharsets.UTF_8));
+        message.setProperties(userProperties("sender_id", "ui-1", "sender_group", "frontend"));
+        consumerCallback.getValue().messageArrived("nadavnv-smart-home/devices/dev123/delete", message);
+
+        verify(mockDeviceService).deleteDeviceById("dev123");
+        verify(mockCounters).increment(eq("mqtt_consumer_messages_total"), anyString(), eq(Map.of("consumer", "1")));
+    }
+
     @Test
     void testPublishMqtt_successful() throws Exception {
         Map<String, Object> payload = new HashMap<>();
@@ -79,18 +192,161 @@ class MqttServiceImplTest {
 
         mqttService.publishMqtt(payload, "prefix", "abc123", MqttService.Method.POST);
 
-        verify(mockClient).publish(eq("prefix/abc123/post"), any(MqttMessage.class));
+        verify(mockClient).publish(eq("prefix/abc123/post"), any(MqttMessage.class), any(), any());
+        verify(mockJournal, never()).append(anyString(), any(), anyInt(), any(), anyBoolean());
+    }
+
+    @Test
+    void testPublishMqtt_binaryFormat_setsContentType() throws Exception {
+        publishProperties.setPayloadFormat(PayloadFormat.CBOR);
+        mqttService.shutdown();
+        createService();
+
+        mqttService.publishMqtt(new HashMap<>(Map.of("name", "lamp")), "prefix", "abc123", MqttService.Method.UPDATE);
+
+        ArgumentCaptor<MqttMessage> messageCaptor = ArgumentCaptor.forClass(MqttMessage.class);
+        verify(mockClient).publish(eq("prefix/abc123/update"), messageCaptor.capture(), any(), any());
+        MqttMessage sent = messageCaptor.getValue();
+        assertEquals("application/cbor", sent.getProperties().getContentType());
+        DeviceUpdateDto decoded = DeviceCodec.readUpdate(sent.getPayload(), DeviceType.LIGHT, PayloadFormat.CBOR);
+        assertEquals("lamp", decoded.getName());
+    }
+
+    @Test
+    void testPublishState_retainedOnStateTopic() throws Exception {
+        mqttService.publishState("abc123", Map.of("status", "on"));
+        mqttService.clearState("abc123");
+
+        ArgumentCaptor<MqttMessage> messageCaptor = ArgumentCaptor.forClass(MqttMessage.class);
+        verify(mockClient, times(2)).publish(eq(MqttService.STATE_TOPIC + "/abc123"), messageCaptor.capture(), any(), any());
+        MqttMessage state = messageCaptor.getAllValues().getFirst();
+        assertTrue(state.isRetained());
+        assertEquals("{\"status\":\"on\"}", new String(state.getPayload(), StandardCharsets.UTF_8));
+        MqttMessage clear = messageCaptor.getAllValues().getLast();
+        assertTrue(clear.isRetained());
+        assertEquals(0, clear.getPayload().length);
+    }
+
+    @Test
+    void testPublishMqtt_compactSenderHeader_sendsSingleProperty() throws Exception {
+        publishProperties.setCompactSenderHeader(true);
+        mqttService.shutdown();
+        createService();
+
+        mqttService.publishMqtt(new HashMap<>(), "prefix", "abc123", MqttService.Method.POST);
+
+        ArgumentCaptor<MqttMessage> messageCaptor = ArgumentCaptor.forClass(MqttMessage.class);
+        verify(mockClient).publish(anyString(), messageCaptor.capture(), any(), any());
+        List<UserProperty> sent = messageCaptor.getValue().getProperties().getUserProperties();
+        assertEquals(1, sent.size());
+        assertEquals("s", sent.getFirst().getKey());
+        assertEquals("backend/test-client", sent.getFirst().getValue());
+    }
+
+    @Test
+    void testPublishMqtt_countsAliasedTopicsAsSmallerHeaders() throws Exception {
+        MqttProperties connack = new MqttProperties();
+        connack.setTopicAliasMaximum(10);
+        when(mockToken.getResponseProperties()).thenReturn(connack);
+        mqttService.mqttInit();
+
+        mqttService.publishMqtt(new HashMap<>(), "prefix", "abc123", MqttService.Method.POST);
+        mqttService.publishMqtt(new HashMap<>(), "prefix", "abc123", MqttService.Method.POST);
+
+        ArgumentCaptor<Double> bytes = ArgumentCaptor.forClass(Double.class);
+        verify(mockCounters, times(2)).incrementBy(eq("mqtt_publish_header_bytes_total"), anyString(), any(), bytes.capture());
+        int topicLength = "prefix/abc123/post".length();
+        assertEquals(topicLength, bytes.getAllValues().getFirst() - bytes.getAllValues().getLast());
     }
 
     @Test
-    void testPublishMqtt_publishFails_addsToQueue() throws Exception {
-        doThrow(new MqttException(1)).when(mockClient).publish(anyString(), any(MqttMessage.class));
+    void testPublishMqtt_publishFails_addsToJournal() throws Exception {
+        doThrow(new MqttException(1)).when(mockClient)
+                .publish(anyString(), any(MqttMessage.class), any(), any());
 
         Map<String, Object> payload = new HashMap<>(Map.of("type", "sensor", "value", 42));
         mqttService.publishMqtt(payload, "prefix", "abc123", MqttService.Method.POST);
 
-        // no exception means fallback logic worked
-        verify(mockClient).publish(eq("prefix/abc123/post"), any(MqttMessage.class));
+        verify(mockClient).publish(eq("prefix/abc123/post"), any(MqttMessage.class), any(), any());
+        verify(mockJournal).append(eq("prefix/abc123/post"), any(byte[].class), eq(2), eq(PayloadFormat.JSON), eq(false));
+    }
+
+    @Test
+    void testPublishMqtt_deliveryFails_addsToJournal() throws Exception {
+        mqttService.publishMqtt(new HashMap<>(Map.of("name", "lamp")), "prefix", "abc123", MqttService.Method.UPDATE);
+
+        verify(mockClient).publish(anyString(), any(MqttMessage.class), contextCaptor.capture(), listenerCaptor.capture());
+        when(mockToken.getUserContext()).thenReturn(contextCaptor.getValue());
+        listenerCaptor.getValue().onFailure(mockToken, new MqttException(1));
+
+        verify(mockJournal).append(eq("prefix/abc123/update"), any(byte[].class), eq(2), eq(PayloadFormat.JSON), eq(false));
+    }
+
+    @Test
+    void testPublishMqtt_windowFull_journalsAndReplaysInOrderOnceWindowFrees() throws Exception {
+        publishProperties.setMaxInflight(1);
+        mqttService.shutdown();
+        createService();
+        backJournalWithQueue();
+        when(mockClient.isConnected()).thenReturn(true);
+        MqttCallback callback = captureCallback();
+
+        mqttService.publishMqtt(new HashMap<>(), "prefix", "first", MqttService.Method.POST);
+        mqttService.publishMqtt(new HashMap<>(), "prefix", "second", MqttService.Method.POST);
+        mqttService.publishMqtt(new HashMap<>(), "prefix", "third", MqttService.Method.POST);
+
+        verify(mockClient).publish(eq("prefix/first/post"), any(MqttMessage.class), contextCaptor.capture(), any());
+        verify(mockClient, never()).publish(eq("prefix/second/post"), any(MqttMessage.class), any(), any());
+        // The window is free again, but "third" queues behind "second" instead of overtaking it
+        verify(mockClient, never()).publish(eq("prefix/third/post"), any(MqttMessage.class), any(), any());
+
+        when(mockToken.getUserContext()).thenReturn(contextCaptor.getValue());
+        callback.deliveryComplete(mockToken);
+
+        ArgumentCaptor<Object> secondContext = ArgumentCaptor.forClass(Object.class);
+        verify(mockClient, timeout(1000)).publish(eq("prefix/second/post"), any(MqttMessage.class), secondContext.capture(), any());
+        when(mockToken.getUserContext()).thenReturn(secondContext.getValue());
+        callback.deliveryComplete(mockToken);
+
+        verify(mockClient, timeout(1000)).publish(eq("prefix/third/post"), any(MqttMessage.class), any(), any());
+        InOrder order = inOrder(mockClient);
+        order.verify(mockClient).publish(eq("prefix/first/post"), any(MqttMessage.class), any(), any());
+        order.verify(mockClient).publish(eq("prefix/second/post"), any(MqttMessage.class), any(), any());
+        order.verify(mockClient).publish(eq("prefix/third/post"), any(MqttMessage.class), any(), any());
+    }
+
+    @Test
+    void testConnectComplete_replaysJournal() throws Exception {
+        MqttCallback callback = captureCallback();
+        PublishJournal.PendingPublish pending =
+                new PublishJournal.PendingPublish(0, "prefix/abc123/post", "{}".getBytes(), 2, PayloadFormat.JSON, false);
+        when(mockClient.isConnected()).thenReturn(true);
+        when(mockJournal.size()).thenReturn(1, 0);
+        when(mockJournal.peek()).thenReturn(Optional.of(pending), Optional.empty());
+
+        callback.connectComplete(true, "tcp://broker:1883");
+
+        verify(mockClient, timeout(1000)).publish(eq("prefix/abc123/post"), any(MqttMessage.class), any(), any());
+        verify(mockJournal, timeout(1000)).remove(pending);
+    }
+
+    @Test
+    void testConnectComplete_replayFails_keepsEntryAheadOfNewerOnes() throws Exception {
+        backJournalWithQueue();
+        mockJournal.append("prefix/first/post", "{}".getBytes(), 2, PayloadFormat.JSON, false);
+        mockJournal.append("prefix/second/post", "{}".getBytes(), 2, PayloadFormat.JSON, false);
+        when(mockClient.isConnected()).thenReturn(true);
+        doThrow(new MqttException(1)).doReturn(null).when(mockClient)
+                .publish(anyString(), any(MqttMessage.class), any(), any());
+        MqttCallback callback = captureCallback();
+
+        callback.connectComplete(true, "tcp://broker:1883");
+
+        verify(mockClient, timeout(1000)).publish(eq("prefix/second/post"), any(MqttMessage.class), any(), any());
+        InOrder order = inOrder(mockClient);
+        order.verify(mockClient, times(2)).publish(eq("prefix/first/post"), any(MqttMessage.class), any(), any());
+        order.verify(mockClient).publish(eq("prefix/second/post"), any(MqttMessage.class), any(), any());
+        verify(mockJournal, times(2)).append(anyString(), any(), anyInt(), any(), anyBoolean());
     }
 
     @Test
@@ -115,6 +371,108 @@ class MqttServiceImplTest {
         verify(mockMetricsService).addDevice(any(DeviceDto.class));
     }
 
+    @Test
+    void testMessageArrived_smileUpdate_decodedByContentType() throws Exception {
+        DeviceUpdateDto updateDto = new DeviceUpdateDto();
+        updateDto.setName("Boiler");
+        byte[] payload = DeviceCodec.writePayload(DeviceCodec.toPayload(updateDto), PayloadFormat.SMILE);
+        MqttMessage message = new MqttMessage(payload);
+        MqttProperties props = userProperties("sender_id", "ui-1", "sender_group", "frontend");
+        props.setContentType("application/x-jackson-smile");
+        message.setProperties(props);
+        DeviceDto existingDevice = new DeviceDto();
+        existingDevice.setId("boiler");
+        existingDevice.setType(DeviceType.WATER_HEATER);
+        when(mockDeviceService.getDeviceById("boiler")).thenReturn(existingDevice);
+
+        captureCallback().messageArrived("nadavnv-smart-home/devices/boiler/update", message);
+
+        verify(mockDeviceService).updateDevice("boiler", updateDto);
+    }
+
+    @Test
+    void testMessageArrived_unsupportedContentType_skips() throws Exception {
+        MqttMessage message = new MqttMessage("<device/>".getBytes(StandardCharsets.UTF_8));
+        MqttProperties props = userProperties("sender_id", "ui-1", "sender_group", "frontend");
+        props.setContentType("application/xml");
+        message.setProperties(props);
+
+        captureCallback().messageArrived("nadavnv-smart-home/devices/dev123/post", message);
+
+        verify(mockDeviceService, never()).addDevice(any());
+        verify(mockDeadLetters, never()).add(any(), any(), any());
+    }
+
+    @Test
+    void testMessageArrived_bulkUpdate_appliesBatchOnce() throws Exception {
+        MqttMessage message = new MqttMessage("""
+                [{"id":"boiler","parameters":{"temperature":55}},{"id":"light","status":"off"},{"id":"gone","status":"on"}]
+                """.getBytes(StandardCharsets.UTF_8));
+        message.setProperties(userProperties("sender_id", "ui-1", "sender_group", "frontend"));
+        DeviceDto boiler = new DeviceDto();
+        boiler.setId("boiler");
+        boiler.setType(DeviceType.WATER_HEATER);
+        DeviceDto light = new DeviceDto();
+        light.setId("light");
+        light.setType(DeviceType.LIGHT);
+        when(mockDeviceService.getDevicesByIds(Set.of("boiler", "light", "gone")))
+                .thenReturn(Map.of("boiler", boiler, "light", light));
+        when(mockDeviceService.updateDevices(any())).thenReturn(List.of(boiler, light));
+
+        captureCallback().messageArrived("nadavnv-smart-home/devices/_bulk/update", message);
+
+        ArgumentCaptor<Map<String, DeviceUpdateDto>> updates = ArgumentCaptor.captor();
+        verify(mockDeviceService).updateDevices(updates.capture());
+        assertEquals(Set.of("boiler", "light"), updates.getValue().keySet());
+        assertEquals("off", updates.getValue().get("light").getStatus());
+        verify(mockDeviceService, never()).updateDevice(anyString(), any());
+        verify(mockMetricsService).updateDevice(any(), any(), eq(DeviceType.WATER_HEATER), eq("boiler"));
+        verify(mockMetricsService).updateDevice(any(), any(), eq(DeviceType.LIGHT), eq("light"));
+        ArgumentCaptor<InboundMessage> deadLetter = ArgumentCaptor.forClass(InboundMessage.class);
+        verify(mockDeadLetters).add(deadLetter.capture(), eq(DeadLetterStore.Reason.DEVICE_NOT_FOUND), anyString());
+        assertEquals("gone", deadLetter.getValue().deviceId());
+        assertEquals("{\"status\":\"on\"}", new String(deadLetter.getValue().payload(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testMessageArrived_bulkUpdate_holdsEachDevicesLane() throws Exception {
+        List<String> lanes = new ArrayList<>();
+        mqttService.shutdown();
+        createService(dispatcher((key, task) -> lanes.add(key)));
+        when(mockCoalescer.drain("light")).thenReturn(List.of(new InboundMessage("light", MqttService.Method.UPDATE,
+                "frontend", "ui-1", "{\"status\":\"on\"}".getBytes(StandardCharsets.UTF_8), PayloadFormat.JSON)));
+        MqttMessage message = new MqttMessage("""
+                [{"id":"boiler","parameters":{"temperature":55}},{"id":"light","status":"off"}]
+                """.getBytes(StandardCharsets.UTF_8));
+        message.setProperties(userProperties("sender_id", "ui-1", "sender_group", "frontend"));
+
+        captureCallback().messageArrived("nadavnv-smart-home/devices/_bulk/update", message);
+
+        // The update buffered for the light was sent first, so it goes ahead of the batch on its lane
+        assertEquals(List.of("light", "boiler,light"), lanes);
+    }
+
+    @Test
+    void testMessageArrived_compactSender_isAccepted() throws Exception {
+        MqttMessage message = new MqttMessage("{}".getBytes(StandardCharsets.UTF_8));
+        message.setProperties(userProperties("s", "frontend/ui-1"));
+
+        captureCallback().messageArrived("nadavnv-smart-home/devices/dev123/delete", message);
+
+        verify(mockDuplicateFilter).isDuplicate("frontend", "ui-1", null);
+        verify(mockDeviceService).deleteDeviceById("dev123");
+    }
+
+    @Test
+    void testMessageArrived_compactSenderFromBackend_skips() throws Exception {
+        MqttMessage message = new MqttMessage("{}".getBytes(StandardCharsets.UTF_8));
+        message.setProperties(userProperties("s", "backend/other-instance"));
+
+        captureCallback().messageArrived("nadavnv-smart-home/devices/dev123/delete", message);
+
+        verify(mockDeviceService, never()).deleteDeviceById(any());
+    }
+
     @Test
     void testMessageArrived_invalidTopic_logsError() throws Exception {
         MqttCallback callback = captureCallback();
@@ -185,8 +543,147 @@ class MqttServiceImplTest {
         assertEquals(60, capturedParams.getTemperature());
     }
 
+    @Test
+    void testMessageArrived_updateUnknownDevice_deadLetters() throws Exception {
+        MqttCallback callback = captureCallback();
+        MqttMessage message = new MqttMessage("{\"status\":\"on\"}".getBytes(StandardCharsets.UTF_8));
+        message.setProperties(userProperties("sender_id", "ui-1", "sender_group", "frontend"));
+        when(mockDeviceService.getDeviceById("missing")).thenThrow(new DeviceNotFoundException("Device ID missing not found"));
+
+        callback.messageArrived("nadavnv-smart-home/devices/missing/update", message);
+
+        ArgumentCaptor<InboundMessage> captor = ArgumentCaptor.forClass(InboundMessage.class);
+        verify(mockDeadLetters).add(captor.capture(), eq(DeadLetterStore.Reason.DEVICE_NOT_FOUND), anyString());
+        assertEquals("missing", captor.getValue().deviceId());
+        assertEquals("ui-1", captor.getValue().senderId());
+        assertEquals("frontend", captor.getValue().senderGroup());
+        verify(mockDeviceService, never()).updateDevice(anyString(), any());
+    }
+
+    @Test
+    void testReplayDeadLetters_reinjectsTakenMessages() {
+        InboundMessage message = new InboundMessage(
+                "dev123", MqttService.Method.DELETE, "frontend", "ui-1", new byte[0], PayloadFormat.JSON);
+        when(mockDeadLetters.take(List.of(1L, 2L))).thenReturn(List.of(new DeadLetterStore.DeadLetter(
+                1, Instant.now(), DeadLetterStore.Reason.DEVICE_NOT_FOUND, null, message)));
+
+        int replayed = mqttService.replayDeadLetters(List.of(1L, 2L));
+
+        assertEquals(1, replayed);
+        verify(mockDeviceService).deleteDeviceById("dev123");
+        verify(mockMetricsService).deleteDevice("dev123");
+    }
+
+    @Test
+    void testMessageArrived_duplicate_skipsProcessing() throws Exception {
+        MqttCallback callback = captureCallback();
+        MqttMessage message = new MqttMessage("{}".getBytes(StandardCharsets.UTF_8));
+        message.setProperties(userProperties(
+                "sender_id", "ui-1",
+                "sender_group", "frontend",
+                "message_id", "42"
+        ));
+        when(mockDuplicateFilter.isDuplicate("frontend", "ui-1", "42")).thenReturn(true);
+
+        callback.messageArrived("nadavnv-smart-home/devices/dev123/delete", message);
+
+        verify(mockDeviceService, never()).deleteDeviceById(anyString());
+        verify(mockMetricsService, never()).deleteDevice(anyString());
+    }
+
+    @Test
+    void testMessageArrived_correlationDataUsedAsMessageId() throws Exception {
+        MqttCallback callback = captureCallback();
+        MqttMessage message = new MqttMessage("{}".getBytes(StandardCharsets.UTF_8));
+        MqttProperties properties = userProperties("sender_id", "ui-1", "sender_group", "frontend");
+        properties.setCorrelationData(new byte[]{0x0a, 0x1b});
+        message.setProperties(properties);
+
+        callback.messageArrived("nadavnv-smart-home/devices/dev123/delete", message);
+
+        verify(mockDuplicateFilter).isDuplicate("frontend", "ui-1", "0a1b");
+        verify(mockDeviceService).deleteDeviceById("dev123");
+    }
+
+    @Test
+    void testMessageArrived_droppedByLimiter_retryIsNotDuplicate() throws Exception {
+        AtomicInteger submits = new AtomicInteger();
+        IngressLimiter dropsFirst = (group, sender, device, task) -> {
+            if (submits.getAndIncrement() == 0) {
+                return false;
+            }
+            task.run();
+            return true;
+        };
+        mqttService.shutdown();
+        createService(dispatcher((key, task) -> task.run()), dropsFirst,
+                new DuplicateFilterImpl(new MqttDedupProperties(), mockCounters));
+        MqttCallback callback = captureCallback();
+        MqttMessage message = new MqttMessage("{}".getBytes(StandardCharsets.UTF_8));
+        message.setProperties(userProperties(
+                "sender_id", "ui-1",
+                "sender_group", "frontend",
+                "message_id", "42"
+        ));
+
+        callback.messageArrived("nadavnv-smart-home/devices/dev123/delete", message);
+        verify(mockDeviceService, never()).deleteDeviceById(anyString());
+
+        callback.messageArrived("nadavnv-smart-home/devices/dev123/delete", message);
+        verify(mockDeviceService).deleteDeviceById("dev123");
+        assertEquals(2, submits.get());
+    }
+
+    @Test
+    void testCoalescedUpdates_drainedOnDeviceLaneNotOnTimer() throws Exception {
+        List<Runnable> lane = new ArrayList<>();
+        mqttService.shutdown();
+        createService(dispatcher((key, task) -> lane.add(task)));
+        when(mockCoalescer.isEnabled()).thenReturn(true);
+        MqttMessage message = new MqttMessage("{\"status\":\"on\"}".getBytes(StandardCharsets.UTF_8));
+        message.setProperties(userProperties("sender_id", "ui-1", "sender_group", "frontend"));
+        captureCallback().messageArrived("nadavnv-smart-home/devices/dev123/update", message);
+        ArgumentCaptor<Runnable> windowClosed = ArgumentCaptor.forClass(Runnable.class);
+        verify(mockCoalescer).offer(any(), windowClosed.capture());
+
+        windowClosed.getValue().run();
+
+        verify(mockCoalescer, never()).drain(anyString());
+        assertEquals(1, lane.size());
+        lane.getFirst().run();
+        verify(mockCoalescer).drain("dev123");
+    }
+
     // === Helpers ===
 
+    // A task holding several lanes is passed on keyed by all of them
+    private static IngestDispatcher dispatcher(BiConsumer<String, Runnable> lane) {
+        return new IngestDispatcher() {
+            @Override
+            public void dispatch(String key, Runnable task) {
+                lane.accept(key, task);
+            }
+
+            @Override
+            public void dispatchAll(Collection<String> keys, Runnable task) {
+                lane.accept(String.join(",", keys), task);
+            }
+        };
+    }
+
+    // Makes the mock journal behave like a FIFO, for tests that follow entries through replay
+    private void backJournalWithQueue() {
+        Deque<PublishJournal.PendingPublish> queue = new ConcurrentLinkedDeque<>();
+        when(mockJournal.append(anyString(), any(), anyInt(), any(), anyBoolean())).thenAnswer(invocation ->
+                queue.add(new PublishJournal.PendingPublish(queue.size(), invocation.getArgument(0),
+                        invocation.getArgument(1), invocation.getArgument(2), invocation.getArgument(3),
+                        invocation.getArgument(4))));
+        when(mockJournal.peek()).thenAnswer(_ -> Optional.ofNullable(queue.peekFirst()));
+        when(mockJournal.size()).thenAnswer(_ -> queue.size());
+        doAnswer(invocation -> queue.remove(invocation.<PublishJournal.PendingPublish>getArgument(0)))
+                .when(mockJournal).remove(any());
+    }
+
     private MqttCallback captureCallback() {
         mqttService.mqttInit();
         verify(mockClient).setCallback(callbackCaptor.capture());
@@ -0,0 +1,149 @@
+package nv.nadav.smart_home.service.impl;
+
+import nv.nadav.smart_home.config.MqttOutboxProperties;
+import nv.nadav.smart_home.config.MqttOutboxProperties.OverflowPolicy;
+import nv.nadav.smart_home.serialization.PayloadFormat;
+import nv.nadav.smart_home.service.CounterManager;
+import nv.nadav.smart_home.service.GaugeManager;
+import nv.nadav.smart_home.service.PublishJournal.PendingPublish;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class PublishJournalImplTest {
+
+    @TempDir
+    private Path tempDir;
+
+    private final GaugeManager gaugeManager = mock(GaugeManager.class);
+    private final CounterManager counterManager = mock(CounterManager.class);
+    private PublishJournalImpl journal;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    @Test
+    void testAppend_thenPeekAndRemoveInOrder() {
+        journal = openJournal(4096, OverflowPolicy.DROP_OLDEST);
+
+        journal.append("topic/a/post", bytes("first"), 2, PayloadFormat.JSON, false);
+        journal.append("topic/b/update", bytes("second"), 1, PayloadFormat.JSON, false);
+
+        PendingPublish first = journal.peek().orElseThrow();
+        assertThat(first.topic()).isEqualTo("topic/a/post");
+        assertThat(first.payload()).isEqualTo(bytes("first"));
+        assertThat(first.qos()).isEqualTo(2);
+        journal.remove(first);
+
+        PendingPublish second = journal.peek().orElseThrow();
+        assertThat(second.topic()).isEqualTo("topic/b/update");
+        assertThat(second.qos()).isEqualTo(1);
+        journal.remove(second);
+
+        assertThat(journal.peek()).isEmpty();
+        assertThat(journal.size()).isZero();
+    }
+
+    @Test
+    void testAppend_keepsFlagsAlongsideQos() {
+        journal = openJournal(4096, OverflowPolicy.DROP_OLDEST);
+
+        journal.append("topic/a/update", new byte[]{(byte) 0xA1, 0x00}, 1, PayloadFormat.SMILE, true);
+
+        PendingPublish pending = journal.peek().orElseThrow();
+        assertThat(pending.qos()).isEqualTo(1);
+        assertThat(pending.format()).isEqualTo(PayloadFormat.SMILE);
+        assertThat(pending.retained()).isTrue();
+    }
+
+    @Test
+    void testReopen_recoversPendingPublishes() throws IOException {
+        journal = openJournal(4096, OverflowPolicy.DROP_OLDEST);
+        journal.append("topic/a/post", bytes("kept"), 2, PayloadFormat.JSON, false);
+        journal.close();
+
+        journal = openJournal(4096, OverflowPolicy.DROP_OLDEST);
+
+        assertThat(journal.size()).isEqualTo(1);
+        assertThat(journal.peek().orElseThrow().payload()).isEqualTo(bytes("kept"));
+    }
+
+    @Test
+    void testOverflow_dropOldestEvictsHead() {
+        journal = openJournal(128, OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 10; i++) {
+            journal.append("t", bytes("message-" + i), 2, PayloadFormat.JSON, false);
+        }
+
+        assertThat(journal.size()).isLessThan(10);
+        PendingPublish head = journal.peek().orElseThrow();
+        assertThat(new String(head.payload(), StandardCharsets.UTF_8)).isNotEqualTo("message-0");
+        verify(counterManager, atLeastOnce())
+                .increment(eq("mqtt_outbox_dropped_total"), anyString(), anyMap());
+    }
+
+    @Test
+    void testOverflow_dropNewestRejectsAppend() {
+        journal = openJournal(128, OverflowPolicy.DROP_NEWEST);
+        boolean accepted = true;
+        int appended = 0;
+        while (accepted) {
+            accepted = journal.append("t", bytes("message-" + appended), 2, PayloadFormat.JSON, false);
+            if (accepted) {
+                appended++;
+            }
+        }
+
+        assertThat(journal.size()).isEqualTo(appended);
+        assertThat(journal.peek().orElseThrow().payload()).isEqualTo(bytes("message-0"));
+    }
+
+    @Test
+    void testAppend_reclaimsSpaceFreedAtFront() {
+        journal = openJournal(128, OverflowPolicy.DROP_NEWEST);
+        journal.append("t", bytes("message-start"), 2, PayloadFormat.JSON, false);
+        for (int round = 0; round < 50; round++) {
+            assertThat(journal.append("t", bytes("message-" + round), 2, PayloadFormat.JSON, false)).isTrue();
+            journal.remove(journal.peek().orElseThrow());
+        }
+        assertThat(journal.size()).isEqualTo(1);
+        assertThat(journal.peek().orElseThrow().payload()).isEqualTo(bytes("message-49"));
+    }
+
+    @Test
+    void testRemove_ignoresStaleHead() {
+        journal = openJournal(4096, OverflowPolicy.DROP_OLDEST);
+        journal.append("t", bytes("a"), 2, PayloadFormat.JSON, false);
+        PendingPublish stale = journal.peek().orElseThrow();
+        journal.remove(stale);
+        journal.append("t", bytes("b"), 2, PayloadFormat.JSON, false);
+
+        journal.remove(stale);
+
+        assertThat(journal.size()).isEqualTo(1);
+    }
+
+    private PublishJournalImpl openJournal(int capacity, OverflowPolicy policy) {
+        MqttOutboxProperties properties = new MqttOutboxProperties();
+        properties.setPath(tempDir.resolve("outbox.journal").toString());
+        properties.setCapacityBytes(capacity);
+        properties.setOverflowPolicy(policy);
+        return new PublishJournalImpl(properties, gaugeManager, counterManager);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
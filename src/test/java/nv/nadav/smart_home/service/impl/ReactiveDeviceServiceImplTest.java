@@ -0,0 +1,231 @@
+package nv.nadav.smart_home.service.impl;
+
+import nv.nadav.smart_home.config.DeviceUpdateProperties;
+import nv.nadav.smart_home.dto.DeviceDto;
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.exception.DeviceExistsException;
+import nv.nadav.smart_home.exception.DeviceNotFoundException;
+import nv.nadav.smart_home.exception.DeviceValidationException;
+import nv.nadav.smart_home.exception.DeviceVersionConflictException;
+import nv.nadav.smart_home.model.Device;
+import nv.nadav.smart_home.model.DeviceType;
+import nv.nadav.smart_home.model.parameters.CurtainParameters;
+import nv.nadav.smart_home.model.parameters.LightParameters;
+import nv.nadav.smart_home.repository.ReactiveDeviceRepository;
+import nv.nadav.smart_home.service.CounterManager;
+import nv.nadav.smart_home.service.DeviceChangedEvent;
+import nv.nadav.smart_home.service.DeviceWriteBehind;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DuplicateKeyException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+
+import static nv.nadav.smart_home.constants.Constants.*;
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class ReactiveDeviceServiceImplTest {
+    @Mock
+    private ReactiveDeviceRepository repo;
+
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
+    @Mock
+    private CounterManager counterManager;
+
+    @Mock
+    private DeviceWriteBehind writeBehind;
+
+    private ReactiveDeviceServiceImpl service;
+    private AutoCloseable mocks;
+
+    @BeforeEach
+    void setUp() {
+        mocks = MockitoAnnotations.openMocks(this);
+        service = new ReactiveDeviceServiceImpl(
+                repo, eventPublisher, new DeviceUpdateProperties(), counterManager, writeBehind);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (mocks != null) {
+            mocks.close();
+        }
+    }
+
+    @Test
+    void testGetDevice_notFound() {
+        when(repo.findByDeviceId("test")).thenReturn(Mono.empty());
+
+        assertThatExceptionOfType(DeviceNotFoundException.class)
+                .isThrownBy(() -> service.getDeviceById("test").block())
+                .withMessage("Device ID test not found");
+    }
+
+    @Test
+    void testGetAllDevices_mapsEveryDevice() {
+        Device second = getValidLightDevice();
+        second.setDeviceId("test2");
+        when(repo.streamAll()).thenReturn(Flux.just(getValidLightDevice(), second));
+
+        assertThat(service.getAllDevices().map(DeviceDto::getId).collectList().block())
+                .containsExactly("test", "test2");
+    }
+
+    @Test
+    void testAddDevice_exists() {
+        DeviceDto device = getValidLightDeviceDto();
+        when(repo.existsByDeviceId("test")).thenReturn(Mono.just(true));
+
+        assertThatExceptionOfType(DeviceExistsException.class).isThrownBy(() -> service.addDevice(device).block());
+        verify(repo, never()).insert(any(Device.class));
+    }
+
+    @Test
+    void testAddDevice_duplicateKeyOnInsert() {
+        when(repo.existsByDeviceId("test")).thenReturn(Mono.just(false));
+        when(repo.insert(any(Device.class))).thenReturn(Mono.error(new DuplicateKeyException("E11000")));
+
+        assertThatExceptionOfType(DeviceExistsException.class)
+                .isThrownBy(() -> service.addDevice(getValidLightDeviceDto()).block());
+        verifyNoInteractions(eventPublisher);
+    }
+
+    @Test
+    void testAddDevice_valid() {
+        when(repo.existsByDeviceId("test")).thenReturn(Mono.just(false));
+        when(repo.insert(any(Device.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        DeviceDto created = service.addDevice(getValidLightDeviceDto()).block();
+
+        assertThat(created.getVersion()).isZero();
+        verify(eventPublisher).publishEvent(new DeviceChangedEvent("test", created));
+    }
+
+    @Test
+    void testUpdateDevice_wrongParametersType() {
+        when(repo.findByDeviceId("test")).thenReturn(Mono.just(getValidLightDevice()));
+        DeviceUpdateDto update = new DeviceUpdateDto();
+        CurtainParameters parameters = new CurtainParameters();
+        parameters.setPosition(MIN_POSITION);
+        update.setParameters(parameters);
+
+        assertThatExceptionOfType(DeviceValidationException.class)
+                .isThrownBy(() -> service.updateDevice("test", update, null).block())
+                .withMessage(String.format("Incorrect parameters for device type %s", DeviceType.LIGHT));
+        verify(repo, never()).updateFields(any(), anyLong(), any());
+    }
+
+    @Test
+    void testUpdateDevice_conflictRetriedAgainstFreshRead() {
+        Device stale = getValidLightDevice();
+        Device fresh = getValidLightDevice();
+        fresh.setVersion(1L);
+        Device updated = getValidLightDevice();
+        updated.setStatus("off");
+        updated.setVersion(2L);
+        when(repo.findByDeviceId("test")).thenReturn(Mono.just(stale), Mono.just(fresh));
+        when(repo.updateFields(eq("test"), eq(0L), any())).thenReturn(Mono.empty());
+        when(repo.updateFields(eq("test"), eq(1L), any())).thenReturn(Mono.just(updated));
+        DeviceUpdateDto update = new DeviceUpdateDto();
+        update.setStatus("off");
+
+        DeviceDto result = service.updateDevice("test", update, null).block();
+
+        assertThat(result.getStatus()).isEqualTo("off");
+        assertThat(result.getVersion()).isEqualTo(2L);
+        verify(counterManager).increment(eq("device_update_conflicts_total"), anyString(),
+                eq(Map.of("outcome", "retried")));
+    }
+
+    @Test
+    void testUpdateDevice_flushesBufferedTelemetryBeforeWriting() {
+        Device updated = getValidLightDevice();
+        updated.setStatus("off");
+        updated.setVersion(1L);
+        when(repo.findByDeviceId("test")).thenReturn(Mono.just(getValidLightDevice()));
+        when(repo.updateFields(eq("test"), eq(0L), any())).thenReturn(Mono.just(updated));
+        DeviceUpdateDto update = new DeviceUpdateDto();
+        update.setStatus("off");
+
+        service.updateDevice("test", update, null).block();
+
+        InOrder inOrder = inOrder(writeBehind, repo);
+        inOrder.verify(writeBehind).flush(List.of("test"));
+        inOrder.verify(repo).updateFields(eq("test"), eq(0L), any());
+    }
+
+    @Test
+    void testUpdateDevice_expectedVersionConflict() {
+        Device current = getValidLightDevice();
+        current.setVersion(5L);
+        when(repo.findByDeviceId("test")).thenReturn(Mono.just(current));
+        when(repo.updateFields(eq("test"), eq(4L), any())).thenReturn(Mono.empty());
+        DeviceUpdateDto update = new DeviceUpdateDto();
+        update.setStatus("off");
+
+        assertThatExceptionOfType(DeviceVersionConflictException.class)
+                .isThrownBy(() -> service.updateDevice("test", update, 4L).block())
+                .withMessage("Device ID test is at version 5");
+        verify(repo, times(1)).updateFields(any(), anyLong(), any());
+        verifyNoInteractions(eventPublisher);
+    }
+
+    @Test
+    void testDeleteDevice_publishesDeletion() {
+        Device device = getValidLightDevice();
+        when(repo.findByDeviceId("test")).thenReturn(Mono.just(device));
+        when(repo.delete(device)).thenReturn(Mono.empty());
+
+        service.deleteDeviceById("test").block();
+
+        verify(repo).delete(device);
+        verify(writeBehind).discard("test");
+        verify(eventPublisher).publishEvent(new DeviceChangedEvent("test", null));
+    }
+
+    private static DeviceDto getValidLightDeviceDto() {
+        DeviceDto result = new DeviceDto();
+        result.setId("test");
+        result.setType(DeviceType.LIGHT);
+        result.setName("test");
+        result.setRoom("test");
+        result.setStatus("on");
+        LightParameters lightParameters = new LightParameters();
+        lightParameters.setDynamicColor(true);
+        lightParameters.setDimmable(true);
+        lightParameters.setColor("#123456");
+        lightParameters.setBrightness(MIN_BRIGHTNESS);
+        result.setParameters(lightParameters);
+        return result;
+    }
+
+    private static Device getValidLightDevice() {
+        Device device = new Device();
+        device.set_id(new ObjectId());
+        device.setDeviceId("test");
+        device.setType(DeviceType.LIGHT);
+        device.setName("test");
+        device.setRoom("test");
+        device.setStatus("on");
+        LightParameters lightParameters = new LightParameters();
+        lightParameters.setDynamicColor(true);
+        lightParameters.setDimmable(true);
+        lightParameters.setColor("#123456");
+        lightParameters.setBrightness((MIN_BRIGHTNESS + MAX_BRIGHTNESS) / 2);
+        device.setParameters(lightParameters);
+        device.setVersion(0L);
+        return device;
+    }
+}
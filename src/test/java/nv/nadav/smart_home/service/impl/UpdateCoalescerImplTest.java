@@ -0,0 +1,132 @@
+package nv.nadav.smart_home.service.impl;
+
+import nv.nadav.smart_home.config.MqttIngestProperties;
+import nv.nadav.smart_home.dto.DeviceUpdateDto;
+import nv.nadav.smart_home.model.DeviceType;
+import nv.nadav.smart_home.model.parameters.LightParameters;
+import nv.nadav.smart_home.serialization.PayloadFormat;
+import nv.nadav.smart_home.service.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mapstruct.factory.Mappers;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class UpdateCoalescerImplTest {
+
+    private CounterManager counterManager;
+    private UpdateCoalescerImpl coalescer;
+
+    @BeforeEach
+    void setUp() {
+        counterManager = mock(CounterManager.class);
+        MqttIngestProperties properties = new MqttIngestProperties();
+        properties.setCoalesceWindow(Duration.ofMillis(50));
+        coalescer = new UpdateCoalescerImpl(
+                properties,
+                counterManager,
+                Mappers.getMapper(AirConditionerParametersMapper.class),
+                Mappers.getMapper(CurtainParametersMapper.class),
+                Mappers.getMapper(DoorLockParametersMapper.class),
+                Mappers.getMapper(LightParametersMapper.class),
+                Mappers.getMapper(WaterHeaterParametersMapper.class)
+        );
+    }
+
+    @AfterEach
+    void tearDown() {
+        coalescer.shutdown();
+    }
+
+    @Test
+    void testMerge_laterFieldsWin() {
+        DeviceUpdateDto first = new DeviceUpdateDto();
+        LightParameters firstParameters = new LightParameters();
+        firstParameters.setBrightness(10);
+        firstParameters.setColor("#FFFFFF");
+        first.setParameters(firstParameters);
+        first.setStatus("on");
+
+        DeviceUpdateDto second = new DeviceUpdateDto();
+        LightParameters secondParameters = new LightParameters();
+        secondParameters.setBrightness(70);
+        second.setParameters(secondParameters);
+        second.setName("Desk lamp");
+
+        DeviceUpdateDto merged = coalescer.merge("light-1", DeviceType.LIGHT, List.of(first, second));
+
+        assertThat(merged.getStatus()).isEqualTo("on");
+        assertThat(merged.getName()).isEqualTo("Desk lamp");
+        LightParameters mergedParameters = (LightParameters) merged.getParameters();
+        assertThat(mergedParameters.getBrightness()).isEqualTo(70);
+        assertThat(mergedParameters.getColor()).isEqualTo("#FFFFFF");
+        verify(counterManager).incrementBy(
+                eq("mqtt_updates_coalesced_total"),
+                anyString(),
+                eq(Map.of("device_id", "light-1", "device_type", "light")),
+                eq(1.0)
+        );
+    }
+
+    @Test
+    void testMerge_doesNotMutateInputs() {
+        DeviceUpdateDto first = new DeviceUpdateDto();
+        LightParameters firstParameters = new LightParameters();
+        firstParameters.setBrightness(10);
+        first.setParameters(firstParameters);
+        DeviceUpdateDto second = new DeviceUpdateDto();
+        LightParameters secondParameters = new LightParameters();
+        secondParameters.setBrightness(70);
+        second.setParameters(secondParameters);
+
+        coalescer.merge("light-1", DeviceType.LIGHT, List.of(first, second));
+
+        assertThat(firstParameters.getBrightness()).isEqualTo(10);
+    }
+
+    @Test
+    void testOffer_flushesBurstOnceWindowCloses() throws Exception {
+        CompletableFuture<List<InboundMessage>> flushed = new CompletableFuture<>();
+
+        coalescer.offer(update("light-1", "{\"status\":\"on\"}"), () -> flushed.complete(coalescer.drain("light-1")));
+        coalescer.offer(update("light-1", "{\"status\":\"off\"}"), () -> {
+            throw new AssertionError("Only the first offer opens a window");
+        });
+
+        List<InboundMessage> batch = flushed.get(1, TimeUnit.SECONDS);
+        assertThat(batch).hasSize(2);
+        assertThat(new String(batch.get(1).payload(), StandardCharsets.UTF_8)).isEqualTo("{\"status\":\"off\"}");
+    }
+
+    @Test
+    void testDrain_takesBufferedPayloadsBeforeWindowCloses() throws Exception {
+        CompletableFuture<List<InboundMessage>> flushed = new CompletableFuture<>();
+        coalescer.offer(update("light-1", "{}"), () -> flushed.complete(coalescer.drain("light-1")));
+
+        assertThat(coalescer.drain("light-1")).hasSize(1);
+        assertThat(coalescer.drain("light-1")).isEmpty();
+
+        assertThat(flushed.get(1, TimeUnit.SECONDS)).isEmpty();
+    }
+
+    private static InboundMessage update(String deviceId, String payload) {
+        return new InboundMessage(
+                deviceId,
+                MqttService.Method.UPDATE,
+                "frontend",
+                "ui-1",
+                payload.getBytes(StandardCharsets.UTF_8),
+                PayloadFormat.JSON
+        );
+    }
+}